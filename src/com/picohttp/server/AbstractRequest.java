@@ -0,0 +1,167 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The parts of a {@link Request} that don't depend on how the request was
+ * parsed: the body and conversion of header and parameter values.
+ */
+public abstract class AbstractRequest implements Request {
+    private final Connection connection;
+    private InputStream bodyStream;
+    private String body = null;
+    private Map<String, String> pathParameters = Collections.emptyMap();
+
+    protected AbstractRequest(Connection connection) {
+        this.connection = connection;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Sets up the body stream once the head has been read and registers it
+     * with the connection so any unread remainder is skipped before the next
+     * request. The body is chunked if the Transfer-Encoding says so and
+     * otherwise exactly {@code contentLength} bytes.
+     * 
+     * @param in
+     *            the connection's input, positioned after the head
+     * @throws UnsupportedTransferEncodingException
+     *             if the Transfer-Encoding is anything but chunked
+     */
+    protected void initBody(InputStream in, long contentLength) throws IOException {
+        String transferEncoding = getHeader("Transfer-Encoding");
+        if (transferEncoding != null) {
+            // Any other coding would reach the handler as if it were the body
+            if (!transferEncoding.trim().equalsIgnoreCase("chunked"))
+                throw new UnsupportedTransferEncodingException(transferEncoding);
+            bodyStream = new ChunkedInputStream(in);
+        }
+        else
+            bodyStream = new BoundedInputStream(in, contentLength);
+
+        if ("100-continue".equalsIgnoreCase(getHeader("Expect")) && "HTTP/1.1".equals(getProtocol()))
+            bodyStream = new ContinueInputStream(bodyStream, in, connection.getOutputStream());
+
+        connection.setBody(bodyStream);
+    }
+
+    @Override
+    public Socket getSocket() {
+        return connection.getSocket();
+    }
+
+    @Override
+    public InputStream getBodyStream() {
+        return bodyStream;
+    }
+
+    @Override
+    public String getBody() throws IOException {
+        if (body == null)
+            readBody();
+
+        return body;
+    }
+
+    synchronized private void readBody() throws IOException {
+        if (body != null)
+            return;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        byte[] data = BufferPool.getDefault().acquire(4096);
+        try {
+            int count;
+            while ((count = bodyStream.read(data)) != -1)
+                out.write(data, 0, count);
+        }
+        finally {
+            BufferPool.getDefault().release(data);
+        }
+
+        // Decoded all at once so multibyte characters can't be split
+        body = out.toString(getCharset(getHeader("Content-Type")));
+    }
+
+    protected String getCharset(String string) {
+        if (string != null && string.contains("charset="))
+            return string.replaceAll(".*charset=(\\S+)", "$1");
+        else
+            return "UTF-8";
+    }
+
+    @Override
+    public <T> T getHeader(String name, Class<T> target) {
+        return cooerce(getHeader(name), target);
+    }
+
+    @Override
+    public <T> T getParameter(String name, Class<T> target) {
+        return cooerce(getParameter(name), target);
+    }
+    
+    @Override
+    public String getPathParameter(String name) {
+        return pathParameters.get(name);
+    }
+
+    @Override
+    public <T> T getPathParameter(String name, Class<T> target) {
+        return cooerce(getPathParameter(name), target);
+    }
+
+    @Override
+    public Map<String, String> getPathParameters() {
+        return pathParameters;
+    }
+
+    void setPathParameters(Map<String, String> pathParameters) {
+        this.pathParameters = pathParameters;
+    }
+
+    /**
+     * @return the value converted by the {@link Converter} registered for the
+     *         target type or null if it can't be converted
+     * @see Converters
+     */
+    protected <T> T cooerce(String value, Class<T> target) {
+        return Converters.convert(value, target);
+    }
+
+    /**
+     * Thrown when the body has a Transfer-Encoding other than chunked, so
+     * where it ends can't be known. The server answers with a 501 and closes
+     * the connection.
+     */
+    public static class UnsupportedTransferEncodingException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedTransferEncodingException(String transferEncoding) {
+            super("Unsupported Transfer-Encoding: " + transferEncoding);
+        }
+    }
+}
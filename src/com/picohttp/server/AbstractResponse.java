@@ -0,0 +1,145 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The status line and headers shared by the built-in responses, and the
+ * keep-alive negotiation that goes with them. Subclasses decide how their body
+ * is delimited in {@link #delimitBody()} and write it after
+ * {@link #writeHead(OutputStream)}.
+ */
+public abstract class AbstractResponse implements PersistentResponse {
+    private String protocol = "HTTP/1.0";
+    private int statusCode = 200;
+    private String statusMessage = "OK";
+    /** Looked up ignoring case, so a handler's "connection" or "content-length" isn't missed */
+    private Map<String, Object> headers = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+    private boolean headRequest;
+
+    @Override
+    public boolean prepare(Request request, boolean keepAlive) {
+        if ("HTTP/1.1".equals(request.getProtocol()))
+            protocol = "HTTP/1.1";
+
+        headRequest = "HEAD".equals(request.getMethod());
+
+        if (!delimitBody())
+            keepAlive = false;
+
+        Object connection = getHeader("Connection");
+        if (connection != null && "close".equalsIgnoreCase(connection.toString()))
+            keepAlive = false;
+
+        if (!keepAlive)
+            setHeader("Connection", "close");
+        else if (!protocol.equals("HTTP/1.1"))
+            setHeader("Connection", "keep-alive");
+
+        return keepAlive;
+    }
+
+    /**
+     * Sets whatever headers tell the client where the body ends.
+     * 
+     * @return false if the body can only end with the connection being closed
+     */
+    protected abstract boolean delimitBody();
+
+    /**
+     * @return true if the status code never has a body
+     */
+    protected boolean isBodyless() {
+        return statusCode < 200 || statusCode == 204 || statusCode == 304;
+    }
+
+    protected void writeHead(OutputStream out) throws IOException {
+        serializeHead().writeTo(out);
+    }
+
+    /**
+     * Writes the head and a body that's already in memory together, so small
+     * responses take a single write to the socket.
+     */
+    protected void writeHead(OutputStream out, byte[] body) throws IOException {
+        serializeHead().writeTo(out, body);
+    }
+
+    private ResponseHead serializeHead() {
+        ResponseHead head = ResponseHead.get();
+        head.statusLine(protocol, statusCode, statusMessage);
+
+        for (Map.Entry<String, Object> header : headers.entrySet())
+            head.header(header.getKey(), header.getValue());
+
+        if (!headers.containsKey("Date"))
+            head.date();
+
+        head.end();
+        return head;
+    }
+
+    /**
+     * @return the protocol of the status line, HTTP/1.1 if the request was
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @return true if the request was a HEAD and no body should be written
+     */
+    public boolean isHeadRequest() {
+        return headRequest;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    public void setStatusMessage(String statusMessage) {
+        this.statusMessage = statusMessage;
+    }
+    
+    public void setHeader(String name, Object value) {
+        headers.put(name, value);
+    }
+    
+    public Object getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public Object removeHeader(String name) {
+        return headers.remove(name);
+    }
+
+    public Map<String, Object> getHeaders() {
+        return headers;
+    }
+}
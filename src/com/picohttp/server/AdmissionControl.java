@@ -0,0 +1,208 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether work is taken on when the server is overloaded, so it
+ * answers what it can in good time and turns the rest away quickly with a
+ * 503 rather than letting every request wait longer and longer.
+ * <ul>
+ * <li>Nothing more is dispatched while the Dispatcher already has
+ * {@link Configuration#getMaxQueueDepth()} tasks waiting.</li>
+ * <li>Work that waited in the queue too long is shed when a worker gets to
+ * it, in the manner of CoDel: normally it may wait the queue interval, but
+ * once the queue hasn't been empty for a whole interval only the much
+ * shorter queue target. A standing queue is drained quickly while a burst is
+ * still absorbed.</li>
+ * <li>While the queue has stood for a whole interval without a worker taking
+ * anything from it, as when the blocking engine's workers are all held by
+ * slow connections, new work is turned away as it arrives since it would
+ * only be shed later.</li>
+ * <li>Each client address may only have so many connections open. The counts
+ * are kept in a fixed table of atomic counters indexed by a hash of the
+ * address, so addresses that collide share a count.</li>
+ * </ul>
+ * Shed requests are answered with a 503 made up front, without parsing them.
+ */
+public class AdmissionControl {
+    /** Why work was turned away */
+    public enum Reason {
+        QUEUE_FULL, QUEUE_TIME, CLIENT_LIMIT
+    }
+
+    /** Returned by {@link #connectionOpened(InetAddress)} for a connection not counted against its client */
+    static final int UNCOUNTED = -1;
+    /** Returned by {@link #connectionOpened(InetAddress)} for a client with too many connections */
+    static final int REFUSED = -2;
+
+    private static final int SLOTS = 16384;
+
+    private final int maxQueueDepth;
+    private final long target;
+    private final long interval;
+    private final int maxConnectionsPerClient;
+    private final byte[] serviceUnavailable;
+    private final AtomicIntegerArray clients;
+    private volatile long lastEmpty = System.nanoTime();
+    private volatile long lastStart = lastEmpty;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder[] shed = new LongAdder[Reason.values().length];
+
+    AdmissionControl(Configuration configuration) {
+        this.maxQueueDepth = configuration.getMaxQueueDepth();
+        this.target = configuration.getQueueTarget() * 1000000L;
+        this.interval = configuration.getQueueInterval() * 1000000L;
+        this.maxConnectionsPerClient = configuration.getMaxConnectionsPerClient();
+        this.clients = maxConnectionsPerClient > 0 ? new AtomicIntegerArray(SLOTS) : null;
+        this.serviceUnavailable = ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + configuration.getRetryAfter()
+                + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        for (int i = 0; i < shed.length; i++)
+            shed[i] = new LongAdder();
+    }
+
+    /**
+     * @return false if the queue is full or stuck and the work should be
+     *         shed
+     */
+    boolean admit(Dispatcher dispatcher) {
+        long now = System.nanoTime();
+        int depth = dispatcher.getQueueDepth();
+        if (depth == 0) {
+            lastEmpty = now;
+            return true;
+        }
+
+        if (maxQueueDepth > 0 && depth >= maxQueueDepth) {
+            shed(Reason.QUEUE_FULL);
+            return false;
+        }
+        if (target > 0 && now - lastEmpty > interval && now - lastStart > interval) {
+            shed(Reason.QUEUE_TIME);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Called by a worker as it starts on work dispatched at
+     * {@code dispatched}.
+     *
+     * @return false if it waited too long and should be shed
+     */
+    boolean start(Dispatcher dispatcher, long dispatched) {
+        long now = System.nanoTime();
+        lastStart = now;
+        if (dispatcher.getQueueDepth() == 0)
+            lastEmpty = now;
+
+        if (target > 0) {
+            long limit = now - lastEmpty > interval ? target : interval;
+            if (now - dispatched > limit) {
+                shed(Reason.QUEUE_TIME);
+                return false;
+            }
+        }
+
+        admitted.increment();
+        return true;
+    }
+
+    void shed(Reason reason) {
+        shed[reason.ordinal()].increment();
+    }
+
+    /**
+     * Counts a new connection against its client.
+     *
+     * @return what to hand to {@link #connectionClosed(int)}, or
+     *         {@link #REFUSED} if the client already has as many connections
+     *         as it may
+     */
+    int connectionOpened(InetAddress address) {
+        if (clients == null || address == null)
+            return UNCOUNTED;
+
+        int hash = address.hashCode() * 0x9e3779b9;
+        int slot = (hash ^ hash >>> 16) & (SLOTS - 1);
+        for (;;) {
+            int count = clients.get(slot);
+            if (count >= maxConnectionsPerClient) {
+                shed(Reason.CLIENT_LIMIT);
+                return REFUSED;
+            }
+            if (clients.compareAndSet(slot, count, count + 1))
+                return slot;
+        }
+    }
+
+    void connectionClosed(int slot) {
+        if (slot >= 0)
+            clients.decrementAndGet(slot);
+    }
+
+    /**
+     * @return a complete 503 response with a Retry-After, which closes the
+     *         connection
+     */
+    byte[] getServiceUnavailable() {
+        return serviceUnavailable;
+    }
+
+    /**
+     * Sends the 503 on a blocking socket, which the caller then closes.
+     */
+    void sendServiceUnavailable(Socket socket) {
+        try {
+            socket.getOutputStream().write(serviceUnavailable);
+            socket.shutdownOutput();
+            // Closing with the request unread would reset the connection, which can lose the 503
+            InputStream in = socket.getInputStream();
+            for (int available; (available = in.available()) > 0; )
+                in.skip(available);
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * @return the number of tasks started within their time in the queue
+     */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getShed(Reason reason) {
+        return shed[reason.ordinal()].sum();
+    }
+
+    public long getShed() {
+        long total = 0;
+        for (LongAdder count : shed)
+            total += count.sum();
+        return total;
+    }
+}
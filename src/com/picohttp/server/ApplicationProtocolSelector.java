@@ -0,0 +1,37 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.util.List;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Chooses the application protocol for a TLS connection from those the
+ * client offers with ALPN, for when a fixed list in
+ * {@link Configuration#setApplicationProtocols} won't do. Called during the
+ * handshake, off the event loops.
+ */
+public interface ApplicationProtocolSelector {
+    /**
+     * @param offered
+     *            the protocols the client offered, in its order of preference
+     * @return the protocol to use, an empty string to carry on without ALPN
+     *         or null to fail the handshake with a no_application_protocol
+     *         alert
+     */
+    public String select(SSLEngine engine, List<String> offered);
+}
@@ -0,0 +1,67 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A handler that answers with a CompletionStage instead of a Response, so a
+ * request waiting on something else doesn't hold a worker thread. The
+ * response is written whenever the stage completes.
+ * <p>
+ * A stage that hasn't completed within
+ * {@link Configuration#getAsyncTimeout()} is cancelled and answered with a 503,
+ * one that fails with a {@link java.util.concurrent.TimeoutException} gets a
+ * 504 and any other failure a 500. With {@link EngineType#NIO} the stage is
+ * also cancelled if the client disconnects while waiting.
+ */
+public interface AsyncRequestHandler {
+    public CompletionStage<Response> execute(Request request);
+
+    /**
+     * @return the handler as an AsyncRequestHandler. Its responses are still
+     *         written on the thread that called it.
+     */
+    public static AsyncRequestHandler adapt(RequestHandler handler) {
+        return new SynchronousHandler(handler);
+    }
+
+    /**
+     * A RequestHandler behind the asynchronous contract, which the server
+     * recognizes and calls directly.
+     */
+    static class SynchronousHandler implements AsyncRequestHandler {
+        final RequestHandler handler;
+
+        SynchronousHandler(RequestHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public CompletionStage<Response> execute(Request request) {
+            CompletableFuture<Response> response = new CompletableFuture<Response>();
+            try {
+                response.complete(handler.execute(request));
+            }
+            catch (RuntimeException e) {
+                response.completeExceptionally(e);
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Accepts connections on a {@link ServerSocket} and serves each one on a
+ * pooled thread with blocking reads and writes. Between requests, and before
+ * the first, the connection is parked with a {@link ConnectionParker} so only
+ * connections with something to read hold a thread. A TLS handshake is carried
+ * out by the worker that takes the connection's first read, within the head
+ * timeout, and the connection parked again if no request follows.
+ * <p>
+ * An HTTP/2 connection is read by one worker for as long as it has streams in
+ * progress, each of which is served by a worker of its own, and parked like
+ * any other when they're done.
+ */
+class BlockingEngine implements Runnable {
+    /** How long, in milliseconds, a worker waits for the next request before parking the connection */
+    private static final int LINGER = 2;
+    /** How long, in milliseconds, an HTTP/2 connection's reads wait before checking on its streams */
+    private static final int POLL = 100;
+
+    private final PicoHttp server;
+    private final ServerSocket serverSocket;
+    private final Instrumentation instrumentation;
+    private final AdmissionControl admission;
+    private final ConnectionGuard guard;
+    private final ConnectionParker parker;
+    private final TlsContext tlsContext;
+    private final boolean http2Enabled;
+
+    BlockingEngine(PicoHttp server, ServerSocket serverSocket) throws IOException {
+        this.server = server;
+        this.serverSocket = serverSocket;
+        this.instrumentation = server.getInstrumentation();
+        this.admission = server.getAdmissionControl();
+        this.guard = server.getConnectionGuard();
+        this.parker = new ConnectionParker(server);
+        this.tlsContext = server.getTlsContext();
+        this.http2Enabled = server.getConfiguration().isHttp2Enabled();
+    }
+
+    @Override
+    public void run() {
+        System.out.println("PicoHttp listening on " + serverSocket.getLocalSocketAddress());
+
+        Thread parking = new Thread(parker, Thread.currentThread().getName() + "-idle");
+        parking.setDaemon(true);
+        parking.start();
+        guard.startWatchdog(server.getTimer());
+
+        while (server.isRunning()) {
+            try {
+                Socket socket = serverSocket.accept();
+                int client = admission.connectionOpened(socket.getInetAddress());
+                if (client == AdmissionControl.REFUSED) {
+                    // A TLS client couldn't read it
+                    if (tlsContext == null)
+                        admission.sendServiceUnavailable(socket);
+                    socket.close();
+                    continue;
+                }
+
+                long accepted = 0;
+                if (instrumentation != null) {
+                    accepted = System.nanoTime();
+                    instrumentation.connectionOpened();
+                }
+
+                // Not given a thread until the client sends something
+                new RequestEngine(socket, client).park();
+
+                if (instrumentation != null)
+                    instrumentation.stage(Instrumentation.Stage.ACCEPT, System.nanoTime() - accepted);
+            }
+            catch (SocketTimeoutException e) {
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        server.engineStopped();
+    }
+
+    /**
+     * Serves a connection's requests as they arrive. The thread is let go
+     * while the connection waits for its next request, or with an
+     * {@link AsyncRequestHandler} for its response, and the connection is
+     * served by another one when there's something to do.
+     */
+    private class RequestEngine implements Runnable, PendingResponse.Completion, ConnectionParker.Parked {
+        private final Socket socket;
+        /** The connection's slot in the per client counts */
+        private final int client;
+        private final ConnectionGuard.Deadline deadline;
+        /** Null for plain HTTP */
+        private TlsChannel tls;
+        private Connection connection;
+        /** Set once the connection has switched to HTTP/2 */
+        private Http2Connection http2;
+        private long dispatched;
+        private boolean closed;
+
+        public RequestEngine(Socket socket, int client) {
+            this.socket = socket;
+            this.client = client;
+            this.deadline = guard.deadline(socket);
+        }
+
+        void park() {
+            parker.park(socket.getChannel(), this);
+        }
+
+        @Override
+        public void readable() {
+            try {
+                dispatch();
+            }
+            catch (RejectedExecutionException e) {
+                refuse();
+            }
+        }
+
+        @Override
+        public void expired() {
+            close();
+        }
+
+        /**
+         * @throws RejectedExecutionException
+         *             if there are already too many connections waiting
+         */
+        void dispatch() throws RejectedExecutionException {
+            Dispatcher dispatcher = server.getDispatcher();
+            // HTTP/2 streams are admitted one by one instead
+            if (http2 == null && !admission.admit(dispatcher))
+                throw new RejectedExecutionException("Dispatcher queue full");
+
+            dispatched = System.nanoTime();
+            try {
+                dispatcher.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                admission.shed(AdmissionControl.Reason.QUEUE_FULL);
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (instrumentation != null)
+                instrumentation.stage(Instrumentation.Stage.QUEUE, System.nanoTime() - dispatched);
+
+            if (http2 == null && !admission.start(server.getDispatcher(), dispatched)) {
+                refuse();
+                return;
+            }
+
+            boolean handedOff = false;
+            try {
+                if (server.hasPersistentRequests())
+                    handedOff = connection == null && !open() || serve();
+                else {
+                    socket.setSoTimeout(guard.getBodyTimeout());
+                    deadline.start(ConnectionGuard.Violation.HEAD_TIMEOUT);
+                    Request request = server.readRequest(socket);
+                    deadline.stop(ConnectionGuard.Violation.HEAD_TIMEOUT);
+                    if (request != null) {
+                        server.respond(request);
+                        if (request instanceof AbstractRequest)
+                            connection = ((AbstractRequest) request).getConnection();
+                    }
+                }
+            }
+            catch (SSLException e) {
+                // A client that can't or won't speak TLS
+            }
+            catch (IOException e) {
+                // Clients too slow to keep up have been counted already
+                if (!(e instanceof SocketTimeoutException || e instanceof EOFException || deadline.hasExpired()))
+                    e.printStackTrace();
+            }
+            finally {
+                // Including when the handler fails, as it will if the body times out
+                if (!handedOff)
+                    close();
+            }
+        }
+
+        /**
+         * Sets up the connection, carrying out the TLS handshake if there is
+         * one.
+         * 
+         * @return false if the connection was parked after the handshake to
+         *         wait for its first request
+         */
+        private boolean open() throws IOException {
+            if (tlsContext != null)
+                tls = new TlsChannel(socket, tlsContext.createEngine());
+            connection = new Connection(socket, guard, deadline, tls);
+            if (tls == null)
+                return true;
+
+            deadline.start(ConnectionGuard.Violation.HEAD_TIMEOUT);
+            try {
+                tls.handshake();
+            }
+            catch (SocketTimeoutException e) {
+                guard.violated(ConnectionGuard.Violation.HEAD_TIMEOUT);
+                throw e;
+            }
+            finally {
+                deadline.stop(ConnectionGuard.Violation.HEAD_TIMEOUT);
+            }
+
+            if (connection.awaitRequest(LINGER))
+                return true;
+            park();
+            return false;
+        }
+
+        /**
+         * @return true if the connection was parked or left waiting for an
+         *         asynchronous response
+         */
+        private boolean serve() throws IOException {
+            if (http2 == null && http2Enabled && connection.getRequestCount() == 0 && startsHttp2()) {
+                http2 = new Http2Connection(server, connection, closer(), false);
+                http2.start();
+            }
+            if (http2 != null)
+                return serveHttp2();
+
+            for (;;) {
+                deadline.start(ConnectionGuard.Violation.HEAD_TIMEOUT);
+                Request request = server.readRequest(connection);
+                deadline.stop(ConnectionGuard.Violation.HEAD_TIMEOUT);
+                if (request == null)
+                    return false;
+
+                if (http2Enabled && tls == null && Http2Connection.isUpgrade(request)) {
+                    connection.finishRequest();
+                    http2 = new Http2Connection(server, connection, closer(), false);
+                    http2.upgrade(request);
+                    return serveHttp2();
+                }
+
+                if (server.isAsynchronous()) {
+                    server.respond(connection, request, this);
+                    return true;
+                }
+
+                if (!server.respond(connection, request) || !server.isRunning())
+                    return false;
+
+                // A busy client usually sends its next request straight away
+                if (!connection.awaitRequest(LINGER)) {
+                    park();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if the client has chosen HTTP/2, with ALPN or by
+         *         sending the connection preface straight away
+         */
+        private boolean startsHttp2() throws IOException {
+            if (tls != null)
+                return "h2".equals(connection.getApplicationProtocol());
+
+            deadline.start(ConnectionGuard.Violation.HEAD_TIMEOUT);
+            try {
+                return Http2Connection.awaitPreface(connection.getHttpInputStream());
+            }
+            finally {
+                deadline.stop(ConnectionGuard.Violation.HEAD_TIMEOUT);
+            }
+        }
+
+        /**
+         * Reads frames until the client goes quiet with no streams in
+         * progress.
+         * 
+         * @return true if the connection was parked
+         */
+        private boolean serveHttp2() throws IOException {
+            HttpInputStream in = connection.getHttpInputStream();
+            for (;;) {
+                boolean idle;
+                try {
+                    in.pos += http2.receive(in.buf, in.pos, in.limit - in.pos);
+                    if (!server.isRunning())
+                        http2.goAway(Http2Connection.NO_ERROR);
+                    if (http2.isFinished())
+                        return false;
+
+                    idle = http2.isIdle();
+                    if (connection.awaitInput(idle ? LINGER : POLL,
+                            Http2Connection.MAX_FRAME_SIZE + Http2Connection.FRAME_HEADER_LENGTH))
+                        continue;
+                }
+                catch (IOException e) {
+                    // A client that broke the protocol has been told so, one that went away can't be
+                    return false;
+                }
+
+                if (idle) {
+                    park();
+                    return true;
+                }
+
+                int bodyTimeout = guard.getBodyTimeout();
+                if (bodyTimeout > 0 && http2.isReceiving()
+                        && System.currentTimeMillis() - http2.getLastActive() > bodyTimeout) {
+                    guard.violated(ConnectionGuard.Violation.BODY_TIMEOUT);
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @return what a stream's worker uses to give up on the connection,
+         *         which leaves the rest to whichever thread is reading it
+         */
+        private Runnable closer() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        socket.close();
+                    }
+                    catch (IOException e) {
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void completed(boolean keepAlive) {
+            if (keepAlive && server.isRunning()) {
+                if (!connection.hasBufferedRequest()) {
+                    park();
+                    return;
+                }
+
+                // Pipelined behind the request just answered
+                readable();
+                return;
+            }
+
+            close();
+        }
+
+        /**
+         * Turns the connection away with a 503 without reading the request
+         * the client has started to send. A TLS connection is just closed if
+         * the handshake isn't over.
+         */
+        void refuse() {
+            if (tlsContext == null)
+                admission.sendServiceUnavailable(socket);
+            else if (tls != null && tls.isEstablished()) {
+                try {
+                    tls.getOutputStream().write(admission.getServiceUnavailable());
+                }
+                catch (IOException e) {
+                }
+            }
+            close();
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            if (http2 != null)
+                http2.close();
+
+            try {
+                // A response held back for a pipelined request that turned out to be bad
+                if (connection != null && !socket.isClosed())
+                    connection.flush();
+            }
+            catch (IOException e) {
+            }
+
+            try {
+                if (tls != null)
+                    tls.close();
+                else
+                    socket.close();
+            }
+            catch (IOException e) {
+            }
+
+            deadline.close();
+            if (connection != null) {
+                connection.release();
+                connection = null;
+            }
+            admission.connectionClosed(client);
+
+            if (instrumentation != null)
+                instrumentation.connectionClosed();
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lends out heap and direct buffers in power of two size classes from 1K to
+ * 64K so the request and response paths needn't allocate new ones for every
+ * request. Buffers are kept in stripes picked by thread, each guarded by its
+ * own lock; a thread whose stripe is empty looks in the others before
+ * allocating, since a buffer is often taken on one thread and given back on
+ * another. Direct buffers are cut from larger slabs.
+ * <p>
+ * A buffer must not be used once it has been released. With leak detection
+ * on, set with {@link #setLeakDetection(boolean)} or the
+ * {@code picohttp.buffers.debug} system property, buffers that are collected
+ * without being released and buffers released twice are reported with the
+ * stack that acquired them.
+ */
+public final class BufferPool {
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 16;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int SLAB_SIZE = 256 * 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool();
+
+    private final Stripe[] stripes;
+    private final int mask;
+    /** The most of each size class a stripe keeps, in bytes */
+    private final int retainedPerClass;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    private volatile boolean leakDetection = Boolean.getBoolean("picohttp.buffers.debug");
+    /** Buffers lent out while detecting leaks, by identity hash code */
+    private final Map<Integer, List<Loan>> loans = new HashMap<Integer, List<Loan>>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+    /**
+     * @return the pool the server's own buffers come from
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    public BufferPool() {
+        this(Runtime.getRuntime().availableProcessors() * 2, 64 * 1024);
+    }
+
+    /**
+     * @param stripes
+     *            how many ways to split the pool, rounded up to a power of
+     *            two
+     * @param retainedPerClass
+     *            the most bytes of each size class a stripe keeps, though it
+     *            always keeps at least two of a size
+     */
+    public BufferPool(int stripes, int retainedPerClass) {
+        this.stripes = new Stripe[stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1];
+        for (int i = 0; i < this.stripes.length; i++)
+            this.stripes[i] = new Stripe();
+        this.mask = this.stripes.length - 1;
+        this.retainedPerClass = retainedPerClass;
+    }
+
+    /**
+     * @return a heap buffer of at least {@code size} bytes, with whatever was
+     *         left in it; larger than the largest size class it isn't pooled
+     */
+    public byte[] acquire(int size) {
+        int sizeClass = sizeClass(size);
+        byte[] buffer = null;
+
+        if (sizeClass >= 0) {
+            Stripe home = stripe();
+            buffer = (byte[]) home.take(sizeClass, false);
+            for (int i = 0; buffer == null && i < stripes.length; i++)
+                if (stripes[i] != home)
+                    buffer = (byte[]) stripes[i].take(sizeClass, false);
+        }
+
+        if (buffer != null)
+            hits.increment();
+        else {
+            misses.increment();
+            buffer = new byte[sizeClass >= 0 ? 1 << (sizeClass + MIN_SHIFT) : size];
+        }
+
+        if (leakDetection)
+            lend(buffer);
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer from {@link #acquire(int)}, which mustn't be used
+     * afterwards.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || !returned(buffer))
+            return;
+
+        int sizeClass = exactClass(buffer.length);
+        if (sizeClass < 0 || !stripe().put(sizeClass, false, buffer, limit(sizeClass)))
+            discards.increment();
+    }
+
+    /**
+     * @return a cleared direct buffer with a capacity of at least
+     *         {@code size} bytes; larger than the largest size class it isn't
+     *         pooled
+     */
+    public ByteBuffer acquireDirect(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+
+        if (sizeClass >= 0) {
+            Stripe home = stripe();
+            buffer = (ByteBuffer) home.take(sizeClass, true);
+            for (int i = 0; buffer == null && i < stripes.length; i++)
+                if (stripes[i] != home)
+                    buffer = (ByteBuffer) stripes[i].take(sizeClass, true);
+        }
+
+        if (buffer != null)
+            hits.increment();
+        else {
+            misses.increment();
+            buffer = sizeClass >= 0 ? slab(sizeClass) : ByteBuffer.allocateDirect(size);
+        }
+
+        buffer.clear();
+        if (leakDetection)
+            lend(buffer);
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer from {@link #acquireDirect(int)}, which mustn't be
+     * used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !returned(buffer))
+            return;
+
+        int sizeClass = buffer.isDirect() ? exactClass(buffer.capacity()) : -1;
+        if (sizeClass < 0 || !stripe().put(sizeClass, true, buffer, limit(sizeClass)))
+            discards.increment();
+    }
+
+    /**
+     * Cuts a slab into buffers of a size class, keeping all but the one
+     * returned.
+     */
+    private ByteBuffer slab(int sizeClass) {
+        int size = 1 << (sizeClass + MIN_SHIFT);
+        int limit = limit(sizeClass);
+        // No more than the stripe will keep, since a slice that isn't kept holds on to the whole slab
+        int count = Math.max(1, Math.min(SLAB_SIZE / size, limit + 1));
+        ByteBuffer slab = ByteBuffer.allocateDirect(size * count);
+        if (count == 1)
+            return slab;
+
+        Stripe stripe = stripe();
+        for (int i = 1; i < count; i++) {
+            slab.limit((i + 1) * size).position(i * size);
+            if (!stripe.put(sizeClass, true, slab.slice(), limit))
+                break;
+        }
+        slab.limit(size).position(0);
+        return slab.slice();
+    }
+
+    private Stripe stripe() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+
+    private int limit(int sizeClass) {
+        return Math.max(2, retainedPerClass >> (sizeClass + MIN_SHIFT));
+    }
+
+    /**
+     * @return the smallest size class that holds {@code size} or -1 if none
+     *         does
+     */
+    private static int sizeClass(int size) {
+        if (size > 1 << MAX_SHIFT)
+            return -1;
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(0, shift - MIN_SHIFT);
+    }
+
+    /**
+     * @return the size class of exactly {@code size} bytes or -1
+     */
+    private static int exactClass(int size) {
+        int sizeClass = sizeClass(size);
+        return sizeClass >= 0 && 1 << (sizeClass + MIN_SHIFT) == size ? sizeClass : -1;
+    }
+
+    private void lend(Object buffer) {
+        reportLeaks();
+        Integer hash = System.identityHashCode(buffer);
+        synchronized (loans) {
+            List<Loan> list = loans.get(hash);
+            if (list == null)
+                loans.put(hash, list = new ArrayList<Loan>(1));
+            list.add(new Loan(buffer, collected));
+        }
+    }
+
+    /**
+     * @return false if leak detection found the buffer wasn't on loan, in
+     *         which case it mustn't be pooled
+     */
+    private boolean returned(Object buffer) {
+        releases.increment();
+        if (!leakDetection)
+            return true;
+
+        Integer hash = System.identityHashCode(buffer);
+        synchronized (loans) {
+            List<Loan> list = loans.get(hash);
+            if (list != null) {
+                for (int i = 0; i < list.size(); i++) {
+                    if (list.get(i).get() == buffer) {
+                        list.remove(i);
+                        if (list.isEmpty())
+                            loans.remove(hash);
+                        return true;
+                    }
+                }
+            }
+        }
+
+        // Buffers lent before leak detection was turned on end up here too
+        new Throwable("Buffer released twice or not acquired from the pool").printStackTrace();
+        return false;
+    }
+
+    private void reportLeaks() {
+        for (Loan loan; (loan = (Loan) collected.poll()) != null; ) {
+            synchronized (loans) {
+                List<Loan> list = loans.get(loan.hash);
+                if (list == null || !list.remove(loan))
+                    continue;
+                if (list.isEmpty())
+                    loans.remove(loan.hash);
+            }
+
+            leaks.increment();
+            loan.acquired.printStackTrace();
+        }
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * @return the number of buffers handed out from the pool
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of buffers that had to be allocated
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getReleases() {
+        return releases.sum();
+    }
+
+    /**
+     * @return the number of buffers given back that the pool didn't keep
+     */
+    public long getDiscards() {
+        return discards.sum();
+    }
+
+    /**
+     * @return the number of buffers found collected without being released,
+     *         while detecting leaks
+     */
+    public long getLeaks() {
+        reportLeaks();
+        return leaks.sum();
+    }
+
+    /**
+     * @return the bytes held by the pool, heap and direct
+     */
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes)
+            bytes += stripe.retainedBytes();
+        return bytes;
+    }
+
+    private static class Stripe {
+        private final Object[][][] buffers = new Object[2][CLASSES][];
+        private final int[][] counts = new int[2][CLASSES];
+
+        synchronized Object take(int sizeClass, boolean direct) {
+            int kind = direct ? 1 : 0;
+            int count = counts[kind][sizeClass];
+            if (count == 0)
+                return null;
+
+            Object[] stack = buffers[kind][sizeClass];
+            Object buffer = stack[--count];
+            stack[count] = null;
+            counts[kind][sizeClass] = count;
+            return buffer;
+        }
+
+        synchronized boolean put(int sizeClass, boolean direct, Object buffer, int limit) {
+            int kind = direct ? 1 : 0;
+            int count = counts[kind][sizeClass];
+            if (count >= limit)
+                return false;
+
+            Object[] stack = buffers[kind][sizeClass];
+            if (stack == null)
+                buffers[kind][sizeClass] = stack = new Object[limit];
+            stack[count] = buffer;
+            counts[kind][sizeClass] = count + 1;
+            return true;
+        }
+
+        synchronized long retainedBytes() {
+            long bytes = 0;
+            for (int sizeClass = 0; sizeClass < CLASSES; sizeClass++)
+                bytes += (long) (counts[0][sizeClass] + counts[1][sizeClass]) << (sizeClass + MIN_SHIFT);
+            return bytes;
+        }
+    }
+
+    /**
+     * A buffer on loan, which is queued if it's collected without being
+     * released.
+     */
+    private static class Loan extends WeakReference<Object> {
+        final Integer hash;
+        final Throwable acquired;
+
+        Loan(Object buffer, ReferenceQueue<Object> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            int size = buffer instanceof byte[] ? ((byte[]) buffer).length : ((ByteBuffer) buffer).capacity();
+            this.acquired = new Throwable("Buffer of " + size + " bytes never released, acquired");
+        }
+    }
+}
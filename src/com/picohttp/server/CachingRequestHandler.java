@@ -0,0 +1,437 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the responses of another RequestHandler in memory. GET responses are
+ * cached for as long as their {@code Cache-Control: max-age} (or
+ * {@code s-maxage}) allows, keyed on the method, host name, path, query
+ * string and any headers named with {@link #setVaryHeaders(String...)}. Only
+ * {@link SimpleResponse}s are cached since their bodies are already in
+ * memory.
+ * <p>
+ * The cache is split into independently locked segments, each evicting its
+ * least recently used entries once it holds more than its share of the byte
+ * limit. Cached responses carry an ETag so clients can revalidate with
+ * {@code If-None-Match} and get a 304.
+ */
+public class CachingRequestHandler implements RequestHandler {
+    private static final int SEGMENTS = 16;
+    /** Rough bookkeeping cost of an entry beyond its key, headers and body. */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final RequestHandler delegate;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long maxEntrySize;
+    private String[] varyHeaders = new String[0];
+    private long defaultTtl;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *            the most memory, roughly, the cached responses may use
+     */
+    public CachingRequestHandler(RequestHandler delegate, long maxBytes) {
+        this.delegate = delegate;
+        this.maxEntrySize = maxBytes / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(maxEntrySize);
+    }
+
+    /**
+     * Sets the request headers whose values are part of the cache key, for
+     * responses that depend on them.
+     */
+    public void setVaryHeaders(String... varyHeaders) {
+        this.varyHeaders = varyHeaders.clone();
+    }
+
+    /**
+     * @param defaultTtl
+     *            how long, in milliseconds, to cache responses without a
+     *            Cache-Control max-age, 0 (the default) not to cache them
+     */
+    public void setDefaultTtl(long defaultTtl) {
+        this.defaultTtl = defaultTtl;
+    }
+
+    @Override
+    public Response execute(Request request) {
+        String method = request.getMethod();
+        if (!(method.equals("GET") || method.equals("HEAD")) || request.getHeader("Authorization") != null)
+            return delegate.execute(request);
+
+        String key = key(request);
+        Segment segment = segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+        long now = System.currentTimeMillis();
+
+        String requestCacheControl = request.getHeader("Cache-Control");
+        if (requestCacheControl == null || !hasDirective(requestCacheControl, "no-cache")) {
+            Entry entry = segment.get(key, now);
+            if (entry != null) {
+                hits.incrementAndGet();
+
+                String ifNoneMatch = request.getHeader("If-None-Match");
+                if (ifNoneMatch != null && matches(ifNoneMatch, entry.etag))
+                    return notModified(entry);
+
+                return new CachedResponse(entry, now);
+            }
+        }
+
+        misses.incrementAndGet();
+
+        Response response = delegate.execute(request);
+        if (method.equals("GET") && response instanceof SimpleResponse) {
+            Entry entry = store((SimpleResponse) response, key, now);
+            if (entry != null) {
+                evictions.addAndGet(segment.put(key, entry));
+
+                String ifNoneMatch = request.getHeader("If-None-Match");
+                if (ifNoneMatch != null && matches(ifNoneMatch, entry.etag))
+                    return notModified(entry);
+            }
+        }
+
+        return response;
+    }
+
+    private String key(Request request) {
+        // A HEAD is answered from what the GET cached
+        String method = request.getMethod();
+        StringBuilder sb = new StringBuilder(method.equals("HEAD") ? "GET" : method).append(' ');
+
+        // Virtual hosts can serve different content under the same path
+        String hostname = request.getHostname();
+        if (hostname != null)
+            sb.append(hostname);
+        sb.append(' ').append(request.getPath());
+
+        String queryString = request.getQueryString();
+        if (queryString != null)
+            sb.append('?').append(queryString);
+
+        for (String name : varyHeaders) {
+            String value = request.getHeader(name);
+            sb.append('\n');
+            if (value != null)
+                sb.append(value);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return a cache entry for the response or null if it mustn't be cached
+     */
+    private Entry store(SimpleResponse response, String key, long now) {
+        int status = response.getStatusCode();
+        if (status != 200 && status != 203 && status != 301 && status != 404 && status != 410)
+            return null;
+
+        long ttl = ttl(response.getHeader("Cache-Control"));
+        if (ttl <= 0 || response.getHeader("Set-Cookie") != null)
+            return null;
+
+        Object vary = response.getHeader("Vary");
+        if (vary != null && !isVaryCovered(vary.toString()))
+            return null;
+
+        byte[] body = response.getBody();
+        if (body == null)
+            body = new byte[0];
+
+        Object etag = response.getHeader("ETag");
+        if (etag == null) {
+            etag = etag(body);
+            response.setHeader("ETag", etag);
+        }
+
+        ResponseHead headers = ResponseHead.get();
+        for (Map.Entry<String, Object> header : response.getHeaders().entrySet()) {
+            String name = header.getKey();
+            // The date is added when the entry is sent
+            if (name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Keep-Alive")
+                    || name.equalsIgnoreCase("Date"))
+                continue;
+
+            headers.header(name, header.getValue());
+        }
+        if (response.getHeader("Content-Length") == null)
+            headers.header("Content-Length", body.length);
+
+        Entry entry = new Entry(status, response.getStatusMessage(), headers.toByteArray(), body,
+                etag.toString(), now, now + ttl);
+        entry.size = ENTRY_OVERHEAD + key.length() * 2 + entry.headers.length + body.length;
+
+        return entry.size <= maxEntrySize ? entry : null;
+    }
+
+    /**
+     * @return how long the Cache-Control allows the response to be cached, 0
+     *         if it doesn't
+     */
+    private long ttl(Object cacheControl) {
+        if (cacheControl == null)
+            return defaultTtl;
+
+        long maxAge = -1;
+        for (String directive : cacheControl.toString().toLowerCase(Locale.ENGLISH).split(",")) {
+            directive = directive.trim();
+            if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private"))
+                return 0;
+
+            try {
+                if (directive.startsWith("s-maxage="))
+                    return Long.parseLong(directive.substring(9).trim()) * 1000;
+                if (directive.startsWith("max-age="))
+                    maxAge = Long.parseLong(directive.substring(8).trim()) * 1000;
+            }
+            catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        return maxAge >= 0 ? maxAge : defaultTtl;
+    }
+
+    private boolean isVaryCovered(String vary) {
+        for (String name : vary.split(",")) {
+            name = name.trim();
+            boolean covered = false;
+            for (String varyHeader : varyHeaders)
+                covered |= varyHeader.equalsIgnoreCase(name);
+            if (!covered)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        for (String part : cacheControl.split(","))
+            if (part.trim().equalsIgnoreCase(directive))
+                return true;
+        return false;
+    }
+
+    private static boolean matches(String header, String etag) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a strong ETag from a 64 bit FNV-1a hash of the body
+     */
+    static String etag(byte[] body) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : body) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return '"' + Long.toHexString(hash) + '-' + Integer.toHexString(body.length) + '"';
+    }
+
+    private static SimpleResponse notModified(Entry entry) {
+        SimpleResponse response = new SimpleResponse();
+        response.setStatusCode(304);
+        response.setStatusMessage("Not Modified");
+        response.setHeader("ETag", entry.etag);
+        return response;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the approximate number of bytes held by the cache
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.getSize();
+        return size;
+    }
+
+    public int getEntryCount() {
+        int count = 0;
+        for (Segment segment : segments)
+            count += segment.getEntryCount();
+        return count;
+    }
+
+    /**
+     * Removes every cached response.
+     */
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    static class Entry {
+        final int statusCode;
+        final String statusMessage;
+        final byte[] headers;
+        final byte[] body;
+        final String etag;
+        final long created;
+        final long expires;
+        long size;
+
+        Entry(int statusCode, String statusMessage, byte[] headers, byte[] body, String etag,
+                long created, long expires) {
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+            this.headers = headers;
+            this.body = body;
+            this.etag = etag;
+            this.created = created;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * One independently locked part of the cache, kept in least recently used
+     * order.
+     */
+    private static class Segment {
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final long maxBytes;
+        private long size;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Entry get(String key, long now) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expires <= now) {
+                entries.remove(key);
+                size -= entry.size;
+                return null;
+            }
+            return entry;
+        }
+
+        /**
+         * @return the number of entries evicted to make room
+         */
+        synchronized int put(String key, Entry entry) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null)
+                size -= previous.size;
+            size += entry.size;
+
+            int evicted = 0;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (size > maxBytes && eldest.hasNext()) {
+                Entry e = eldest.next();
+                eldest.remove();
+                size -= e.size;
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+
+        synchronized int getEntryCount() {
+            return entries.size();
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Writes a cached entry's pre-serialized headers and body.
+     */
+    private static class CachedResponse implements PersistentResponse {
+        private final Entry entry;
+        private final long now;
+        private String protocol = "HTTP/1.0";
+        private String connection;
+        private boolean headRequest;
+
+        CachedResponse(Entry entry, long now) {
+            this.entry = entry;
+            this.now = now;
+        }
+
+        @Override
+        public boolean prepare(Request request, boolean keepAlive) {
+            if ("HTTP/1.1".equals(request.getProtocol()))
+                protocol = "HTTP/1.1";
+            headRequest = "HEAD".equals(request.getMethod());
+
+            if (!keepAlive)
+                connection = "close";
+            else if (!protocol.equals("HTTP/1.1"))
+                connection = "keep-alive";
+
+            return keepAlive;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return entry.statusCode;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            ResponseHead head = ResponseHead.get();
+            head.statusLine(protocol, entry.statusCode, entry.statusMessage);
+            head.append(entry.headers);
+            head.header("Age", (now - entry.created) / 1000);
+            if (connection != null)
+                head.header("Connection", connection);
+            head.date();
+            head.end();
+
+            head.writeTo(out, headRequest ? null : entry.body);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A buffered OutputStream over a non-blocking SocketChannel. When the socket's
+ * send buffer is full the calling thread waits on a private Selector so the
+ * channel can stay registered with its event loop, for no longer than the
+ * {@link ConnectionGuard}'s write timeout. With a {@link TlsChannel}
+ * everything is encrypted through it, and files are copied rather than
+ * transferred by the kernel.
+ */
+class ChannelOutputStream extends OutputStream implements FileTransfer, GatheringOutput, CountingOutput {
+    private static final ThreadLocal<Selector> SELECTORS = new ThreadLocal<Selector>();
+
+    private final SocketChannel channel;
+    /** Null for plain HTTP */
+    private final TlsChannel tls;
+    /** What's written to, the channel or TLS over it */
+    private final GatheringByteChannel target;
+    private final ConnectionGuard guard;
+    private ByteBuffer buffer;
+    private long bytesWritten;
+
+    /**
+     * @param tls
+     *            the TLS channel over {@code channel} to write through or null
+     * @param guard
+     *            whose write timeout to keep to or null to wait however long
+     *            it takes
+     */
+    ChannelOutputStream(SocketChannel channel, TlsChannel tls, int bufferSize, ConnectionGuard guard) {
+        this.channel = channel;
+        this.tls = tls;
+        this.target = tls != null ? tls : channel;
+        this.guard = guard;
+        this.buffer = BufferPool.getDefault().acquireDirect(bufferSize);
+    }
+
+    /**
+     * Gives the buffer back to the {@link BufferPool} once the channel has
+     * been closed, leaving an empty one.
+     */
+    void release() {
+        BufferPool.getDefault().release(buffer);
+        buffer = ByteBuffer.allocate(0);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining())
+            flushBuffer();
+        buffer.put((byte) b);
+        bytesWritten++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        bytesWritten += len;
+        if (len > buffer.remaining()) {
+            flushBuffer();
+
+            if (len >= buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void write(byte[] head, int headLength, byte[] body, int offset, int length) throws IOException {
+        buffer.flip();
+        ByteBuffer[] buffers = { buffer, ByteBuffer.wrap(head, 0, headLength), ByteBuffer.wrap(body, offset, length) };
+        while (buffers[2].hasRemaining()) {
+            if (target.write(buffers) == 0)
+                awaitWritable();
+        }
+        finishWrite();
+        buffer.clear();
+        bytesWritten += headLength + length;
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        flushBuffer();
+
+        if (tls != null) {
+            FileResponse.copy(file, position, count, this);
+            flushBuffer();
+            return;
+        }
+
+        while (count > 0) {
+            long sent = file.transferTo(position, count, channel);
+            if (sent == 0) {
+                if (position >= file.size())
+                    throw new IOException("File truncated while being sent");
+                awaitWritable();
+            }
+            position += sent;
+            count -= sent;
+            bytesWritten += sent;
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (target.write(src) == 0)
+                awaitWritable();
+        }
+        finishWrite();
+    }
+
+    /**
+     * Waits for TLS to send the last of what it has encrypted.
+     */
+    private void finishWrite() throws IOException {
+        if (tls != null)
+            while (!tls.flush())
+                awaitWritable();
+    }
+
+    private void awaitWritable() throws IOException {
+        Selector selector = SELECTORS.get();
+        if (selector == null) {
+            selector = Selector.open();
+            SELECTORS.set(selector);
+        }
+
+        int timeout = guard != null ? guard.getWriteTimeout() : 0;
+        long start = System.nanoTime();
+        SelectionKey key = channel.register(selector, SelectionKey.OP_WRITE);
+        try {
+            if (selector.select(timeout) == 0) {
+                if (!channel.isOpen())
+                    throw new SocketTimeoutException("Channel closed while waiting to write");
+                if (timeout > 0 && System.nanoTime() - start >= timeout * 1000000L) {
+                    guard.violated(ConnectionGuard.Violation.WRITE_TIMEOUT);
+                    throw new SocketTimeoutException("Client took longer than " + timeout + "ms to take the response");
+                }
+            }
+        }
+        finally {
+            key.cancel();
+            selector.selectNow();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a {@code Transfer-Encoding: chunked} request body. The end of the
+ * stream is the last chunk; any trailers after it are read and discarded.
+ * Closing it leaves the underlying stream open.
+ */
+class ChunkedInputStream extends InputStream {
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final InputStream in;
+    private long remaining;
+    private boolean first = true;
+    private boolean done;
+
+    ChunkedInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk())
+            return -1;
+
+        int b = in.read();
+        if (b == -1)
+            throw new EOFException("Connection closed in the middle of a chunk");
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!nextChunk())
+            return -1;
+
+        int count = in.read(b, off, (int) Math.min(len, remaining));
+        if (count == -1)
+            throw new EOFException("Connection closed in the middle of a chunk");
+        remaining -= count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return done ? 0 : (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Moves on to the next chunk if the current one has been read.
+     * 
+     * @return false once the last chunk has been reached
+     */
+    private boolean nextChunk() throws IOException {
+        if (done)
+            return false;
+        if (remaining > 0)
+            return true;
+
+        if (!first && readLine().length() != 0)
+            throw new IOException("Chunk not followed by CRLF");
+        first = false;
+
+        String line = readLine();
+        int end = line.indexOf(';');
+        String size = (end < 0 ? line : line.substring(0, end)).trim();
+        // Hex digits only, not the sign Long.parseLong would take
+        if (size.length() == 0 || size.length() > 15)
+            throw new IOException("Invalid chunk size: " + line);
+        remaining = 0;
+        for (int i = 0; i < size.length(); i++) {
+            int digit = Character.digit(size.charAt(i), 16);
+            if (digit < 0)
+                throw new IOException("Invalid chunk size: " + line);
+            remaining = remaining * 16 + digit;
+        }
+
+        if (remaining == 0) {
+            // Skip the trailers
+            while (readLine().length() > 0)
+                ;
+            done = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                throw new EOFException("Connection closed while reading a chunk header");
+            if (b != '\r')
+                sb.append((char) b);
+            if (sb.length() > MAX_LINE_LENGTH)
+                throw new IOException("Chunk header too long");
+        }
+
+        return sb.toString();
+    }
+}
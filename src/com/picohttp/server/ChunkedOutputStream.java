@@ -0,0 +1,143 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects a streamed response body into chunks of a fixed size and flushes
+ * each one to the connection as soon as it is full. With {@code encode} set
+ * the chunks are framed for {@code Transfer-Encoding: chunked}, otherwise they
+ * are written as they are and, if the length is known, checked against it.
+ * Closing it finishes the body but leaves the connection open.
+ */
+class ChunkedOutputStream extends OutputStream {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    private final OutputStream out;
+    private final boolean encode;
+    private final long contentLength;
+    private final int chunkSize;
+    private byte[] buffer;
+    private final byte[] sizeLine = new byte[10];
+    private int count;
+    private long written;
+    private boolean finished;
+
+    /**
+     * @param contentLength
+     *            the promised length of the body or -1 if it isn't known
+     */
+    ChunkedOutputStream(OutputStream out, int chunkSize, boolean encode, long contentLength) {
+        this.out = out;
+        this.encode = encode;
+        this.contentLength = contentLength;
+        this.chunkSize = chunkSize;
+        this.buffer = BufferPool.getDefault().acquire(chunkSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunkSize)
+            writeChunk();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == chunkSize)
+                writeChunk();
+
+            int n = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Sends whatever has been written so far as a chunk.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+    }
+
+    private void writeChunk() throws IOException {
+        if (finished || buffer == null)
+            throw new IOException("Response body already finished");
+        if (count == 0)
+            return;
+
+        written += count;
+        if (contentLength >= 0 && written > contentLength)
+            throw new IOException("Response body longer than its Content-Length of " + contentLength);
+
+        if (encode) {
+            int p = sizeLine.length;
+            sizeLine[--p] = '\n';
+            sizeLine[--p] = '\r';
+            int size = count;
+            do {
+                sizeLine[--p] = HEX[size & 0xf];
+                size >>>= 4;
+            } while (size != 0);
+            out.write(sizeLine, p, sizeLine.length - p);
+            out.write(buffer, 0, count);
+            out.write(CRLF);
+        }
+        else
+            out.write(buffer, 0, count);
+
+        count = 0;
+        out.flush();
+    }
+
+    /**
+     * Writes the rest of the body and, for chunked bodies, the last chunk.
+     */
+    @Override
+    public void close() throws IOException {
+        if (finished)
+            return;
+
+        writeChunk();
+        finished = true;
+
+        if (encode) {
+            out.write(LAST_CHUNK);
+            out.flush();
+        }
+        else if (contentLength >= 0 && written != contentLength)
+            throw new IOException("Response body of " + written + " bytes doesn't match its Content-Length of "
+                    + contentLength);
+    }
+
+    /**
+     * Gives the buffer back to the {@link BufferPool}, whether or not the body
+     * was finished. Nothing more can be written.
+     */
+    void release() {
+        BufferPool.getDefault().release(buffer);
+        buffer = null;
+    }
+}
@@ -0,0 +1,148 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses into gzip or zlib ({@code Content-Encoding: deflate}) format,
+ * keeping count of the bytes in and out and of the time spent in the
+ * Deflater. Closing it finishes the compressed stream but leaves the
+ * underlying stream open.
+ */
+class CompressingOutputStream extends OutputStream {
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final OutputStream out;
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] buffer = BufferPool.getDefault().acquire(8192);
+    private final byte[] single = new byte[1];
+    private long bytesIn;
+    private long bytesOut;
+    private long nanos;
+    private boolean finished;
+
+    CompressingOutputStream(OutputStream out, String encoding, int level) throws IOException {
+        this.out = out;
+        this.gzip = encoding.equals("gzip");
+        this.deflater = new Deflater(level, gzip);
+        this.crc = gzip ? new CRC32() : null;
+
+        if (gzip) {
+            out.write(GZIP_HEADER);
+            bytesOut += GZIP_HEADER.length;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished)
+            throw new IOException("Compressed stream already finished");
+        if (len == 0)
+            return;
+
+        bytesIn += len;
+        if (gzip)
+            crc.update(b, off, len);
+
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput())
+            deflate(Deflater.NO_FLUSH);
+    }
+
+    /**
+     * Flushes whatever has been compressed so far to the client.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!finished)
+            deflate(Deflater.SYNC_FLUSH);
+        out.flush();
+    }
+
+    private void deflate(int flush) throws IOException {
+        int count;
+        do {
+            long start = System.nanoTime();
+            count = deflater.deflate(buffer, 0, buffer.length, flush);
+            nanos += System.nanoTime() - start;
+
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                bytesOut += count;
+            }
+        } while (count == buffer.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+
+        try {
+            deflater.finish();
+            while (!deflater.finished()) {
+                long start = System.nanoTime();
+                int count = deflater.deflate(buffer);
+                nanos += System.nanoTime() - start;
+                out.write(buffer, 0, count);
+                bytesOut += count;
+            }
+        }
+        finally {
+            deflater.end();
+            BufferPool.getDefault().release(buffer);
+        }
+
+        if (gzip) {
+            writeInt((int) crc.getValue());
+            writeInt((int) bytesIn);
+            bytesOut += 8;
+        }
+    }
+
+    private void writeInt(int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    long getBytesOut() {
+        return bytesOut;
+    }
+
+    long getNanos() {
+        return nanos;
+    }
+}
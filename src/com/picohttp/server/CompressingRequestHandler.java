@@ -0,0 +1,418 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the responses of another RequestHandler with gzip or deflate,
+ * whichever the client prefers in its Accept-Encoding. Bodies smaller than
+ * {@link #setMinSize(int)} or whose Content-Type isn't compressible are sent
+ * as they are.
+ * <p>
+ * {@link SimpleResponse} bodies are compressed in memory and
+ * {@link StreamingResponse} bodies while they are written. Responses with a
+ * strong ETag, including {@link FileResponse}s up to
+ * {@link #setMaxVariantSize(int)}, keep their compressed form in a bounded
+ * cache so repeated and static bodies are only compressed once. Compressed
+ * responses get a weak ETag, the way a client would see them from any other
+ * content-coding server, which the built-in handlers still match.
+ * <p>
+ * When combined with {@link CachingRequestHandler}, wrap the compressing
+ * handler in the caching one and add Accept-Encoding to its vary headers.
+ */
+public class CompressingRequestHandler implements RequestHandler {
+    private final RequestHandler delegate;
+    private int minSize = 1024;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private List<String> compressibleTypes = new ArrayList<String>(Arrays.asList("text/", "application/json",
+            "application/javascript", "application/xml", "application/xhtml+xml", "image/svg+xml"));
+    private int maxVariantSize = 1024 * 1024;
+    private final VariantCache variants = new VariantCache(16 * 1024 * 1024);
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong variantHits = new AtomicLong();
+
+    public CompressingRequestHandler(RequestHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Response execute(Request request) {
+        Response response = delegate.execute(request);
+
+        String encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null || !(response instanceof AbstractResponse))
+            return response;
+
+        AbstractResponse r = (AbstractResponse) response;
+        if (r.getStatusCode() != 200 || r.getHeader("Content-Encoding") != null
+                || !isCompressible(r.getHeader("Content-Type")))
+            return response;
+
+        try {
+            if (response instanceof SimpleResponse)
+                compress((SimpleResponse) response, request, encoding);
+            else if (response instanceof StreamingResponse)
+                compress((StreamingResponse) response, encoding);
+            else if (response instanceof FileResponse)
+                return compress((FileResponse) response, encoding);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return response;
+    }
+
+    private void compress(SimpleResponse response, Request request, String encoding) throws IOException {
+        byte[] body = response.getBody();
+        if (body == null || body.length < minSize)
+            return;
+
+        String etag = strongETag(response.getHeader("ETag"));
+        String key = etag != null ? variantKey(request.getHostname() + request.getUri(), etag, encoding) : null;
+        byte[] variant = key != null ? variants.get(key) : null;
+        if (variant != null)
+            variantHits.incrementAndGet();
+        else {
+            variant = compress(body, encoding);
+            if (key != null && variant.length <= maxVariantSize)
+                variants.put(key, variant);
+        }
+
+        response.setBody(variant);
+        encoded(response, encoding);
+    }
+
+    private void compress(StreamingResponse response, final String encoding) {
+        Object length = response.getHeader("Content-Length");
+        if (length != null && Long.parseLong(length.toString()) < minSize)
+            return;
+
+        final StreamingResponse.BodyWriter bodyWriter = response.getBodyWriter();
+        response.setBodyWriter(new StreamingResponse.BodyWriter() {
+            @Override
+            public void writeBody(OutputStream out) throws IOException {
+                CompressingOutputStream compressor = new CompressingOutputStream(out, encoding, level);
+                try {
+                    bodyWriter.writeBody(compressor);
+                }
+                finally {
+                    compressor.close();
+                    record(compressor);
+                }
+            }
+        });
+
+        // The compressed length isn't known until it has been sent
+        response.removeHeader("Content-Length");
+        encoded(response, encoding);
+    }
+
+    private Response compress(FileResponse response, String encoding) throws IOException {
+        String etag = strongETag(response.getHeader("ETag"));
+        if (etag == null || response.getLength() < minSize || response.getLength() > maxVariantSize)
+            return response;
+
+        String key = variantKey(response.getFile().getPath(), etag, encoding);
+        byte[] variant = variants.get(key);
+        if (variant != null)
+            variantHits.incrementAndGet();
+        else {
+            variant = compress(read(response.getFile(), response.getOffset(), response.getLength()), encoding);
+            variants.put(key, variant);
+        }
+
+        SimpleResponse compressed = new SimpleResponse();
+        for (Map.Entry<String, Object> header : response.getHeaders().entrySet())
+            compressed.setHeader(header.getKey(), header.getValue());
+        // Ranges would apply to the compressed bytes
+        compressed.removeHeader("Accept-Ranges");
+        compressed.setBody(variant);
+        encoded(compressed, encoding);
+        return compressed;
+    }
+
+    /**
+     * @return the cache key of a resource's compressed form. The ETag alone
+     *         isn't enough, FileRequestHandler's is only the modification time
+     *         and size, and a handler may give the same one to many paths.
+     */
+    private static String variantKey(String resource, String etag, String encoding) {
+        return resource + '\0' + etag + '\0' + encoding;
+    }
+
+    private byte[] compress(byte[] body, String encoding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+
+        CompressingOutputStream compressor = new CompressingOutputStream(out, encoding, level);
+        compressor.write(body);
+        compressor.close();
+        record(compressor);
+
+        return out.toByteArray();
+    }
+
+    private static byte[] read(File file, long offset, long length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            while (data.hasRemaining())
+                if (channel.read(data, offset + data.position()) < 0)
+                    throw new EOFException(file + " is shorter than " + (offset + length) + " bytes");
+        }
+        finally {
+            channel.close();
+        }
+        return data.array();
+    }
+
+    private void encoded(AbstractResponse response, String encoding) {
+        response.setHeader("Content-Encoding", encoding);
+
+        Object vary = response.getHeader("Vary");
+        if (vary == null)
+            response.setHeader("Vary", "Accept-Encoding");
+        else if (!vary.toString().toLowerCase(Locale.ENGLISH).contains("accept-encoding"))
+            response.setHeader("Vary", vary + ", Accept-Encoding");
+
+        String etag = strongETag(response.getHeader("ETag"));
+        if (etag != null)
+            response.setHeader("ETag", "W/" + etag);
+    }
+
+    private void record(CompressingOutputStream compressor) {
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(compressor.getBytesIn());
+        bytesOut.addAndGet(compressor.getBytesOut());
+        compressNanos.addAndGet(compressor.getNanos());
+    }
+
+    private static String strongETag(Object etag) {
+        return etag != null && etag.toString().startsWith("\"") ? etag.toString() : null;
+    }
+
+    /**
+     * @return "gzip", "deflate" or null if the client accepts neither
+     */
+    String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+
+        float gzip = -1, deflate = -1, any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String coding = part;
+            float q = 1;
+            int semicolon = part.indexOf(';');
+            if (semicolon >= 0) {
+                coding = part.substring(0, semicolon);
+                String parameter = part.substring(semicolon + 1).trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(parameter.substring(2).trim());
+                    }
+                    catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+
+            coding = coding.trim().toLowerCase(Locale.ENGLISH);
+            if (coding.equals("gzip") || coding.equals("x-gzip"))
+                gzip = q;
+            else if (coding.equals("deflate"))
+                deflate = q;
+            else if (coding.equals("*"))
+                any = q;
+        }
+
+        if (gzip < 0)
+            gzip = any;
+        if (deflate < 0)
+            deflate = any;
+
+        if (gzip > 0 && gzip >= deflate)
+            return "gzip";
+        if (deflate > 0)
+            return "deflate";
+        return null;
+    }
+
+    private boolean isCompressible(Object contentType) {
+        if (contentType == null)
+            return false;
+
+        String type = contentType.toString().toLowerCase(Locale.ENGLISH);
+        for (String compressible : compressibleTypes)
+            if (type.startsWith(compressible))
+                return true;
+        return false;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * @param minSize
+     *            the smallest body worth compressing, in bytes
+     */
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param level
+     *            the Deflater compression level, 1 (fastest) to 9 (smallest)
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public List<String> getCompressibleTypes() {
+        return compressibleTypes;
+    }
+
+    /**
+     * @param compressibleTypes
+     *            Content-Type prefixes to compress, e.g. "text/" or
+     *            "application/json"
+     */
+    public void setCompressibleTypes(List<String> compressibleTypes) {
+        this.compressibleTypes = compressibleTypes;
+    }
+
+    public int getMaxVariantSize() {
+        return maxVariantSize;
+    }
+
+    /**
+     * @param maxVariantSize
+     *            the largest compressed body kept for reuse, which is also the
+     *            largest file compressed at all
+     */
+    public void setMaxVariantSize(int maxVariantSize) {
+        this.maxVariantSize = maxVariantSize;
+    }
+
+    /**
+     * @param maxBytes
+     *            the memory available for keeping compressed bodies
+     */
+    public void setVariantCacheSize(long maxBytes) {
+        variants.setMaxBytes(maxBytes);
+    }
+
+    /**
+     * @return the number of bodies compressed
+     */
+    public long getCompressedCount() {
+        return compressed.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * @return the bytes compression has kept off the wire
+     */
+    public long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    /**
+     * @return the time spent in the Deflater, in nanoseconds
+     */
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    /**
+     * @return the number of bodies served from the compressed variant cache
+     */
+    public long getVariantHits() {
+        return variantHits.get();
+    }
+
+    /**
+     * Compressed bodies by ETag and encoding, evicting the least recently used
+     * beyond a byte limit.
+     */
+    private static class VariantCache {
+        private final LinkedHashMap<String, byte[]> variants = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+        private long maxBytes;
+        private long size;
+
+        VariantCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(String key) {
+            return variants.get(key);
+        }
+
+        synchronized void put(String key, byte[] variant) {
+            byte[] previous = variants.put(key, variant);
+            if (previous != null)
+                size -= previous.length;
+            size += variant.length;
+            evict();
+        }
+
+        synchronized void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            evict();
+        }
+
+        private void evict() {
+            Iterator<byte[]> eldest = variants.values().iterator();
+            while (size > maxBytes && eldest.hasNext()) {
+                size -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+}
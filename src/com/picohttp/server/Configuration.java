@@ -0,0 +1,462 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Tuning options for a {@link PicoHttp} instance. The values are read when the
+ * server starts so changing them afterwards has no effect.
+ */
+public class Configuration {
+    private int maxThreads = 20;
+    private int keepAliveTimeout = 15000;
+    private int maxRequestsPerConnection = 1000;
+    private EngineType engineType = EngineType.BLOCKING;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int maxRequestSize = 1024 * 1024;
+    private Dispatcher dispatcher;
+    private int asyncTimeout = 30000;
+    private int maxPipelineDepth = 16;
+    private Instrumentation instrumentation;
+    private int acceptors = 1;
+    private int backlog;
+    private int maxQueueDepth = 1024;
+    private int queueTarget = 5;
+    private int queueInterval = 100;
+    private int maxConnectionsPerClient;
+    private int retryAfter = 1;
+    private int headTimeout = 10000;
+    private int bodyTimeout = 30000;
+    private int writeTimeout = 30000;
+    private int maxHeaderCount = 100;
+    private int maxHeaderLineLength = 8192;
+    private SSLContext sslContext;
+    private String[] tlsProtocols;
+    private String[] cipherSuites;
+    private int sessionCacheSize = 20480;
+    private int sessionTimeout = 86400;
+    private String[] applicationProtocols;
+    private ApplicationProtocolSelector applicationProtocolSelector;
+    private boolean http2Enabled;
+    private int maxConcurrentStreams = 100;
+    private int initialWindowSize = 65535;
+    private int headerTableSize = 4096;
+
+    /**
+     * @return the number of worker threads when no Dispatcher has been set
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * @return how long, in milliseconds, an idle persistent connection is kept
+     *         open while waiting for the next request
+     */
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * @return the number of requests served on a single connection before it
+     *         is closed; 1 disables keep-alive
+     */
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    public EngineType getEngineType() {
+        return engineType;
+    }
+
+    public void setEngineType(EngineType engineType) {
+        this.engineType = engineType;
+    }
+
+    /**
+     * @return the number of selector threads used by {@link EngineType#NIO}
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * @return the largest request, head and body, {@link EngineType#NIO} will
+     *         buffer before handing it to the RequestHandler
+     */
+    public int getMaxRequestSize() {
+        return maxRequestSize;
+    }
+
+    public void setMaxRequestSize(int maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * @return the Dispatcher serving connections or null to use a
+     *         {@link ThreadPoolDispatcher} with {@link #getMaxThreads()}
+     *         threads
+     */
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public void setDispatcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @return how long, in milliseconds, an {@link AsyncRequestHandler} has to
+     *         answer before the request gets a 503; 0 waits forever
+     */
+    public int getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    public void setAsyncTimeout(int asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * @return the most responses to pipelined requests held back so they can
+     *         be sent with a single write; 1 sends every response on its own
+     */
+    public int getMaxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
+    public void setMaxPipelineDepth(int maxPipelineDepth) {
+        this.maxPipelineDepth = maxPipelineDepth;
+    }
+
+    /**
+     * @return what's told about each stage of serving a request, or null to
+     *         not measure anything
+     * @see ServerMetrics
+     */
+    public Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    public void setInstrumentation(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    /**
+     * @return the number of threads accepting connections. Where the platform
+     *         supports {@code SO_REUSEPORT} each has its own listening socket
+     *         on the port and the kernel spreads new connections between
+     *         them, otherwise they share a single one.
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * @return the length of each listening socket's queue of connections
+     *         waiting to be accepted, or 0 for four per worker thread and at
+     *         least 50
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * @return the most tasks left waiting for a worker before further
+     *         connections and requests are turned away with a 503, or 0 for
+     *         no limit
+     * @see AdmissionControl
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    /**
+     * @return how long, in milliseconds, work may wait for a worker once the
+     *         queue has stood for a whole {@link #getQueueInterval()} before
+     *         it's turned away with a 503, or 0 to wait however long it takes
+     */
+    public int getQueueTarget() {
+        return queueTarget;
+    }
+
+    public void setQueueTarget(int queueTarget) {
+        this.queueTarget = queueTarget;
+    }
+
+    /**
+     * @return how long, in milliseconds, work may wait for a worker while the
+     *         queue still empties now and then
+     */
+    public int getQueueInterval() {
+        return queueInterval;
+    }
+
+    public void setQueueInterval(int queueInterval) {
+        this.queueInterval = queueInterval;
+    }
+
+    /**
+     * @return the most connections a single client address may have open, or
+     *         0 for no limit
+     */
+    public int getMaxConnectionsPerClient() {
+        return maxConnectionsPerClient;
+    }
+
+    public void setMaxConnectionsPerClient(int maxConnectionsPerClient) {
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+    }
+
+    /**
+     * @return the seconds a client turned away with a 503 is told to wait
+     *         before trying again
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return how long, in milliseconds, a client has from the first byte of a
+     *         request to the end of its head before the connection is closed,
+     *         or 0 for no limit
+     * @see ConnectionGuard
+     */
+    public int getHeadTimeout() {
+        return headTimeout;
+    }
+
+    public void setHeadTimeout(int headTimeout) {
+        this.headTimeout = headTimeout;
+    }
+
+    /**
+     * @return how long, in milliseconds, each read of a request body may wait
+     *         for the client before the connection is closed, or 0 for no
+     *         limit
+     */
+    public int getBodyTimeout() {
+        return bodyTimeout;
+    }
+
+    public void setBodyTimeout(int bodyTimeout) {
+        this.bodyTimeout = bodyTimeout;
+    }
+
+    /**
+     * @return how long, in milliseconds, each write of a response may wait for
+     *         the client to take it before the connection is closed, or 0 for
+     *         no limit
+     */
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * @return the most headers a request may have, or 0 for no limit
+     */
+    public int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    public void setMaxHeaderCount(int maxHeaderCount) {
+        this.maxHeaderCount = maxHeaderCount;
+    }
+
+    /**
+     * @return the longest line, in bytes, of a request head, the request line
+     *         included, or 0 for no limit
+     */
+    public int getMaxHeaderLineLength() {
+        return maxHeaderLineLength;
+    }
+
+    public void setMaxHeaderLineLength(int maxHeaderLineLength) {
+        this.maxHeaderLineLength = maxHeaderLineLength;
+    }
+
+    /**
+     * @return the SSLContext, holding the server's key and certificate, to
+     *         serve HTTPS with, or null to serve plain HTTP. TLS needs a
+     *         Request type with a {@code (Connection)} constructor.
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * @return the TLS versions to allow, such as "TLSv1.3", or null for the
+     *         SSLContext's defaults
+     */
+    public String[] getTlsProtocols() {
+        return tlsProtocols;
+    }
+
+    public void setTlsProtocols(String... tlsProtocols) {
+        this.tlsProtocols = tlsProtocols;
+    }
+
+    /**
+     * @return the cipher suites to allow, most preferred first, or null for
+     *         the SSLContext's defaults
+     */
+    public String[] getCipherSuites() {
+        return cipherSuites;
+    }
+
+    public void setCipherSuites(String... cipherSuites) {
+        this.cipherSuites = cipherSuites;
+    }
+
+    /**
+     * @return the most TLS sessions kept so returning clients can skip the
+     *         full handshake, or 0 for no limit
+     */
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    public void setSessionCacheSize(int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+    }
+
+    /**
+     * @return how long, in seconds, a TLS session can be resumed for, or 0
+     *         for no limit
+     */
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    public void setSessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * @return the protocols, such as "http/1.1", to offer with ALPN, most
+     *         preferred first, or null to not use ALPN. Needs Java 9 or later.
+     */
+    public String[] getApplicationProtocols() {
+        return applicationProtocols;
+    }
+
+    public void setApplicationProtocols(String... applicationProtocols) {
+        this.applicationProtocols = applicationProtocols;
+    }
+
+    /**
+     * @return what chooses the ALPN protocol in place of
+     *         {@link #getApplicationProtocols()}, or null
+     */
+    public ApplicationProtocolSelector getApplicationProtocolSelector() {
+        return applicationProtocolSelector;
+    }
+
+    public void setApplicationProtocolSelector(ApplicationProtocolSelector applicationProtocolSelector) {
+        this.applicationProtocolSelector = applicationProtocolSelector;
+    }
+
+    /**
+     * @return true if clients may speak HTTP/2 without TLS, with prior
+     *         knowledge or by upgrading from HTTP/1.1, and over TLS when "h2"
+     *         is agreed with ALPN
+     */
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    /**
+     * @return the most requests an HTTP/2 client may have in progress on one
+     *         connection, beyond which new streams are refused
+     */
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    /**
+     * @return how many bytes of each request body, and of all the bodies on a
+     *         connection together, an HTTP/2 client may send before it's
+     *         given more credit
+     */
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    public void setInitialWindowSize(int initialWindowSize) {
+        this.initialWindowSize = initialWindowSize;
+    }
+
+    /**
+     * @return the size, in bytes, of the table HTTP/2 clients may compress
+     *         request headers against
+     */
+    public int getHeaderTableSize() {
+        return headerTableSize;
+    }
+
+    public void setHeaderTableSize(int headerTableSize) {
+        this.headerTableSize = headerTableSize;
+    }
+}
@@ -0,0 +1,346 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * A client connection which may carry several requests one after the other.
+ * The input stream is shared by all of them so anything buffered past the end
+ * of one request is still there for the next.
+ * <p>
+ * Request implementations with a {@code (Connection)} constructor must hand
+ * their body stream to {@link #setBody(InputStream)} so the server can skip
+ * whatever the handler didn't read.
+ */
+public class Connection {
+    /** The most we'll read to get past an unread body rather than just closing. */
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private final Socket socket;
+    private final HttpInputStream inputStream;
+    private final OutputStream outputStream;
+    private final ConnectionGuard guard;
+    /** Null unless the connection is encrypted */
+    private final TlsChannel tls;
+    private InputStream body;
+    private int requestCount;
+    private boolean lingering;
+    private int unflushed;
+    private long bytesRead;
+    private long bytesWritten;
+
+    public Connection(Socket socket) throws IOException {
+        this(socket, socket.getInputStream(), new SocketOutputStream(socket));
+    }
+
+    public Connection(Socket socket, InputStream inputStream, OutputStream outputStream) {
+        this(socket, inputStream, outputStream, null, null);
+    }
+
+    /**
+     * @param guard
+     *            the limits request heads are held to or null for none
+     * @param tls
+     *            the channel the streams decrypt and encrypt with or null
+     */
+    Connection(Socket socket, InputStream inputStream, OutputStream outputStream, ConnectionGuard guard,
+            TlsChannel tls) {
+        this.socket = socket;
+        this.inputStream = inputStream instanceof HttpInputStream ? (HttpInputStream) inputStream
+                : new HttpInputStream(inputStream, 8192);
+        this.outputStream = outputStream;
+        this.guard = guard;
+        this.tls = tls;
+        flushBeforeRead();
+    }
+
+    /**
+     * A blocking connection whose reads time out after the guard's body
+     * timeout and whose writes are held to its deadline.
+     * 
+     * @param tls
+     *            the channel to read and write through, made for the socket,
+     *            or null for plain HTTP
+     */
+    Connection(Socket socket, ConnectionGuard guard, ConnectionGuard.Deadline deadline, TlsChannel tls)
+            throws IOException {
+        this.socket = socket;
+        if (tls == null) {
+            this.inputStream = new HttpInputStream(new TimedInputStream(socket.getInputStream()), 8192);
+            this.outputStream = new SocketOutputStream(socket, deadline);
+        }
+        else {
+            this.inputStream = new HttpInputStream(new TimedInputStream(tls.getInputStream()), 8192);
+            this.outputStream = new SocketOutputStream(tls.getOutputStream(), null, deadline);
+        }
+        this.guard = guard;
+        this.tls = tls;
+        flushBeforeRead();
+        socket.setSoTimeout(guard.getBodyTimeout());
+    }
+
+    private void flushBeforeRead() {
+        // Responses held back for pipelined requests go out before waiting for the client
+        inputStream.setBeforeRead(new Flushable() {
+            @Override
+            public void flush() throws IOException {
+                if (unflushed > 0)
+                    Connection.this.flush();
+            }
+        });
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    HttpInputStream getHttpInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * @return true if the connection is encrypted with TLS
+     */
+    public boolean isSecure() {
+        return tls != null;
+    }
+
+    /**
+     * @return the connection's TLS session or null if it isn't encrypted
+     */
+    public SSLSession getSslSession() {
+        return tls != null ? tls.getEngine().getSession() : null;
+    }
+
+    /**
+     * @return the protocol agreed with the client using ALPN or null if there
+     *         wasn't one
+     */
+    public String getApplicationProtocol() {
+        return tls != null ? TlsContext.getApplicationProtocol(tls.getEngine()) : null;
+    }
+
+    /**
+     * @return the limits request heads are held to or null if there aren't
+     *         any
+     */
+    ConnectionGuard getGuard() {
+        return guard;
+    }
+
+    /**
+     * @return the number of requests already completed on this connection
+     */
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    public void setBody(InputStream body) {
+        this.body = body;
+    }
+
+    /**
+     * Skips the unread part of the current request's body so the input stream
+     * is positioned at the start of the next request.
+     * 
+     * @return false if the body was too large to skip and the connection
+     *         should be closed instead
+     */
+    public boolean finishRequest() throws IOException {
+        requestCount++;
+
+        if (body == null)
+            return true;
+
+        InputStream body = this.body;
+        this.body = null;
+
+        // The client is still waiting to hear whether to send the body
+        if (body instanceof ContinueInputStream && !((ContinueInputStream) body).isSent())
+            return false;
+
+        byte[] data = BufferPool.getDefault().acquire(4096);
+        try {
+            int drained = 0;
+            int count;
+            while ((count = body.read(data)) != -1) {
+                drained += count;
+                // Skipping what's already in memory costs nothing
+                if (drained > MAX_DRAIN && !inputStream.isComplete())
+                    return false;
+            }
+        }
+        finally {
+            BufferPool.getDefault().release(data);
+        }
+
+        return true;
+    }
+
+    /**
+     * Gives the connection's buffers back to the {@link BufferPool} once it
+     * has been closed.
+     */
+    void release() {
+        inputStream.release();
+        if (outputStream instanceof SocketOutputStream)
+            ((SocketOutputStream) outputStream).release();
+        if (tls != null)
+            tls.release();
+    }
+
+    /**
+     * Decides whether the response just written can wait to be sent together
+     * with the next one, which it can if the next request has already arrived.
+     * 
+     * @param maxDepth
+     *            the most responses to hold back
+     * @return false if the output should be flushed now
+     */
+    boolean deferFlush(int maxDepth) {
+        if (unflushed + 1 >= maxDepth || !hasBufferedRequest())
+            return false;
+
+        unflushed++;
+        return true;
+    }
+
+    /**
+     * @return true if the start of another request is already buffered
+     */
+    boolean hasBufferedRequest() {
+        return inputStream.buffered() > 0 || (tls != null && tls.hasBufferedInput());
+    }
+
+    /**
+     * Waits a little while for the start of another request on a connection
+     * made with a guard, having sent any responses held back.
+     * 
+     * @return true if it arrived, or the client closed the connection, in
+     *         time
+     */
+    boolean awaitRequest(int millis) throws IOException {
+        if (hasBufferedRequest())
+            return true;
+
+        try {
+            return awaitInput(millis, inputStream.buf.length);
+        }
+        catch (EOFException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Waits a little while for more input on a connection made with a guard,
+     * whatever is already buffered.
+     * 
+     * @param maxSize
+     *            the largest the input buffer may grow to
+     * @return false if nothing arrived in time
+     * @throws EOFException
+     *             if the client closed the connection
+     */
+    boolean awaitInput(int millis, int maxSize) throws IOException {
+        socket.setSoTimeout(millis);
+        lingering = true;
+        try {
+            if (!inputStream.fill(maxSize))
+                throw new EOFException("Connection closed by the client");
+            return true;
+        }
+        catch (SocketTimeoutException e) {
+            return false;
+        }
+        finally {
+            lingering = false;
+            socket.setSoTimeout(guard.getBodyTimeout());
+        }
+    }
+
+    /**
+     * Sends any responses held back by {@link #deferFlush(int)}.
+     */
+    void flush() throws IOException {
+        unflushed = 0;
+        outputStream.flush();
+    }
+
+    /**
+     * @return the bytes read from the client since this was last called
+     */
+    long takeBytesRead() {
+        long total = inputStream.getBytesRead();
+        long count = total - bytesRead;
+        bytesRead = total;
+        return count;
+    }
+
+    /**
+     * @return the bytes written to the client since this was last called, or
+     *         0 if the output stream doesn't count them
+     */
+    long takeBytesWritten() {
+        if (!(outputStream instanceof CountingOutput))
+            return 0;
+
+        long total = ((CountingOutput) outputStream).getBytesWritten();
+        long count = total - bytesWritten;
+        bytesWritten = total;
+        return count;
+    }
+
+    /**
+     * Counts reads that time out, as a head or a body the client was too slow
+     * to send.
+     */
+    private class TimedInputStream extends FilterInputStream {
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return in.read(b, off, len);
+            }
+            catch (SocketTimeoutException e) {
+                if (guard != null && !lingering)
+                    guard.violated(body != null ? ConnectionGuard.Violation.BODY_TIMEOUT
+                            : ConnectionGuard.Violation.HEAD_TIMEOUT);
+                throw e;
+            }
+        }
+    }
+}
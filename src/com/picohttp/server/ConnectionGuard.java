@@ -0,0 +1,253 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps slow and misbehaving clients from holding on to the server: the
+ * deadlines for receiving a request head, for each read of a body and for each
+ * write of a response, and the limits on the number and length of header
+ * lines. A connection that breaks one is closed and the violation counted.
+ * <p>
+ * A blocking read can be given a timeout but a blocking write can't, and a
+ * timeout on each read doesn't stop a client sending the head a byte at a
+ * time. So the blocking engine's sockets carry a {@link Deadline}, which a
+ * watchdog on the server's timer enforces by closing the socket. The NIO
+ * engine checks its own connections as it sweeps them for idle ones.
+ */
+public class ConnectionGuard {
+    /** How a connection misbehaved */
+    public enum Violation {
+        HEAD_TIMEOUT, BODY_TIMEOUT, WRITE_TIMEOUT, HEADER_COUNT, HEADER_LINE_LENGTH
+    }
+
+    private final int headTimeout;
+    private final int bodyTimeout;
+    private final int writeTimeout;
+    private final int maxHeaderCount;
+    private final int maxHeaderLineLength;
+    private final LongAdder[] violations = new LongAdder[Violation.values().length];
+    private final Set<Deadline> deadlines = ConcurrentHashMap.newKeySet();
+    private boolean watching;
+
+    ConnectionGuard(Configuration configuration) {
+        this.headTimeout = configuration.getHeadTimeout();
+        this.bodyTimeout = configuration.getBodyTimeout();
+        this.writeTimeout = configuration.getWriteTimeout();
+        this.maxHeaderCount = configuration.getMaxHeaderCount();
+        this.maxHeaderLineLength = configuration.getMaxHeaderLineLength();
+
+        for (int i = 0; i < violations.length; i++)
+            violations[i] = new LongAdder();
+    }
+
+    int getHeadTimeout() {
+        return headTimeout;
+    }
+
+    int getBodyTimeout() {
+        return bodyTimeout;
+    }
+
+    int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * @return how often, in milliseconds, connections should be checked for
+     *         missed deadlines
+     */
+    int getSweepInterval() {
+        int shortest = 1000;
+        for (int timeout : new int[] { headTimeout, bodyTimeout, writeTimeout })
+            if (timeout > 0)
+                shortest = Math.min(shortest, timeout / 4);
+        return Math.max(10, shortest);
+    }
+
+    /**
+     * @throws IOException
+     *             if a request has more than the allowed number of headers
+     */
+    void checkHeaderCount(int count) throws IOException {
+        if (maxHeaderCount > 0 && count > maxHeaderCount) {
+            violated(Violation.HEADER_COUNT);
+            throw new IOException("More than " + maxHeaderCount + " request headers");
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             if a line of a request head is longer than allowed
+     */
+    void checkHeaderLineLength(int length) throws IOException {
+        if (maxHeaderLineLength > 0 && length > maxHeaderLineLength) {
+            violated(Violation.HEADER_LINE_LENGTH);
+            throw new IOException("Request head line longer than " + maxHeaderLineLength + " bytes");
+        }
+    }
+
+    /**
+     * @return the violation the request head's lines break, if any, given the
+     *         number of lines so far, including the request line, and the
+     *         length of the longest
+     */
+    Violation checkHead(int lines, int longestLine) {
+        if (maxHeaderLineLength > 0 && longestLine > maxHeaderLineLength)
+            return Violation.HEADER_LINE_LENGTH;
+        if (maxHeaderCount > 0 && lines - 1 > maxHeaderCount)
+            return Violation.HEADER_COUNT;
+        return null;
+    }
+
+    void violated(Violation violation) {
+        violations[violation.ordinal()].increment();
+    }
+
+    /**
+     * @return a deadline for a blocking socket, enforced once
+     *         {@link #startWatchdog(ScheduledExecutorService)} has been called
+     *         until the deadline is closed
+     */
+    Deadline deadline(Socket socket) {
+        Deadline deadline = new Deadline(socket);
+        deadlines.add(deadline);
+        return deadline;
+    }
+
+    /**
+     * Starts closing the sockets of deadlines that have passed.
+     */
+    synchronized void startWatchdog(ScheduledExecutorService timer) {
+        if (watching)
+            return;
+        watching = true;
+
+        int interval = getSweepInterval();
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (Deadline deadline : deadlines)
+                    deadline.check(now);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public long getViolations(Violation violation) {
+        return violations[violation.ordinal()].sum();
+    }
+
+    public long getViolations() {
+        long total = 0;
+        for (LongAdder count : violations)
+            total += count.sum();
+        return total;
+    }
+
+    /**
+     * The time a blocking operation on a socket must finish by, set before it
+     * starts and cleared after. If it's missed the socket is closed, which
+     * fails the operation. Reads and writes have a deadline each, since a
+     * write can happen in the middle of a read, as when responses held back
+     * for pipelined requests are flushed before reading more of the next one.
+     */
+    class Deadline {
+        private final Socket socket;
+        private volatile long readExpires;
+        private volatile Violation readViolation;
+        private volatile long writeExpires;
+        private volatile boolean expired;
+
+        private Deadline(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Sets a deadline for {@code violation}'s kind of operation, unless
+         * its timeout is 0.
+         */
+        void start(Violation violation) {
+            int timeout = violation == Violation.HEAD_TIMEOUT ? headTimeout
+                    : violation == Violation.BODY_TIMEOUT ? bodyTimeout : writeTimeout;
+            if (timeout <= 0)
+                return;
+
+            // Never 0, which means there's no deadline
+            long expires = (System.nanoTime() + timeout * 1000000L) | 1;
+            if (violation == Violation.WRITE_TIMEOUT)
+                writeExpires = expires;
+            else {
+                readViolation = violation;
+                readExpires = expires;
+            }
+        }
+
+        /**
+         * Clears the deadline for {@code violation}'s kind of operation,
+         * reading or writing.
+         */
+        void stop(Violation violation) {
+            if (violation == Violation.WRITE_TIMEOUT)
+                writeExpires = 0;
+            else
+                readExpires = 0;
+        }
+
+        /**
+         * @return true if the socket was closed for missing the deadline
+         */
+        boolean hasExpired() {
+            return expired;
+        }
+
+        /**
+         * Stops watching the socket, once it's been closed.
+         */
+        void close() {
+            readExpires = writeExpires = 0;
+            deadlines.remove(this);
+        }
+
+        private void check(long now) {
+            long readExpires = this.readExpires;
+            long writeExpires = this.writeExpires;
+            Violation violation;
+            if (readExpires != 0 && now - readExpires >= 0)
+                violation = readViolation;
+            else if (writeExpires != 0 && now - writeExpires >= 0)
+                violation = Violation.WRITE_TIMEOUT;
+            else
+                return;
+
+            close();
+            expired = true;
+            violated(violation);
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Holds the blocking engine's connections while they have nothing to read,
+ * new ones and persistent ones between requests, on a single selector thread
+ * so they don't each tie up a worker. A connection is handed back in blocking
+ * mode once the client sends something, and closed if it's left idle past the
+ * keep-alive timeout.
+ */
+class ConnectionParker implements Runnable {
+    interface Parked {
+        /**
+         * Called on the parker's thread once the client has sent something
+         * and the channel is blocking again.
+         */
+        void readable();
+
+        /**
+         * Called when the connection was idle too long, couldn't be parked or
+         * the server stopped, to close it.
+         */
+        void expired();
+    }
+
+    private final PicoHttp server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    ConnectionParker(PicoHttp server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Waits for the client to send something without holding the calling
+     * thread, which must be done with the socket.
+     */
+    void park(final SocketChannel channel, final Parked parked) {
+        final long since = System.currentTimeMillis();
+        tasks.add(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, new Waiting(parked, since));
+                }
+                catch (IOException e) {
+                    parked.expired();
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        List<SelectionKey> ready = new ArrayList<SelectionKey>();
+        long lastIdleCheck = System.currentTimeMillis();
+
+        try {
+            while (server.isRunning()) {
+                selector.select(1000);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    key.cancel();
+                    ready.add(key);
+                }
+
+                if (!ready.isEmpty()) {
+                    // A channel can't block again until its cancelled key is gone
+                    selector.selectNow();
+                    for (SelectionKey key : ready)
+                        resume(key);
+                    ready.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= 1000) {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            // Those parked meanwhile are registered so they're closed with the rest
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+            for (SelectionKey key : selector.keys())
+                ((Waiting) key.attachment()).parked.expired();
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    private void resume(SelectionKey key) {
+        Parked parked = ((Waiting) key.attachment()).parked;
+        try {
+            key.channel().configureBlocking(true);
+        }
+        catch (IOException e) {
+            parked.expired();
+            return;
+        }
+        parked.readable();
+    }
+
+    private void closeIdle(long now) {
+        int timeout = server.getConfiguration().getKeepAliveTimeout();
+        for (SelectionKey key : selector.keys()) {
+            Waiting waiting = (Waiting) key.attachment();
+            if (key.isValid() && now - waiting.since > timeout) {
+                key.cancel();
+                waiting.parked.expired();
+            }
+        }
+    }
+
+    private static class Waiting {
+        final Parked parked;
+        final long since;
+
+        Waiting(Parked parked, long since) {
+            this.parked = parked;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Sends {@code 100 Continue} the first time the body of a request with
+ * {@code Expect: 100-continue} is read, unless the client has already started
+ * sending it.
+ */
+class ContinueInputStream extends FilterInputStream {
+    private static final byte[] CONTINUE = { 'H', 'T', 'T', 'P', '/', '1', '.', '1', ' ', '1', '0', '0', ' ',
+            'C', 'o', 'n', 't', 'i', 'n', 'u', 'e', '\r', '\n', '\r', '\n' };
+
+    private final InputStream connectionInput;
+    private final OutputStream out;
+    private boolean sent;
+
+    ContinueInputStream(InputStream body, InputStream connectionInput, OutputStream out) {
+        super(body);
+        this.connectionInput = connectionInput;
+        this.out = out;
+    }
+
+    /**
+     * @return true if the client was told to go ahead, or didn't wait to be
+     *         told, so the body is on its way
+     */
+    boolean isSent() throws IOException {
+        return sent || connectionInput.available() > 0;
+    }
+
+    private void sendContinue() throws IOException {
+        if (!sent) {
+            if (!isSent()) {
+                out.write(CONTINUE);
+                out.flush();
+            }
+            sent = true;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        sendContinue();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        sendContinue();
+        return super.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        sendContinue();
+        return super.skip(n);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,32 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+/**
+ * Turns a header or parameter value into another type for
+ * {@link Request#getHeader(String, Class)} and
+ * {@link Request#getParameter(String, Class)}.
+ * 
+ * @see Converters#register(Class, Converter)
+ */
+public interface Converter<T> {
+    /**
+     * @return the converted value or null if it can't be converted. Throwing
+     *         an IllegalArgumentException or DateTimeException means the same.
+     */
+    public T convert(String value);
+}
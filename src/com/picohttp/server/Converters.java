@@ -0,0 +1,351 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * The registry of {@link Converter}s used for typed header and parameter
+ * values. The converter for a type is looked up once and then reused.
+ * <p>
+ * Built in are the primitives and their wrappers, String, {@link Date} and
+ * {@link Instant}, which accept HTTP dates, ISO-8601 instants and a few more
+ * lenient formats, and enums, matched by name ignoring case. Any other type is
+ * converted with a public static {@code valueOf(String)} or
+ * {@code fromString(String)} method or a public String constructor, in that
+ * order. Applications can register converters of their own or replace the
+ * built-in ones.
+ */
+public final class Converters {
+    private static final Converter<Object> NONE = new Converter<Object>() {
+        @Override
+        public Object convert(String value) {
+            return null;
+        }
+    };
+
+    private static final ConcurrentMap<Class<?>, Converter<?>> CONVERTERS = new ConcurrentHashMap<Class<?>, Converter<?>>();
+
+    private static final Pattern PRE_PROCESS_PATTERN = Pattern.compile("(?<!GMT)[\\s,/\\.-]+");
+
+    /** Less formal dates, after their separators have been replaced by spaces. */
+    private static final DateTimeFormatter[] LENIENT_DATE_FORMATS = {
+            lenient().appendPattern("d MMM ").appendValueReduced(ChronoField.YEAR, 2, 4, 1970)
+                    .toFormatter(Locale.getDefault()),
+            lenient().appendPattern("yyyy M d").toFormatter(Locale.getDefault()),
+            lenient().appendPattern("yyyy MMM d").toFormatter(Locale.getDefault()),
+            // Date.toString()
+            lenient().appendPattern("EEE MMM dd HH:mm:ss zzz yyyy").toFormatter(Locale.getDefault()),
+    };
+
+    static {
+        Converter<Boolean> booleans = new Converter<Boolean>() {
+            @Override
+            public Boolean convert(String value) {
+                return Boolean.valueOf(value.trim());
+            }
+        };
+        register(Boolean.class, booleans);
+        register(boolean.class, booleans);
+
+        Converter<Byte> bytes = new Converter<Byte>() {
+            @Override
+            public Byte convert(String value) {
+                return Byte.valueOf(value.trim());
+            }
+        };
+        register(Byte.class, bytes);
+        register(byte.class, bytes);
+
+        Converter<Short> shorts = new Converter<Short>() {
+            @Override
+            public Short convert(String value) {
+                return Short.valueOf(value.trim());
+            }
+        };
+        register(Short.class, shorts);
+        register(short.class, shorts);
+
+        Converter<Integer> ints = new Converter<Integer>() {
+            @Override
+            public Integer convert(String value) {
+                return Integer.valueOf(value.trim());
+            }
+        };
+        register(Integer.class, ints);
+        register(int.class, ints);
+
+        Converter<Long> longs = new Converter<Long>() {
+            @Override
+            public Long convert(String value) {
+                return Long.valueOf(value.trim());
+            }
+        };
+        register(Long.class, longs);
+        register(long.class, longs);
+
+        Converter<Float> floats = new Converter<Float>() {
+            @Override
+            public Float convert(String value) {
+                return Float.valueOf(value);
+            }
+        };
+        register(Float.class, floats);
+        register(float.class, floats);
+
+        Converter<Double> doubles = new Converter<Double>() {
+            @Override
+            public Double convert(String value) {
+                return Double.valueOf(value);
+            }
+        };
+        register(Double.class, doubles);
+        register(double.class, doubles);
+
+        Converter<Character> chars = new Converter<Character>() {
+            @Override
+            public Character convert(String value) {
+                return value.length() == 1 ? value.charAt(0) : null;
+            }
+        };
+        register(Character.class, chars);
+        register(char.class, chars);
+
+        register(String.class, new Converter<String>() {
+            @Override
+            public String convert(String value) {
+                return value;
+            }
+        });
+
+        register(Instant.class, new Converter<Instant>() {
+            @Override
+            public Instant convert(String value) {
+                return parseInstant(value);
+            }
+        });
+
+        register(Date.class, new Converter<Date>() {
+            @Override
+            public Date convert(String value) {
+                Instant instant = parseInstant(value);
+                return instant != null ? Date.from(instant) : null;
+            }
+        });
+    }
+
+    private Converters() {
+    }
+
+    /**
+     * Registers the converter for a type, replacing any previous one.
+     */
+    public static <T> void register(Class<T> target, Converter<? extends T> converter) {
+        CONVERTERS.put(target, converter);
+    }
+
+    /**
+     * @return the converter for a type or one that always returns null if
+     *         the type can't be converted from a String
+     */
+    public static <T> Converter<T> get(Class<T> target) {
+        @SuppressWarnings("unchecked")
+        Converter<T> converter = (Converter<T>) CONVERTERS.get(target);
+        if (converter == null) {
+            converter = resolve(target);
+            @SuppressWarnings("unchecked")
+            Converter<T> existing = (Converter<T>) CONVERTERS.putIfAbsent(target, converter);
+            if (existing != null)
+                converter = existing;
+        }
+        return converter;
+    }
+
+    /**
+     * @return the value converted to the target type or null if it's null or
+     *         can't be converted
+     */
+    public static <T> T convert(String value, Class<T> target) {
+        if (value == null)
+            return null;
+
+        try {
+            return get(target).convert(value);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <T> Converter<T> resolve(final Class<T> target) {
+        if (target.isEnum())
+            return (Converter<T>) enumConverter((Class) target);
+
+        for (String name : new String[] { "valueOf", "fromString" }) {
+            try {
+                final Method method = target.getMethod(name, String.class);
+                if (Modifier.isStatic(method.getModifiers()) && target.isAssignableFrom(method.getReturnType())) {
+                    return new Converter<T>() {
+                        @Override
+                        public T convert(String value) {
+                            return target.cast(invoke(method, null, value));
+                        }
+                    };
+                }
+            }
+            catch (NoSuchMethodException e) {
+            }
+        }
+
+        try {
+            final Constructor<T> constructor = target.getConstructor(String.class);
+            return new Converter<T>() {
+                @Override
+                public T convert(String value) {
+                    return invoke(constructor, value);
+                }
+            };
+        }
+        catch (NoSuchMethodException e) {
+        }
+
+        return (Converter<T>) NONE;
+    }
+
+    private static <E extends Enum<E>> Converter<E> enumConverter(final Class<E> target) {
+        final E[] constants = target.getEnumConstants();
+        return new Converter<E>() {
+            @Override
+            public E convert(String value) {
+                value = value.trim();
+                for (E constant : constants)
+                    if (constant.name().equalsIgnoreCase(value))
+                        return constant;
+                return null;
+            }
+        };
+    }
+
+    private static Object invoke(Method method, Object target, String value) {
+        try {
+            return method.invoke(target, value);
+        }
+        catch (InvocationTargetException e) {
+            throw failure(e);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static <T> T invoke(Constructor<T> constructor, String value) {
+        try {
+            return constructor.newInstance(value);
+        }
+        catch (InvocationTargetException e) {
+            throw failure(e);
+        }
+        catch (InstantiationException e) {
+            throw new IllegalArgumentException(e);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static RuntimeException failure(InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException)
+            return (RuntimeException) cause;
+        return new IllegalArgumentException(cause);
+    }
+
+    /**
+     * @return the instant an HTTP date, ISO-8601 instant or a less formal date
+     *         stands for, or null if it isn't a date
+     */
+    static Instant parseInstant(String value) {
+        value = value.trim();
+
+        Instant instant = HttpDate.parse(value);
+        if (instant != null)
+            return instant;
+
+        try {
+            return Instant.parse(value);
+        }
+        catch (DateTimeParseException e) {
+        }
+
+        // Courtesy of Stripe's DateTypeConverter
+        String d = checkAndAppendYear(PRE_PROCESS_PATTERN.matcher(value).replaceAll(" "));
+        for (DateTimeFormatter format : LENIENT_DATE_FORMATS) {
+            try {
+                TemporalAccessor parsed = format.parse(d);
+                ZoneId zone = parsed.query(TemporalQueries.zone());
+                if (parsed.isSupported(ChronoField.HOUR_OF_DAY) && zone != null)
+                    return ZonedDateTime.from(parsed).toInstant();
+                return LocalDate.from(parsed).atStartOfDay(ZoneId.systemDefault()).toInstant();
+            }
+            catch (DateTimeException e) {
+            }
+        }
+
+        return null;
+    }
+
+    private static String checkAndAppendYear(String input) {
+        // Count the spaces, date components = spaces + 1
+        int count = 0;
+        for (int i = 0; i < input.length(); i++) {
+            if (input.charAt(i) == ' ')
+                ++count;
+        }
+
+        // Looks like we probably only have a day and month component, that won't work!
+        if (count == 1)
+            input += " " + LocalDate.now().getYear();
+        return input;
+    }
+
+    private static DateTimeFormatterBuilder lenient() {
+        return new DateTimeFormatterBuilder().parseCaseInsensitive();
+    }
+}
@@ -0,0 +1,29 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+/**
+ * An output stream that counts what's written to it, so
+ * {@link Instrumentation} can be told the size of each response.
+ */
+interface CountingOutput {
+    /**
+     * @return the number of bytes written so far, including any still
+     *         buffered
+     */
+    long getBytesWritten();
+}
@@ -0,0 +1,47 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which thread serves a connection or request. The engines hand all of
+ * their work to the Dispatcher set in {@link Configuration#setDispatcher}.
+ * 
+ * @see ThreadPoolDispatcher
+ * @see VirtualThreadDispatcher
+ * @see ExecutorDispatcher
+ */
+public interface Dispatcher {
+    public void execute(Runnable task) throws RejectedExecutionException;
+
+    /**
+     * @return the number of tasks waiting for a worker
+     */
+    public int getQueueDepth();
+
+    /**
+     * @return the number of tasks currently running
+     */
+    public int getActiveWorkers();
+
+    /**
+     * Stops accepting tasks and waits for the running ones to finish.
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,30 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+/**
+ * The ways {@link PicoHttp} can accept and read connections.
+ */
+public enum EngineType {
+    /** One pooled thread per connection doing blocking socket I/O. */
+    BLOCKING,
+    /**
+     * Selector based event loops read requests without blocking and only hand
+     * complete requests to the pool. Idle connections don't hold a thread.
+     */
+    NIO
+}
@@ -0,0 +1,95 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a caller supplied {@link Executor}. The executor is not shut
+ * down with the server since it belongs to the caller.
+ */
+public class ExecutorDispatcher implements Dispatcher {
+    private final Executor executor;
+    private final boolean owned;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+
+    public ExecutorDispatcher(Executor executor) {
+        this(executor, false);
+    }
+
+    /**
+     * @param owned
+     *            true if the executor is an ExecutorService that should be
+     *            shut down along with the server
+     */
+    protected ExecutorDispatcher(Executor executor, boolean owned) {
+        this.executor = executor;
+        this.owned = owned;
+    }
+
+    @Override
+    public void execute(final Runnable task) throws RejectedExecutionException {
+        queued.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queued.decrementAndGet();
+                    active.incrementAndGet();
+                    try {
+                        task.run();
+                    }
+                    finally {
+                        active.decrementAndGet();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return active.get();
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        if (owned && executor instanceof ExecutorService) {
+            ExecutorService service = (ExecutorService) executor;
+            service.shutdown();
+            service.awaitTermination(timeout, unit);
+        }
+    }
+
+    protected Executor getExecutor() {
+        return executor;
+    }
+}
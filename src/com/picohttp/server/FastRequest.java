@@ -0,0 +1,390 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Request} that scans the connection's buffer in bulk for the end of
+ * the request head, copies the head once and records where the method, URI and
+ * each header are. Strings are only created when an accessor asks for them.
+ * <p>
+ * Use it by passing {@code FastRequest.class} as the request type to
+ * {@link PicoHttp}.
+ */
+public class FastRequest extends AbstractRequest {
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final String[] KNOWN_METHODS = { "GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH" };
+    private static final String[] KNOWN_PROTOCOLS = { "HTTP/1.1", "HTTP/1.0" };
+
+    private final byte[] head;
+    private final int methodEnd, uriStart, uriEnd, protocolStart, protocolEnd, queryStart;
+    // nameStart, nameEnd, valueStart, valueEnd for each header
+    private int[] fields = new int[4 * 16];
+    private int fieldCount;
+
+    private final HeaderIndex index = new HeaderIndex() {
+        @Override
+        protected boolean nameEquals(int i, String name) {
+            return equalsIgnoreCase(fields[i * 4], fields[i * 4 + 1], name);
+        }
+    };
+
+    private String method, uri, protocol, path, queryString, hostname;
+    private String[] values;
+    private Map<String, String> headers;
+    private Parameters parameters;
+
+    public FastRequest(Socket socket) throws IOException {
+        this(new Connection(socket));
+    }
+
+    public FastRequest(Connection connection) throws IOException {
+        super(connection);
+
+        HttpInputStream in = connection.getHttpInputStream();
+        int end = readHead(in);
+        head = Arrays.copyOfRange(in.buf, in.pos, end);
+        in.pos = end;
+
+        ConnectionGuard guard = connection.getGuard();
+
+        // Request line
+        int lineEnd = lineEnd(0);
+        if (guard != null)
+            guard.checkHeaderLineLength(lineEnd);
+        int s1 = indexOf(' ', 0, lineEnd);
+        int s2 = s1 < 0 ? -1 : indexOf(' ', s1 + 1, lineEnd);
+        if (s1 <= 0 || s2 < 0)
+            throw new IOException("Malformed request line");
+        methodEnd = s1;
+        uriStart = s1 + 1;
+        uriEnd = s2;
+        protocolStart = s2 + 1;
+        protocolEnd = trimEnd(protocolStart, lineEnd);
+        queryStart = indexOf('?', uriStart, uriEnd);
+
+        long contentLength = parseHeaders(lineEnd + 1, guard);
+
+        // The body ends after Content-Length bytes or the last chunk, anything beyond that is the next request
+        initBody(in, contentLength);
+    }
+
+    /**
+     * Buffers the request head, skipping any blank lines left over from a
+     * previous request.
+     * 
+     * @return the offset in the buffer just past the blank line ending the
+     *         head
+     */
+    private static int readHead(HttpInputStream in) throws IOException {
+        for (;;) {
+            while (in.pos < in.limit && (in.buf[in.pos] == '\r' || in.buf[in.pos] == '\n'))
+                in.pos++;
+            if (in.pos < in.limit)
+                break;
+            if (!in.fill(MAX_HEAD_SIZE))
+                throw new EOFException("Connection closed before a request was received");
+        }
+
+        int scanned = 1;
+        for (;;) {
+            byte[] buf = in.buf;
+            for (int i = in.pos + scanned; i < in.limit; i++) {
+                if (buf[i] == '\n') {
+                    if (buf[i - 1] == '\n')
+                        return i + 1;
+                    if (buf[i - 1] == '\r' && i - 2 >= in.pos && buf[i - 2] == '\n')
+                        return i + 1;
+                }
+            }
+
+            scanned = Math.max(1, in.limit - in.pos);
+            if (!in.fill(MAX_HEAD_SIZE))
+                throw new EOFException("Connection closed while reading the request headers");
+        }
+    }
+
+    /**
+     * Records the offsets of every header line starting at {@code start}.
+     * 
+     * @param guard
+     *            the limits on the number and length of header lines or null
+     * @return the Content-Length or 0 if there isn't one
+     */
+    private long parseHeaders(int start, ConnectionGuard guard) throws IOException {
+        long contentLength = -1;
+        boolean transferEncoding = false;
+
+        for (int lineStart = start; lineStart < head.length; ) {
+            int lineEnd = lineEnd(lineStart);
+            int end = trimEnd(lineStart, lineEnd);
+            if (end == lineStart)
+                break;
+            if (guard != null)
+                guard.checkHeaderLineLength(lineEnd - lineStart);
+
+            if ((head[lineStart] == ' ' || head[lineStart] == '\t') && fieldCount > 0) {
+                // Obsolete line folding, join the continuation to the previous value with a space
+                int valueStart = skipWhitespace(lineStart, end);
+                int previousEnd = fields[fieldCount * 4 - 1];
+                head[previousEnd] = ' ';
+                System.arraycopy(head, valueStart, head, previousEnd + 1, end - valueStart);
+                fields[fieldCount * 4 - 1] = previousEnd + 1 + end - valueStart;
+            }
+            else {
+                int colon = indexOf(':', lineStart, end);
+                if (colon > lineStart) {
+                    if (fieldCount * 4 == fields.length)
+                        fields = Arrays.copyOf(fields, fields.length * 2);
+
+                    int valueStart = skipWhitespace(colon + 1, end);
+                    int f = fieldCount++ * 4;
+                    fields[f] = lineStart;
+                    fields[f + 1] = colon;
+                    fields[f + 2] = valueStart;
+                    fields[f + 3] = end;
+                    index.add(HeaderIndex.hash(head, lineStart, colon));
+                    if (guard != null)
+                        guard.checkHeaderCount(fieldCount);
+
+                    if (equalsIgnoreCase(lineStart, colon, "Content-Length")) {
+                        long length = parseLength(valueStart, end);
+                        // Which one was meant is anyone's guess
+                        if (contentLength >= 0 && length != contentLength)
+                            throw new IOException("Conflicting Content-Length headers");
+                        contentLength = length;
+                    }
+                    else if (equalsIgnoreCase(lineStart, colon, "Transfer-Encoding")) {
+                        // Codings listed across several headers, only a lone chunked is supported
+                        if (transferEncoding)
+                            throw new UnsupportedTransferEncodingException("more than one header");
+                        transferEncoding = true;
+                    }
+                }
+            }
+
+            lineStart = lineEnd + 1;
+        }
+
+        return Math.max(contentLength, 0);
+    }
+
+    private long parseLength(int start, int end) throws IOException {
+        if (start == end || end - start > 18)
+            throw new IOException("Invalid Content-Length");
+
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = head[i];
+            if (b < '0' || b > '9')
+                throw new IOException("Invalid Content-Length");
+            length = length * 10 + (b - '0');
+        }
+        return length;
+    }
+
+    /**
+     * @return the offset of the line feed ending the line starting at
+     *         {@code start} or the end of the head
+     */
+    private int lineEnd(int start) {
+        int i = indexOf('\n', start, head.length);
+        return i < 0 ? head.length : i;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (head[i] == c)
+                return i;
+        return -1;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && (head[end - 1] == '\r' || head[end - 1] == ' ' || head[end - 1] == '\t'))
+            end--;
+        return end;
+    }
+
+    private int skipWhitespace(int start, int end) {
+        while (start < end && (head[start] == ' ' || head[start] == '\t'))
+            start++;
+        return start;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String string) {
+        if (end - start != string.length())
+            return false;
+
+        for (int i = 0; i < string.length(); i++) {
+            int a = head[start + i];
+            int b = string.charAt(i);
+            if (a != b && toLowerCase(a) != toLowerCase(b))
+                return false;
+        }
+        return true;
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private String string(int start, int end) {
+        return new String(head, start, end - start, ISO_8859_1);
+    }
+
+    /**
+     * @return one of the given constants if it matches the bytes, avoiding a
+     *         new String for the common cases
+     */
+    private String string(int start, int end, String[] known) {
+        for (String string : known)
+            if (end - start == string.length() && regionMatches(start, string))
+                return string;
+        return string(start, end);
+    }
+
+    private boolean regionMatches(int start, String string) {
+        for (int i = 0; i < string.length(); i++)
+            if (head[start + i] != string.charAt(i))
+                return false;
+        return true;
+    }
+
+    @Override
+    public String getMethod() {
+        if (method == null)
+            method = string(0, methodEnd, KNOWN_METHODS);
+        return method;
+    }
+
+    @Override
+    public String getUri() {
+        if (uri == null)
+            uri = string(uriStart, uriEnd);
+        return uri;
+    }
+
+    @Override
+    public String getProtocol() {
+        if (protocol == null)
+            protocol = string(protocolStart, protocolEnd, KNOWN_PROTOCOLS);
+        return protocol;
+    }
+
+    @Override
+    public String getPath() {
+        if (path == null)
+            path = queryStart < 0 ? getUri() : string(uriStart, queryStart);
+        return path;
+    }
+
+    @Override
+    public String getQueryString() {
+        if (queryString == null && queryStart >= 0)
+            queryString = string(queryStart + 1, uriEnd);
+        return queryString;
+    }
+
+    @Override
+    public String getHostname() {
+        if (hostname == null) {
+            int i = findHeader("Host");
+            if (i >= 0) {
+                int start = fields[i * 4 + 2];
+                int end = fields[i * 4 + 3];
+                // Drop the port, taking care not to cut an IPv6 literal
+                int colon = head[start] == '[' ? indexOf(']', start, end) + 1 : indexOf(':', start, end);
+                hostname = string(start, colon > 0 ? colon : end);
+            }
+            else
+                hostname = getSocket().getInetAddress().getHostAddress();
+        }
+        return hostname;
+    }
+
+    private int findHeader(String name) {
+        return index.find(name);
+    }
+
+    @Override
+    public String getHeader(String name) {
+        int i = findHeader(name);
+        if (i < 0)
+            return null;
+
+        if (values == null)
+            values = new String[fieldCount];
+        if (values[i] == null)
+            values[i] = string(fields[i * 4 + 2], fields[i * 4 + 3]);
+        return values[i];
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        if (headers == null) {
+            headers = new LinkedHashMap<String, String>();
+            for (int i = 0; i < fieldCount; i++) {
+                String name = string(fields[i * 4], fields[i * 4 + 1]);
+                if (!headers.containsKey(name))
+                    headers.put(name, string(fields[i * 4 + 2], fields[i * 4 + 3]));
+            }
+        }
+        return headers;
+    }
+
+    @Override
+    public String getParameter(String name) {
+        return parameters().get(name);
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        return parameters().getValues(name);
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        return parameters().asMap();
+    }
+
+    private Parameters parameters() {
+        if (parameters == null) {
+            parameters = new Parameters();
+
+            try {
+                if (queryStart >= 0)
+                    parameters.add(getQueryString(), "UTF-8");
+
+                String contentType = getHeader("Content-Type");
+                if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded"))
+                    parameters.add(getBody(), getCharset(contentType));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,283 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serves the files under a directory with {@link FileResponse}. Supports
+ * single byte ranges for resumable downloads and answers conditional requests
+ * with {@code 304 Not Modified} based on the file's ETag and modification
+ * time.
+ */
+public class FileRequestHandler implements RequestHandler {
+    private static final Map<String, String> DEFAULT_CONTENT_TYPES = new HashMap<String, String>();
+    static {
+        String[] types = {
+                "html", "text/html; charset=UTF-8",
+                "htm", "text/html; charset=UTF-8",
+                "css", "text/css; charset=UTF-8",
+                "js", "application/javascript; charset=UTF-8",
+                "json", "application/json",
+                "txt", "text/plain; charset=UTF-8",
+                "csv", "text/csv; charset=UTF-8",
+                "xml", "application/xml",
+                "svg", "image/svg+xml",
+                "png", "image/png",
+                "gif", "image/gif",
+                "jpg", "image/jpeg",
+                "jpeg", "image/jpeg",
+                "ico", "image/x-icon",
+                "webp", "image/webp",
+                "woff", "font/woff",
+                "woff2", "font/woff2",
+                "pdf", "application/pdf",
+                "zip", "application/zip",
+                "gz", "application/gzip",
+                "mp4", "video/mp4",
+                "mp3", "audio/mpeg",
+                "wasm", "application/wasm",
+        };
+        for (int i = 0; i < types.length; i += 2)
+            DEFAULT_CONTENT_TYPES.put(types[i], types[i + 1]);
+    }
+
+    private final File root;
+    private final String rootPath;
+    private final Map<String, String> contentTypes = new HashMap<String, String>(DEFAULT_CONTENT_TYPES);
+    private String indexFile = "index.html";
+
+    public FileRequestHandler(File root) throws IOException {
+        this.root = root.getCanonicalFile();
+        this.rootPath = this.root.getPath() + File.separator;
+    }
+
+    /**
+     * Sets the Content-Type sent for files with the given extension.
+     */
+    public void setContentType(String extension, String contentType) {
+        contentTypes.put(extension.toLowerCase(Locale.ENGLISH), contentType);
+    }
+
+    public String getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * @param indexFile
+     *            the file served for requests for a directory or null to
+     *            answer them with 404
+     */
+    public void setIndexFile(String indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    @Override
+    public Response execute(Request request) {
+        String method = request.getMethod();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            SimpleResponse response = error(405, "Method Not Allowed");
+            response.setHeader("Allow", "GET, HEAD");
+            return response;
+        }
+
+        File file = resolve(request.getPath());
+        if (file == null || !file.isFile() || !file.canRead())
+            return error(404, "Not Found");
+
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = '"' + Long.toHexString(lastModified) + '-' + Long.toHexString(length) + '"';
+
+        if (isNotModified(request, etag, lastModified)) {
+            SimpleResponse response = new SimpleResponse();
+            response.setStatusCode(304);
+            response.setStatusMessage("Not Modified");
+            response.setHeader("ETag", etag);
+            response.setHeader("Last-Modified", new Date(lastModified));
+            return response;
+        }
+
+        FileResponse response;
+        long[] range = range(request, etag, lastModified, length);
+        if (range == null)
+            response = new FileResponse(file);
+        else if (range.length == 0) {
+            SimpleResponse error = error(416, "Range Not Satisfiable");
+            error.setHeader("Content-Range", "bytes */" + length);
+            return error;
+        }
+        else {
+            response = new FileResponse(file, range[0], range[1] - range[0] + 1);
+            response.setStatusCode(206);
+            response.setStatusMessage("Partial Content");
+            response.setHeader("Content-Range", "bytes " + range[0] + '-' + range[1] + '/' + length);
+        }
+
+        response.setHeader("Content-Type", getContentType(file.getName()));
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setHeader("Last-Modified", new Date(lastModified));
+
+        return response;
+    }
+
+    /**
+     * @return the file a request path refers to or null if it is outside the
+     *         root directory
+     */
+    protected File resolve(String path) {
+        try {
+            // A literal + is allowed in a path, only %XX sequences need decoding
+            path = URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        try {
+            File file = new File(root, path).getCanonicalFile();
+            if (!file.equals(root) && !file.getPath().startsWith(rootPath))
+                return null;
+
+            if (file.isDirectory())
+                file = indexFile != null ? new File(file, indexFile) : null;
+
+            return file;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    protected String getContentType(String name) {
+        int dot = name.lastIndexOf('.');
+        String contentType = dot < 0 ? null : contentTypes.get(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+        return contentType != null ? contentType : "application/octet-stream";
+    }
+
+    private boolean isNotModified(Request request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null)
+            return matches(ifNoneMatch, etag);
+
+        Date ifModifiedSince = request.getHeader("If-Modified-Since", Date.class);
+        // HTTP dates only have a resolution of seconds
+        return ifModifiedSince != null && lastModified / 1000 <= ifModifiedSince.getTime() / 1000;
+    }
+
+    private boolean matches(String header, String etag) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the first and last byte of the requested range, null to send
+     *         the whole file or an empty array if the range can't be satisfied
+     */
+    private long[] range(Request request, String etag, long lastModified, long length) {
+        String range = request.getHeader("Range");
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0)
+            return null;
+
+        // The range only applies if the client's copy is still current
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null) {
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                if (!ifRange.equals(etag))
+                    return null;
+            }
+            else {
+                Date date = request.getHeader("If-Range", Date.class);
+                if (date == null || lastModified / 1000 > date.getTime() / 1000)
+                    return null;
+            }
+        }
+
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return null;
+
+        long first, last;
+        if (dash == 0) {
+            long suffix = digits(spec.substring(1));
+            if (suffix < 0)
+                return null;
+            // Nothing of an empty file can be sent
+            if (suffix == 0 || length == 0)
+                return new long[0];
+            first = Math.max(0, length - suffix);
+            last = length - 1;
+        }
+        else {
+            first = digits(spec.substring(0, dash));
+            if (first < 0)
+                return null;
+            if (first >= length)
+                return new long[0];
+            last = dash == spec.length() - 1 ? length - 1 : digits(spec.substring(dash + 1));
+            if (last < first)
+                return null;
+            last = Math.min(last, length - 1);
+        }
+
+        return new long[] { first, last };
+    }
+
+    /**
+     * @return the value of a string of decimal digits, or -1 if it's empty,
+     *         has anything else in it (a sign included) or is too large
+     */
+    private static long digits(String s) {
+        if (s.length() == 0 || s.length() > 18)
+            return -1;
+        long value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    private SimpleResponse error(int statusCode, String statusMessage) {
+        SimpleResponse response = new SimpleResponse();
+        response.setStatusCode(statusCode);
+        response.setStatusMessage(statusMessage);
+        response.setHeader("Content-Type", "text/plain; charset=UTF-8");
+        response.setBody(statusCode + " " + statusMessage);
+        return response;
+    }
+}
@@ -0,0 +1,117 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends a file, or a range of it, without reading it into memory. When the
+ * connection allows it the file goes straight from the page cache to the
+ * socket with {@link FileChannel#transferTo}, otherwise it is copied through
+ * a small buffer.
+ * 
+ * @see FileRequestHandler
+ */
+public class FileResponse extends AbstractResponse {
+    private final File file;
+    private final long offset;
+    private final long length;
+
+    public FileResponse(File file) {
+        this(file, 0, file.length());
+    }
+
+    /**
+     * Sends {@code length} bytes of the file starting at {@code offset}. The
+     * caller is responsible for the status and Content-Range of partial
+     * responses.
+     */
+    public FileResponse(File file, long offset, long length) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+
+        setHeader("Content-Length", length);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    protected boolean delimitBody() {
+        return true;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        writeHead(out);
+
+        if (isHeadRequest() || isBodyless()) {
+            out.flush();
+            return;
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (out instanceof FileTransfer)
+                ((FileTransfer) out).transferFrom(channel, offset, length);
+            else
+                copy(channel, offset, length, out);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    static void copy(FileChannel file, long position, long count, OutputStream out) throws IOException {
+        byte[] bytes = BufferPool.getDefault().acquire((int) Math.min(count, 64 * 1024));
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (count > 0) {
+                buffer.clear();
+                if (buffer.remaining() > count)
+                    buffer.limit((int) count);
+
+                int read = file.read(buffer, position);
+                if (read == -1)
+                    throw new IOException("File truncated while being sent");
+
+                out.write(bytes, 0, read);
+                position += read;
+                count -= read;
+            }
+        }
+        finally {
+            BufferPool.getDefault().release(bytes);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by connection output streams that can send part of a file
+ * without copying it through the heap, using {@link FileChannel#transferTo}.
+ */
+interface FileTransfer {
+    /**
+     * Flushes anything buffered and then sends {@code count} bytes of the
+     * file starting at {@code position}.
+     */
+    public void transferFrom(FileChannel file, long position, long count) throws IOException;
+}
@@ -0,0 +1,46 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.util.function.LongSupplier;
+
+/**
+ * A value that is read when it's reported, such as the number of open
+ * connections.
+ */
+public class Gauge implements Metric {
+    private final String name;
+    private final String help;
+    private final LongSupplier value;
+
+    public Gauge(String name, String help, LongSupplier value) {
+        this.name = name;
+        this.help = help;
+        this.value = value;
+    }
+
+    public long get() {
+        return value.getAsLong();
+    }
+
+    @Override
+    public void writePrometheus(Appendable out) throws IOException {
+        MetricsRegistry.writeHeader(out, name, help, "gauge");
+        out.append(name).append(' ').append(Long.toString(get())).append('\n');
+    }
+}
@@ -0,0 +1,160 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.util.Arrays;
+
+/**
+ * Finds a request's headers by name, ignoring case, without comparing the
+ * name against every header. Well-known names have a token that leads
+ * straight to the first header with that name. Others are found through a
+ * table of case-folded hashes, built the first time one is asked for.
+ * <p>
+ * Subclasses keep the names and values however suits them and are asked to
+ * compare a header's name when its hash matches.
+ */
+abstract class HeaderIndex {
+    /** The headers given tokens, those requests carry most often. */
+    static final String[] KNOWN = { "Host", "Connection", "Content-Length", "Content-Type", "Content-Encoding",
+            "Transfer-Encoding", "Expect", "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language",
+            "Authorization", "Cache-Control", "Cookie", "Date", "DNT", "Forwarded", "If-Match", "If-Modified-Since",
+            "If-None-Match", "If-Range", "If-Unmodified-Since", "Keep-Alive", "Origin", "Pragma",
+            "Proxy-Authorization", "Range", "Referer", "TE", "Upgrade", "Upgrade-Insecure-Requests", "User-Agent",
+            "Via", "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Proto", "X-Real-IP", "X-Request-Id",
+            "X-Requested-With", "Sec-Fetch-Dest", "Sec-Fetch-Mode", "Sec-Fetch-Site", "Sec-Fetch-User" };
+
+    private static final int KNOWN_MASK = 255;
+    /** Open addressed by hash, each slot holding a token plus one. */
+    private static final int[] KNOWN_SLOTS = new int[KNOWN_MASK + 1];
+    private static final int[] KNOWN_HASHES = new int[KNOWN.length];
+
+    static {
+        for (int token = 0; token < KNOWN.length; token++) {
+            int hash = hash(KNOWN[token]);
+            KNOWN_HASHES[token] = hash;
+            int i = hash & KNOWN_MASK;
+            while (KNOWN_SLOTS[i] != 0)
+                i = (i + 1) & KNOWN_MASK;
+            KNOWN_SLOTS[i] = token + 1;
+        }
+    }
+
+    private int[] hashes = new int[16];
+    private int count;
+    /** The first header with each token, plus one. */
+    private final short[] first = new short[KNOWN.length];
+    /** Open addressed by hash, each slot holding a header plus one. */
+    private int[] table;
+
+    /**
+     * @return true if the name of the header at {@code index} is
+     *         {@code name}, ignoring case
+     */
+    protected abstract boolean nameEquals(int index, String name);
+
+    /**
+     * Indexes the next header.
+     * 
+     * @param hash
+     *            the {@link #hash(String)} of its name
+     */
+    void add(int hash) {
+        if (count == hashes.length)
+            hashes = Arrays.copyOf(hashes, count * 2);
+        int index = count++;
+        hashes[index] = hash;
+        table = null;
+
+        int token = token(hash, index, null);
+        if (token >= 0 && first[token] == 0 && index < Short.MAX_VALUE)
+            first[token] = (short) (index + 1);
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the index of the first header called {@code name} or -1
+     */
+    int find(String name) {
+        int hash = hash(name);
+        int token = token(hash, -1, name);
+        if (token >= 0)
+            return first[token] - 1;
+
+        if (count == 0)
+            return -1;
+        if (table == null)
+            table = buildTable();
+
+        int mask = table.length - 1;
+        for (int i = hash & mask, entry; (entry = table[i]) != 0; i = (i + 1) & mask)
+            if (hashes[entry - 1] == hash && nameEquals(entry - 1, name))
+                return entry - 1;
+        return -1;
+    }
+
+    /**
+     * @return the token of the header at {@code index}, or of {@code name}
+     *         if index is -1, or -1 if it hasn't got one
+     */
+    private int token(int hash, int index, String name) {
+        for (int i = hash & KNOWN_MASK, slot; (slot = KNOWN_SLOTS[i]) != 0; i = (i + 1) & KNOWN_MASK) {
+            int token = slot - 1;
+            if (KNOWN_HASHES[token] == hash
+                    && (index >= 0 ? nameEquals(index, KNOWN[token]) : KNOWN[token].equalsIgnoreCase(name)))
+                return token;
+        }
+        return -1;
+    }
+
+    private int[] buildTable() {
+        int[] table = new int[Math.max(8, Integer.highestOneBit(count) * 4)];
+        int mask = table.length - 1;
+        // In order, so the first of several headers with a name comes first along the probe
+        for (int index = 0; index < count; index++) {
+            int i = hashes[index] & mask;
+            while (table[i] != 0)
+                i = (i + 1) & mask;
+            table[i] = index + 1;
+        }
+        return table;
+    }
+
+    static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++)
+            hash = 31 * hash + toLowerCase(name.charAt(i));
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the hash of a name in ISO-8859-1 bytes, the same as
+     *         {@link #hash(String)} gives for it
+     */
+    static int hash(byte[] bytes, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + toLowerCase(bytes[i] & 0xff);
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
@@ -0,0 +1,180 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values in the style of HdrHistogram.
+ * Values below 64 are counted exactly and larger ones in buckets a 32nd of
+ * their power of two wide, so any recorded value is known to within about 3%
+ * over the whole range of a long, in a fixed 15K of counts.
+ * <p>
+ * It's reported to Prometheus with coarser buckets, converted to the exported
+ * unit with a scale, so durations can be recorded in nanoseconds and reported
+ * in seconds.
+ */
+public class Histogram implements Metric {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 2 * SUB_BUCKETS + (62 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /** Prometheus buckets for latencies in seconds, from 0.1ms to 10s. */
+    public static final double[] LATENCY_SECONDS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+            0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    private final String name;
+    private final String help;
+    private final double scale;
+    private final double[] boundaries;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * A histogram of nanoseconds reported in seconds with
+     * {@link #LATENCY_SECONDS}.
+     */
+    public Histogram(String name, String help) {
+        this(name, help, 1e-9, LATENCY_SECONDS);
+    }
+
+    /**
+     * @param scale
+     *            what a recorded value is multiplied by when it's reported
+     * @param boundaries
+     *            the upper bounds of the reported buckets, in the reported unit
+     */
+    public Histogram(String name, String help, double scale, double[] boundaries) {
+        this.name = name;
+        this.help = help;
+        this.scale = scale;
+        this.boundaries = boundaries.clone();
+    }
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+            ;
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value counted in a bucket
+     */
+    static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long lowest = (long) ((index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile
+     *            between 0 and 100
+     * @return the value that percentile of recorded values are at or below,
+     *         to within the precision of its bucket
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = snapshot();
+        long count = 0;
+        for (long c : snapshot)
+            count += c;
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        sum.reset();
+        max.set(0);
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            snapshot[i] = counts.get(i);
+        return snapshot;
+    }
+
+    @Override
+    public void writePrometheus(Appendable out) throws IOException {
+        MetricsRegistry.writeHeader(out, name, help, "histogram");
+
+        long[] snapshot = snapshot();
+        long cumulative = 0;
+        int bucket = 0;
+        for (double boundary : boundaries) {
+            while (bucket < BUCKETS && highestValue(bucket) * scale <= boundary)
+                cumulative += snapshot[bucket++];
+            out.append(name).append("_bucket{le=\"").append(MetricsRegistry.format(boundary)).append("\"} ")
+                    .append(Long.toString(cumulative)).append('\n');
+        }
+        while (bucket < BUCKETS)
+            cumulative += snapshot[bucket++];
+
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(Long.toString(cumulative)).append('\n');
+        out.append(name).append("_sum ").append(MetricsRegistry.format(getSum() * scale)).append('\n');
+        out.append(name).append("_count ").append(Long.toString(cumulative)).append('\n');
+    }
+}
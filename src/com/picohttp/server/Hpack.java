@@ -0,0 +1,432 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541). Each direction of a
+ * connection has its own dynamic table, kept within the size its decoder
+ * allows, so a connection holds a {@link Decoder} for the client's header
+ * blocks and an {@link Encoder} for its own. Strings are ISO-8859-1, one
+ * character per byte, as the request parsers treat them.
+ */
+final class Hpack {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /** The default and, for our encoder, the largest dynamic table size */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /** What an entry costs in the dynamic table besides its name and value */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[] STATIC_NAMES = { null, ":authority", ":method", ":method", ":path", ":path",
+            ":scheme", ":scheme", ":status", ":status", ":status", ":status", ":status", ":status", ":status",
+            "accept-charset", "accept-encoding", "accept-language", "accept-ranges", "accept",
+            "access-control-allow-origin", "age", "allow", "authorization", "cache-control", "content-disposition",
+            "content-encoding", "content-language", "content-length", "content-location", "content-range",
+            "content-type", "cookie", "date", "etag", "expect", "expires", "from", "host", "if-match",
+            "if-modified-since", "if-none-match", "if-range", "if-unmodified-since", "last-modified", "link",
+            "location", "max-forwards", "proxy-authenticate", "proxy-authorization", "range", "referer", "refresh",
+            "retry-after", "server", "set-cookie", "strict-transport-security", "transfer-encoding", "user-agent",
+            "vary", "via", "www-authenticate" };
+
+    private static final String[] STATIC_VALUES = new String[STATIC_NAMES.length];
+
+    /** The first static entry with each name */
+    private static final Map<String, Integer> STATIC_INDEX = new HashMap<String, Integer>();
+
+    static {
+        String[] values = { "", "GET", "POST", "/", "/index.html", "http", "https", "200", "204", "206", "304", "400",
+                "404", "500", "", "gzip, deflate" };
+        for (int i = 1; i < STATIC_NAMES.length; i++) {
+            STATIC_VALUES[i] = i < values.length + 1 ? values[i - 1] : "";
+            if (!STATIC_INDEX.containsKey(STATIC_NAMES[i]))
+                STATIC_INDEX.put(STATIC_NAMES[i], i);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * The dynamic table, newest entry first, evicting the oldest to stay
+     * within its size.
+     */
+    private static final class Table {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        /** Where the newest entry is in the arrays, which wrap around */
+        private int first;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int length() {
+            return count;
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * @param i
+         *            0 for the newest entry
+         */
+        String name(int i) {
+            return names[(first + i) % names.length];
+        }
+
+        String value(int i) {
+            return values[(first + i) % names.length];
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(maxSize - entrySize);
+            // An entry larger than the whole table just empties it
+            if (entrySize > maxSize)
+                return;
+
+            if (count == names.length) {
+                String[] newNames = new String[count * 2];
+                String[] newValues = new String[count * 2];
+                for (int i = 0; i < count; i++) {
+                    newNames[i] = name(i);
+                    newValues[i] = value(i);
+                }
+                names = newNames;
+                values = newValues;
+                first = 0;
+            }
+
+            first = (first + names.length - 1) % names.length;
+            names[first] = name;
+            values[first] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int target) {
+            while (count > 0 && size > target) {
+                int last = (first + count - 1) % names.length;
+                size -= names[last].length() + values[last].length() + ENTRY_OVERHEAD;
+                names[last] = values[last] = null;
+                count--;
+            }
+        }
+
+        /**
+         * @return the entry with the name and value, or -1
+         */
+        int find(String name, String value) {
+            for (int i = 0; i < count; i++)
+                if (name(i).equals(name) && value(i).equals(value))
+                    return i;
+            return -1;
+        }
+
+        /**
+         * @return the newest entry with the name, or -1
+         */
+        int findName(String name) {
+            for (int i = 0; i < count; i++)
+                if (name(i).equals(name))
+                    return i;
+            return -1;
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one connection's client, in the order they
+     * were sent.
+     */
+    static final class Decoder {
+        private final Table table;
+        private final int maxTableSize;
+        private final StringBuilder builder = new StringBuilder();
+        private byte[] data;
+        private int pos;
+        private int end;
+
+        /**
+         * @param maxTableSize
+         *            the largest size the client may switch the table to,
+         *            which is the default size until it does
+         */
+        Decoder(int maxTableSize) {
+            this.table = new Table(DEFAULT_TABLE_SIZE);
+            this.maxTableSize = maxTableSize;
+        }
+
+        /**
+         * Decodes a complete header block.
+         * 
+         * @param fields
+         *            receives each field's name and then its value
+         * @throws IOException
+         *             if the block is malformed, which the connection can't
+         *             recover from
+         */
+        void decode(byte[] data, int offset, int length, List<String> fields) throws IOException {
+            this.data = data;
+            this.pos = offset;
+            this.end = offset + length;
+            boolean started = false;
+
+            try {
+                while (pos < end) {
+                    int b = data[pos] & 0xff;
+                    if ((b & 0x80) != 0) {
+                        int index = integer(7);
+                        fields.add(name(index));
+                        fields.add(value(index));
+                    }
+                    else if ((b & 0x40) != 0) {
+                        // Literal with incremental indexing
+                        int index = integer(6);
+                        String name = index == 0 ? string() : name(index);
+                        String value = string();
+                        table.add(name, value);
+                        fields.add(name);
+                        fields.add(value);
+                    }
+                    else if ((b & 0x20) != 0) {
+                        if (started)
+                            throw new IOException("Table size update after a header field");
+                        int size = integer(5);
+                        if (size > maxTableSize)
+                            throw new IOException("Table size update beyond " + maxTableSize);
+                        table.setMaxSize(size);
+                        continue;
+                    }
+                    else {
+                        // Literal without indexing or never indexed
+                        int index = integer(4);
+                        fields.add(index == 0 ? string() : name(index));
+                        fields.add(string());
+                    }
+                    started = true;
+                }
+            }
+            finally {
+                this.data = null;
+            }
+        }
+
+        private String name(int index) throws IOException {
+            if (index > 0 && index < STATIC_NAMES.length)
+                return STATIC_NAMES[index];
+            if (index >= STATIC_NAMES.length && index - STATIC_NAMES.length < table.length())
+                return table.name(index - STATIC_NAMES.length);
+            throw new IOException("Invalid header table index " + index);
+        }
+
+        private String value(int index) throws IOException {
+            if (index > 0 && index < STATIC_NAMES.length)
+                return STATIC_VALUES[index];
+            if (index >= STATIC_NAMES.length && index - STATIC_NAMES.length < table.length())
+                return table.value(index - STATIC_NAMES.length);
+            throw new IOException("Invalid header table index " + index);
+        }
+
+        private int integer(int prefix) throws IOException {
+            int max = (1 << prefix) - 1;
+            int value = data[pos++] & max;
+            if (value < max)
+                return value;
+
+            for (int shift = 0; shift <= 21; shift += 7) {
+                if (pos == end)
+                    throw new IOException("Truncated header block");
+                int b = data[pos++];
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Integer too large in a header block");
+        }
+
+        private String string() throws IOException {
+            if (pos == end)
+                throw new IOException("Truncated header block");
+            boolean huffman = (data[pos] & 0x80) != 0;
+            int length = integer(7);
+            if (length > end - pos)
+                throw new IOException("Truncated header block");
+
+            String string;
+            if (huffman) {
+                builder.setLength(0);
+                Huffman.decode(data, pos, length, builder);
+                string = builder.toString();
+            }
+            else
+                string = new String(data, pos, length, ISO_8859_1);
+            pos += length;
+            return string;
+        }
+    }
+
+    /**
+     * Encodes a connection's response header blocks, which must be sent in the
+     * order they were encoded.
+     */
+    static final class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        /** The smallest size the table was set to since the last block, or -1 */
+        private int lowestSize = -1;
+        private byte[] buf = new byte[256];
+        private int count;
+
+        /**
+         * Follows the client's SETTINGS_HEADER_TABLE_SIZE, as far as the
+         * default size.
+         */
+        void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (size == table.getMaxSize())
+                return;
+
+            table.setMaxSize(size);
+            lowestSize = lowestSize < 0 ? size : Math.min(lowestSize, size);
+        }
+
+        /**
+         * Starts a new header block, telling the client about any change to
+         * the table size first.
+         */
+        void begin() {
+            count = 0;
+            if (lowestSize >= 0) {
+                if (lowestSize < table.getMaxSize())
+                    integer(0x20, 5, lowestSize);
+                integer(0x20, 5, table.getMaxSize());
+                lowestSize = -1;
+            }
+        }
+
+        /**
+         * @param name
+         *            in lower case
+         */
+        void header(String name, String value) {
+            Integer first = STATIC_INDEX.get(name);
+            if (first != null) {
+                for (int i = first; i < STATIC_NAMES.length && STATIC_NAMES[i].equals(name); i++) {
+                    if (STATIC_VALUES[i].equals(value) && !value.isEmpty()) {
+                        integer(0x80, 7, i);
+                        return;
+                    }
+                }
+            }
+
+            int entry = table.find(name, value);
+            if (entry >= 0) {
+                integer(0x80, 7, STATIC_NAMES.length + entry);
+                return;
+            }
+
+            int nameIndex = first != null ? first : 0;
+            if (nameIndex == 0) {
+                int named = table.findName(name);
+                if (named >= 0)
+                    nameIndex = STATIC_NAMES.length + named;
+            }
+
+            if (name.equals("set-cookie") || name.equals("authorization"))
+                // Never indexed, so intermediaries don't either
+                integer(0x10, 4, nameIndex);
+            else if (name.equals("content-length")
+                    || name.length() + value.length() + ENTRY_OVERHEAD > table.getMaxSize() / 2)
+                // Unlikely to be repeated or would push out too much
+                integer(0x00, 4, nameIndex);
+            else {
+                integer(0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+
+            if (nameIndex == 0)
+                string(name);
+            string(value);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        int length() {
+            return count;
+        }
+
+        private void integer(int pattern, int prefix, int value) {
+            ensure(6);
+            int max = (1 << prefix) - 1;
+            if (value < max) {
+                buf[count++] = (byte) (pattern | value);
+                return;
+            }
+
+            buf[count++] = (byte) (pattern | max);
+            value -= max;
+            while (value >= 0x80) {
+                buf[count++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        private void string(String string) {
+            int length = string.length();
+            int coded = Huffman.encodedLength(string);
+            if (coded < length) {
+                integer(0x80, 7, coded);
+                ensure(coded);
+                count = Huffman.encode(string, buf, count);
+                return;
+            }
+
+            integer(0x00, 7, length);
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                char c = string.charAt(i);
+                buf[count++] = c < 256 ? (byte) c : (byte) '?';
+            }
+        }
+
+        private void ensure(int length) {
+            if (count + length > buf.length) {
+                byte[] grown = new byte[Math.max(buf.length * 2, count + length)];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+        }
+    }
+}
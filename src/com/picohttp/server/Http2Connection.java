@@ -0,0 +1,1788 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * One HTTP/2 connection (RFC 7540), whichever engine reads it. The engine
+ * hands over what it reads with {@link #receive(byte[], int, int)}, on one
+ * thread at a time, and each request is served on the {@link Dispatcher} as a
+ * stream of its own once its body is complete.
+ * <p>
+ * Streams go through the same {@link Request}, {@link RequestHandler} and
+ * {@link Response} types as HTTP/1.x. The request's headers are given to the
+ * request type as an HTTP/1.x head with the body after it, and the head the
+ * response writes is turned back into a HEADERS frame, so handlers run
+ * unchanged. Their requests report the protocol as HTTP/2.0.
+ * <p>
+ * Frames are written by whichever thread has something to send, one at a time
+ * under the write lock. Those the reading thread sends, such as SETTINGS and
+ * PING acknowledgements and WINDOW_UPDATEs, are queued and written by it only
+ * if nobody else is writing, so it never waits for a stream. An event loop
+ * doesn't write them at all, since that could block every connection it
+ * reads, but has a worker do it. A client that lets too many of them pile up
+ * without reading them is sent a GOAWAY and dropped. A stream waits for flow
+ * control credit from the client no longer than the write timeout.
+ */
+final class Http2Connection {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /** What a client starts with, in place of a request */
+    static final byte[] PREFACE = ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+    static final int FRAME_HEADER_LENGTH = 9;
+    /** The largest frame payload either side sends, the protocol's default */
+    static final int MAX_FRAME_SIZE = 16384;
+
+    private static final byte[] SWITCHING_PROTOCOLS = ascii("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+
+    private static final int DATA = 0, HEADERS = 1, PRIORITY = 2, RST_STREAM = 3, SETTINGS = 4, PUSH_PROMISE = 5,
+            PING = 6, GOAWAY = 7, WINDOW_UPDATE = 8, CONTINUATION = 9;
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+    private static final int HEADER_TABLE_SIZE = 1, ENABLE_PUSH = 2, MAX_CONCURRENT_STREAMS = 3,
+            INITIAL_WINDOW_SIZE = 4, MAX_FRAME_SIZE_SETTING = 5;
+
+    static final int NO_ERROR = 0, PROTOCOL_ERROR = 1, INTERNAL_ERROR = 2, FLOW_CONTROL_ERROR = 3,
+            STREAM_CLOSED = 5, FRAME_SIZE_ERROR = 6, REFUSED_STREAM = 7, CANCEL = 8, COMPRESSION_ERROR = 9,
+            ENHANCE_YOUR_CALM = 11;
+
+    /** The window every stream and the connection start with */
+    private static final int DEFAULT_WINDOW = 65535;
+    /** The most of a header block we'll buffer before giving up on the connection */
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    /** The most control frames left waiting to be written before giving up on the client */
+    private static final int MAX_QUEUED_CONTROL = 1024;
+
+    /** Where a {@code ResponseStream} is in a chunked body */
+    private static final int NOT_CHUNKED = 0, CHUNK_SIZE = 1, CHUNK_DATA = 2, CHUNK_DATA_END = 3, CHUNK_TRAILER = 4,
+            CHUNK_DONE = 5;
+
+    private final PicoHttp server;
+    private final Connection connection;
+    private final OutputStream out;
+    private final Runnable closer;
+    /** Whether the reading thread is an event loop, which mustn't wait to write */
+    private final boolean eventLoop;
+    private final Configuration configuration;
+    private final Dispatcher dispatcher;
+    private final AdmissionControl admission;
+    private final ConnectionGuard guard;
+    private final Instrumentation instrumentation;
+    private final int initialWindowSize;
+    private final int maxConcurrentStreams;
+    private final Hpack.Decoder decoder;
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /** Frames from the reading thread waiting for the write lock */
+    private final Queue<byte[]> control = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger queuedControl = new AtomicInteger();
+    /** Set while a worker has been asked to write the control frames for an event loop */
+    private final AtomicBoolean controlScheduled = new AtomicBoolean();
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+
+    // Only touched by the reading thread
+    private boolean prefaceReceived;
+    private boolean settingsReceived;
+    private boolean settingsAcknowledged;
+    private int connectionWindow;
+    private int receiveWindow;
+    /** The stream whose header block is waiting for CONTINUATION frames, or 0 */
+    private int continuedId;
+    private int blockFlags;
+    private byte[] block = new byte[1024];
+    private int blockLength;
+
+    /** The client's largest stream so far */
+    private volatile int lastStreamId;
+    private volatile long lastActive = System.currentTimeMillis();
+    private volatile boolean goingAway;
+    private volatile boolean closed;
+    /** A table size the client asked for that the encoder hasn't switched to, or -1 */
+    private volatile int tableSize = -1;
+
+    // Guarded by this
+    private int sendWindow = DEFAULT_WINDOW;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+
+    /**
+     * @param connection
+     *            the client's connection, through whose output stream every
+     *            frame is written
+     * @param closer
+     *            closes the connection when it must be given up from a
+     *            thread other than the reading one
+     * @param eventLoop
+     *            true if the connection is read by an event loop, which
+     *            leaves writing to the dispatcher's workers
+     */
+    Http2Connection(PicoHttp server, Connection connection, Runnable closer, boolean eventLoop) {
+        this.server = server;
+        this.connection = connection;
+        this.out = connection.getOutputStream();
+        this.closer = closer;
+        this.eventLoop = eventLoop;
+        this.configuration = server.getConfiguration();
+        this.dispatcher = server.getDispatcher();
+        this.admission = server.getAdmissionControl();
+        this.guard = server.getConnectionGuard();
+        this.instrumentation = server.getInstrumentation();
+        this.initialWindowSize = Math.max(0, configuration.getInitialWindowSize());
+        this.maxConcurrentStreams = Math.max(1, configuration.getMaxConcurrentStreams());
+        this.decoder = new Hpack.Decoder(Math.max(0, configuration.getHeaderTableSize()));
+        this.connectionWindow = Math.max(initialWindowSize, DEFAULT_WINDOW);
+        this.receiveWindow = connectionWindow;
+    }
+
+    /**
+     * @return 1 if the bytes start with the connection preface, 0 if there
+     *         aren't enough of them to tell or -1 if they don't
+     */
+    static int matchPreface(byte[] data, int offset, int end) {
+        int length = Math.min(end - offset, PREFACE.length);
+        for (int i = 0; i < length; i++)
+            if (data[offset + i] != PREFACE[i])
+                return -1;
+        return length == PREFACE.length ? 1 : 0;
+    }
+
+    /**
+     * Reads until it's clear whether the client sent the connection preface,
+     * leaving whatever it sent in the stream.
+     */
+    static boolean awaitPreface(HttpInputStream in) throws IOException {
+        for (;;) {
+            int match = matchPreface(in.buf, in.pos, in.limit);
+            if (match != 0)
+                return match > 0;
+            if (!in.fill(in.buf.length))
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the request asks to switch to HTTP/2 without TLS and
+     *         can be served as the first stream
+     */
+    static boolean isUpgrade(Request request) {
+        if (!"HTTP/1.1".equals(request.getProtocol()))
+            return false;
+
+        String connection = request.getHeader("Connection");
+        String upgrade = request.getHeader("Upgrade");
+        String settings = request.getHeader("HTTP2-Settings");
+        if (connection == null || upgrade == null || settings == null || !hasToken(connection, "upgrade")
+                || !hasToken(connection, "http2-settings") || !hasToken(upgrade, "h2c"))
+            return false;
+
+        // The body would have to be sent before the switch
+        String contentLength = request.getHeader("Content-Length");
+        if (request.getHeader("Transfer-Encoding") != null
+                || (contentLength != null && !contentLength.trim().equals("0")))
+            return false;
+
+        return decodeSettings(settings) != null;
+    }
+
+    /**
+     * @return the SETTINGS payload in an HTTP2-Settings header, or null if it
+     *         isn't valid
+     */
+    private static byte[] decodeSettings(String header) {
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(header.trim());
+            return settings.length % 6 == 0 ? settings : null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasToken(String header, String token) {
+        for (String part : header.split(","))
+            if (part.trim().equalsIgnoreCase(token))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Sends our SETTINGS, which the server must start with.
+     */
+    void start() throws IOException {
+        int count = configuration.getHeaderTableSize() != Hpack.DEFAULT_TABLE_SIZE ? 3 : 2;
+        byte[] settings = frame(SETTINGS, 0, 0, count * 6);
+        int pos = FRAME_HEADER_LENGTH;
+        pos = setting(settings, pos, MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+        pos = setting(settings, pos, INITIAL_WINDOW_SIZE, initialWindowSize);
+        if (count == 3)
+            setting(settings, pos, HEADER_TABLE_SIZE, Math.max(0, configuration.getHeaderTableSize()));
+        queue(settings);
+
+        // The connection's own window can only be changed with an update
+        if (connectionWindow > DEFAULT_WINDOW)
+            queue(windowUpdate(0, connectionWindow - DEFAULT_WINDOW));
+
+        drain();
+    }
+
+    /**
+     * Switches a connection to HTTP/2 in answer to an upgrade request, which
+     * becomes the first stream.
+     */
+    void upgrade(Request request) throws IOException {
+        byte[] settings = decodeSettings(request.getHeader("HTTP2-Settings"));
+        // Acknowledged by the switch itself
+        applySettings(settings, 0, settings.length);
+
+        writeLock.lock();
+        try {
+            out.write(SWITCHING_PROTOCOLS);
+        }
+        finally {
+            unlock();
+        }
+        start();
+
+        List<String> fields = new ArrayList<String>();
+        fields.add(":method");
+        fields.add(request.getMethod());
+        fields.add(":path");
+        fields.add(request.getUri());
+        fields.add(":scheme");
+        fields.add("http");
+        String host = request.getHeader("Host");
+        if (host != null) {
+            fields.add(":authority");
+            fields.add(host);
+        }
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ENGLISH);
+            if (!name.equals("host") && !name.equals("http2-settings") && !isConnectionSpecific(name)
+                    && !name.equals("te") && !name.equals("content-length")) {
+                fields.add(name);
+                fields.add(header.getValue());
+            }
+        }
+
+        lastStreamId = 1;
+        Stream stream = new Stream(1, fields);
+        stream.remoteClosed = true;
+        streams.put(1, stream);
+        dispatch(stream);
+    }
+
+    /**
+     * Takes in the frames the client has sent so far.
+     * 
+     * @return the number of bytes used, up to the end of the last whole frame
+     * @throws IOException
+     *             if the client broke the protocol, after telling it so with
+     *             a GOAWAY, and the connection must be closed
+     */
+    int receive(byte[] data, int offset, int length) throws IOException {
+        int pos = offset;
+        int end = offset + length;
+
+        try {
+            if (!prefaceReceived) {
+                int match = matchPreface(data, pos, end);
+                if (match < 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+                if (match == 0)
+                    return 0;
+                pos += PREFACE.length;
+                prefaceReceived = true;
+            }
+
+            while (end - pos >= FRAME_HEADER_LENGTH) {
+                int frameLength = (data[pos] & 0xff) << 16 | (data[pos + 1] & 0xff) << 8 | (data[pos + 2] & 0xff);
+                if (frameLength > MAX_FRAME_SIZE)
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + frameLength + " bytes");
+                if (end - pos < FRAME_HEADER_LENGTH + frameLength)
+                    break;
+
+                int type = data[pos + 3] & 0xff;
+                int flags = data[pos + 4] & 0xff;
+                int streamId = readInt(data, pos + 5) & 0x7fffffff;
+                lastActive = System.currentTimeMillis();
+                receive(type, flags, streamId, data, pos + FRAME_HEADER_LENGTH, frameLength);
+                pos += FRAME_HEADER_LENGTH + frameLength;
+
+                // Asking for answers, PINGs say, faster than it takes them
+                if (queuedControl.get() > MAX_QUEUED_CONTROL)
+                    throw new ConnectionError(ENHANCE_YOUR_CALM, "Too many control frames waiting to be written");
+            }
+        }
+        catch (ConnectionError e) {
+            abort(e.errorCode);
+            throw e;
+        }
+        finally {
+            drain();
+        }
+
+        return pos - offset;
+    }
+
+    private void receive(int type, int flags, int streamId, byte[] data, int offset, int length)
+            throws IOException {
+        if (continuedId != 0 && (type != CONTINUATION || streamId != continuedId))
+            throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+        if (!settingsReceived && type != SETTINGS)
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS must come first");
+
+        switch (type) {
+        case DATA:
+            data(flags, streamId, data, offset, length);
+            break;
+        case HEADERS:
+            headers(flags, streamId, data, offset, length);
+            break;
+        case CONTINUATION:
+            if (continuedId == 0)
+                throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+            appendBlock(data, offset, length);
+            if ((flags & END_HEADERS) != 0) {
+                continuedId = 0;
+                endHeaders(streamId);
+            }
+            break;
+        case PRIORITY:
+            if (streamId == 0)
+                throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY for the connection");
+            if (length != 5)
+                reset(streamId, FRAME_SIZE_ERROR);
+            break;
+        case RST_STREAM:
+            resetReceived(streamId, length);
+            break;
+        case SETTINGS:
+            settings(flags, streamId, data, offset, length);
+            break;
+        case PUSH_PROMISE:
+            throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+        case PING:
+            if (streamId != 0)
+                throw new ConnectionError(PROTOCOL_ERROR, "PING on a stream");
+            if (length != 8)
+                throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+            if ((flags & ACK) == 0) {
+                byte[] pong = frame(PING, ACK, 0, 8);
+                System.arraycopy(data, offset, pong, FRAME_HEADER_LENGTH, 8);
+                queue(pong);
+            }
+            break;
+        case GOAWAY:
+            if (streamId != 0)
+                throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on a stream");
+            // Those already started are still answered
+            goingAway = true;
+            break;
+        case WINDOW_UPDATE:
+            windowUpdate(streamId, data, offset, length);
+            break;
+        default:
+            // Unknown frame types are ignored
+        }
+    }
+
+    private void data(int flags, int streamId, byte[] data, int offset, int length) throws IOException {
+        if (streamId == 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA for the connection");
+
+        int padding = 0;
+        int start = offset;
+        if ((flags & PADDED) != 0) {
+            if (length == 0)
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Padded DATA without a length");
+            padding = data[start++] & 0xff;
+        }
+        int size = offset + length - start - padding;
+        if (size < 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding longer than DATA");
+
+        // Padding counts towards the windows too
+        if (length > receiveWindow)
+            throw new ConnectionError(FLOW_CONTROL_ERROR, "DATA beyond the connection window");
+        receiveWindow -= length;
+        if (receiveWindow <= connectionWindow / 2) {
+            queue(windowUpdate(0, connectionWindow - receiveWindow));
+            receiveWindow = connectionWindow;
+        }
+
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.reset) {
+            if (streamId > lastStreamId)
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA for an idle stream");
+            // Still in flight when the stream was closed
+            return;
+        }
+        if (stream.remoteClosed) {
+            reset(stream, STREAM_CLOSED);
+            return;
+        }
+        if (length > stream.receiveWindow) {
+            reset(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+
+        stream.receiveWindow -= length;
+        stream.append(data, start, size);
+
+        if ((flags & END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            complete(stream);
+        }
+        else if (!stream.dispatched) {
+            // Answered already if the body grew too large, so there's no point sending more
+            int window = streamWindow();
+            if (stream.receiveWindow <= window / 2) {
+                queue(windowUpdate(streamId, window - stream.receiveWindow));
+                stream.receiveWindow = window;
+            }
+        }
+    }
+
+    private void headers(int flags, int streamId, byte[] data, int offset, int length) throws IOException {
+        if (streamId == 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS for the connection");
+
+        int start = offset;
+        int padding = 0;
+        if ((flags & PADDED) != 0) {
+            if (length == 0)
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Padded HEADERS without a length");
+            padding = data[start++] & 0xff;
+        }
+        if ((flags & PRIORITY_FLAG) != 0)
+            start += 5;
+        int size = offset + length - start - padding;
+        if (size < 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding longer than HEADERS");
+
+        blockFlags = flags;
+        blockLength = 0;
+        appendBlock(data, start, size);
+        if ((flags & END_HEADERS) != 0)
+            endHeaders(streamId);
+        else
+            continuedId = streamId;
+    }
+
+    private void appendBlock(byte[] data, int offset, int length) throws IOException {
+        if (blockLength + length > MAX_HEADER_BLOCK)
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block larger than " + MAX_HEADER_BLOCK + " bytes");
+
+        if (blockLength + length > block.length) {
+            byte[] larger = new byte[Math.max(block.length * 2, blockLength + length)];
+            System.arraycopy(block, 0, larger, 0, blockLength);
+            block = larger;
+        }
+        System.arraycopy(data, offset, block, blockLength, length);
+        blockLength += length;
+    }
+
+    /**
+     * Starts a stream, or ends one with trailers, once its header block is
+     * complete.
+     */
+    private void endHeaders(int streamId) throws IOException {
+        List<String> fields = new ArrayList<String>();
+        try {
+            // Even those that are refused, so the table stays in step with the client's
+            decoder.decode(block, 0, blockLength, fields);
+        }
+        catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean endStream = (blockFlags & END_STREAM) != 0;
+
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            // Trailers, which a request can't be given
+            if (stream.reset)
+                return;
+            if (stream.remoteClosed)
+                reset(stream, STREAM_CLOSED);
+            else if (!endStream)
+                reset(stream, PROTOCOL_ERROR);
+            else {
+                stream.remoteClosed = true;
+                complete(stream);
+            }
+            return;
+        }
+
+        if ((streamId & 1) == 0 || streamId <= lastStreamId)
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS for stream " + streamId);
+        lastStreamId = streamId;
+
+        // Past the last stream we said we'd answer
+        if (goingAway)
+            return;
+
+        if (!isValid(fields)) {
+            reset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        if (streams.size() >= maxConcurrentStreams) {
+            reset(streamId, REFUSED_STREAM);
+            return;
+        }
+
+        stream = new Stream(streamId, fields);
+        streams.put(streamId, stream);
+        if (stream.errorStatus != 0)
+            dispatch(stream);
+        else if (endStream) {
+            stream.remoteClosed = true;
+            complete(stream);
+        }
+    }
+
+    /**
+     * @return true if the header fields make a well formed request, with the
+     *         pseudo-header fields first and nothing that could be mistaken
+     *         for the end of a header line
+     */
+    private static boolean isValid(List<String> fields) {
+        boolean regular = false;
+        boolean method = false, path = false;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (name.isEmpty())
+                return false;
+
+            for (int c = 0; c < value.length(); c++) {
+                char ch = value.charAt(c);
+                if (ch == '\r' || ch == '\n' || ch == 0)
+                    return false;
+            }
+
+            if (name.charAt(0) == ':') {
+                if (regular)
+                    return false;
+                if (name.equals(":method")) {
+                    if (method || value.isEmpty())
+                        return false;
+                    method = true;
+                }
+                else if (name.equals(":path")) {
+                    if (path || value.isEmpty())
+                        return false;
+                    path = true;
+                }
+                else if (!name.equals(":scheme") && !name.equals(":authority"))
+                    return false;
+                continue;
+            }
+
+            regular = true;
+            for (int c = 0; c < name.length(); c++) {
+                char ch = name.charAt(c);
+                if (ch <= ' ' || ch >= 0x7f || ch == ':' || (ch >= 'A' && ch <= 'Z'))
+                    return false;
+            }
+            if (isConnectionSpecific(name) || (name.equals("te") && !value.equals("trailers")))
+                return false;
+        }
+
+        return method && path;
+    }
+
+    private static boolean isConnectionSpecific(String name) {
+        return name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection")
+                || name.equals("transfer-encoding") || name.equals("upgrade");
+    }
+
+    /**
+     * Dispatches a stream whose request has all arrived.
+     */
+    private void complete(Stream stream) {
+        if (stream.dispatched)
+            return;
+
+        if (stream.errorStatus == 0 && stream.contentLength >= 0 && stream.contentLength != stream.bodyLength) {
+            reset(stream, PROTOCOL_ERROR);
+            return;
+        }
+        dispatch(stream);
+    }
+
+    private void dispatch(Stream stream) {
+        stream.dispatched = true;
+        if (!admission.admit(dispatcher)) {
+            reset(stream, REFUSED_STREAM);
+            return;
+        }
+
+        stream.dispatchedAt = System.nanoTime();
+        try {
+            dispatcher.execute(stream);
+        }
+        catch (RejectedExecutionException e) {
+            admission.shed(AdmissionControl.Reason.QUEUE_FULL);
+            reset(stream, REFUSED_STREAM);
+        }
+    }
+
+    private void resetReceived(int streamId, int length) throws IOException {
+        if (streamId == 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM for the connection");
+        if (length != 4)
+            throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+        if (streamId > lastStreamId)
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM for an idle stream");
+
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.reset)
+            return;
+
+        stream.reset = true;
+        if (!stream.dispatched) {
+            stream.release();
+            streams.remove(streamId);
+            return;
+        }
+
+        // Still counted against the limit until its handler is done with it
+        synchronized (this) {
+            notifyAll();
+        }
+        PendingResponse pending = stream.pending;
+        if (pending != null)
+            pending.cancel();
+    }
+
+    private void settings(int flags, int streamId, byte[] data, int offset, int length) throws IOException {
+        if (streamId != 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+
+        if ((flags & ACK) != 0) {
+            if (length != 0)
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            settingsAcknowledged = true;
+            return;
+        }
+        if (length % 6 != 0)
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+
+        applySettings(data, offset, length);
+        settingsReceived = true;
+        queue(frame(SETTINGS, ACK, 0, 0));
+    }
+
+    private void applySettings(byte[] data, int offset, int length) throws IOException {
+        for (int pos = offset; pos < offset + length; pos += 6) {
+            int id = (data[pos] & 0xff) << 8 | (data[pos + 1] & 0xff);
+            long value = readInt(data, pos + 2) & 0xffffffffL;
+
+            switch (id) {
+            case HEADER_TABLE_SIZE:
+                tableSize = (int) Math.min(value, Integer.MAX_VALUE);
+                break;
+            case ENABLE_PUSH:
+                if (value > 1)
+                    throw new ConnectionError(PROTOCOL_ERROR, "ENABLE_PUSH of " + value);
+                break;
+            case INITIAL_WINDOW_SIZE:
+                if (value > Integer.MAX_VALUE)
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE of " + value);
+                initialWindow((int) value);
+                break;
+            case MAX_FRAME_SIZE_SETTING:
+                // We never send more than the default, which every client takes
+                if (value < MAX_FRAME_SIZE || value > 0xffffff)
+                    throw new ConnectionError(PROTOCOL_ERROR, "MAX_FRAME_SIZE of " + value);
+                break;
+            default:
+                // Those that don't concern a server, and unknown ones, are ignored
+            }
+        }
+    }
+
+    /**
+     * Moves every stream's send window by the change in the initial window.
+     */
+    private synchronized void initialWindow(int size) throws IOException {
+        int delta = size - peerInitialWindow;
+        peerInitialWindow = size;
+        for (Stream stream : streams.values()) {
+            if ((long) stream.sendWindow + delta > Integer.MAX_VALUE)
+                throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window overflow");
+            stream.sendWindow += delta;
+        }
+        notifyAll();
+    }
+
+    private void windowUpdate(int streamId, byte[] data, int offset, int length) throws IOException {
+        if (length != 4)
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+
+        int increment = readInt(data, offset) & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0)
+                throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            synchronized (this) {
+                if ((long) sendWindow + increment > Integer.MAX_VALUE)
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflow");
+                sendWindow += increment;
+                notifyAll();
+            }
+            return;
+        }
+
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId)
+                throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE for an idle stream");
+            return;
+        }
+        if (increment == 0) {
+            reset(stream, PROTOCOL_ERROR);
+            return;
+        }
+
+        synchronized (this) {
+            if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+                reset(stream, FLOW_CONTROL_ERROR);
+                return;
+            }
+            stream.sendWindow += increment;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the window a stream's body starts with, which is the default
+     *         until the client has taken our SETTINGS
+     */
+    private int streamWindow() {
+        return settingsAcknowledged ? initialWindowSize : Math.max(initialWindowSize, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Tells the client a stream it started is over on our side, and counts it
+     * closed unless its handler is still at work.
+     */
+    private void reset(Stream stream, int errorCode) {
+        if (!stream.reset) {
+            stream.reset = true;
+            queue(rstStream(stream.id, errorCode));
+        }
+        if (!stream.dispatched || errorCode == REFUSED_STREAM) {
+            stream.release();
+            streams.remove(stream.id, stream);
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void reset(int streamId, int errorCode) {
+        queue(rstStream(streamId, errorCode));
+    }
+
+    /**
+     * Tells the client no more streams will be taken, with {@code errorCode}
+     * if something went wrong. Those already started are still answered.
+     */
+    void goAway(int errorCode) {
+        if (goingAway && errorCode == NO_ERROR)
+            return;
+        goingAway = true;
+        queue(goAwayFrame(errorCode));
+        drain();
+    }
+
+    /**
+     * Gives up on the connection after a GOAWAY with {@code errorCode}. An
+     * event loop's connection is closed by the worker that writes it, once
+     * it has; otherwise the reading thread closes it.
+     */
+    void abort(int errorCode) {
+        if (closed)
+            return;
+        close();
+        goingAway = true;
+        queue(goAwayFrame(errorCode));
+        drain();
+    }
+
+    private byte[] goAwayFrame(int errorCode) {
+        byte[] frame = frame(GOAWAY, 0, 0, 8);
+        writeInt(frame, FRAME_HEADER_LENGTH, lastStreamId);
+        writeInt(frame, FRAME_HEADER_LENGTH + 4, errorCode);
+        return frame;
+    }
+
+    /**
+     * @return true if no request is in progress, so the connection can be
+     *         parked or closed when the client has been quiet long enough
+     */
+    boolean isIdle() {
+        return streams.isEmpty() && continuedId == 0;
+    }
+
+    /**
+     * @return true if the client has started a request and not yet sent all
+     *         of it, so it shouldn't be left waiting long
+     */
+    boolean isReceiving() {
+        if (continuedId != 0)
+            return true;
+        for (Stream stream : streams.values())
+            if (!stream.dispatched)
+                return true;
+        return false;
+    }
+
+    /**
+     * @return true once the connection has been given up on
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return true once the connection should be closed
+     */
+    boolean isFinished() {
+        // A worker writing for an event loop closes the connection itself
+        return (closed || (goingAway && streams.isEmpty())) && !controlScheduled.get();
+    }
+
+    /**
+     * @return when a frame last arrived or a stream last finished
+     */
+    long getLastActive() {
+        return lastActive;
+    }
+
+    /**
+     * Gives up on every stream once the connection has been closed, waking
+     * any waiting for credit so their handlers fail rather than hang.
+     */
+    void close() {
+        closed = true;
+        for (Stream stream : streams.values()) {
+            stream.reset = true;
+            PendingResponse pending = stream.pending;
+            if (pending != null)
+                pending.cancel();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void streamClosed(Stream stream) {
+        streams.remove(stream.id, stream);
+        lastActive = System.currentTimeMillis();
+        if (goingAway && streams.isEmpty() && !controlScheduled.get())
+            closer.run();
+    }
+
+    private void queue(byte[] frame) {
+        control.add(frame);
+        queuedControl.incrementAndGet();
+    }
+
+    /**
+     * Writes the control frames queued by the reading thread, unless another
+     * thread is writing and will do it when it's done. An event loop has a
+     * worker write them instead.
+     */
+    private void drain() {
+        if (!eventLoop) {
+            writeQueued();
+            return;
+        }
+
+        if (control.isEmpty() || !controlScheduled.compareAndSet(false, true))
+            return;
+        try {
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeScheduled();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            controlScheduled.set(false);
+            close();
+            closer.run();
+        }
+    }
+
+    /**
+     * Writes the control frames for an event loop, on a worker, and closes
+     * the connection afterwards if it's finished.
+     */
+    private void writeScheduled() {
+        writeLock.lock();
+        try {
+            writeControl();
+            out.flush();
+        }
+        catch (IOException e) {
+            close();
+        }
+        finally {
+            writeLock.unlock();
+            controlScheduled.set(false);
+        }
+
+        if (isFinished())
+            closer.run();
+        else
+            drain();
+    }
+
+    /**
+     * Writes the queued control frames if nobody else is writing.
+     */
+    private void writeQueued() {
+        while (!control.isEmpty() && writeLock.tryLock()) {
+            try {
+                writeControl();
+                if (!writeLock.hasQueuedThreads())
+                    out.flush();
+            }
+            catch (IOException e) {
+                close();
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void writeControl() throws IOException {
+        byte[] frame;
+        while ((frame = control.poll()) != null) {
+            queuedControl.decrementAndGet();
+            out.write(frame);
+        }
+    }
+
+    /**
+     * Lets go of the write lock, picking up whatever the reading thread
+     * queued meanwhile.
+     */
+    private void unlock() {
+        writeLock.unlock();
+        if (!control.isEmpty())
+            writeQueued();
+    }
+
+    /**
+     * Gives up on the connection after a write to it failed, from a stream's
+     * thread.
+     */
+    private IOException failed(IOException e) {
+        if (!closed) {
+            close();
+            closer.run();
+        }
+        return e;
+    }
+
+    /**
+     * Sends whatever the output stream has buffered.
+     */
+    private void flushOutput() throws IOException {
+        writeLock.lock();
+        try {
+            writeControl();
+            out.flush();
+        }
+        catch (IOException e) {
+            throw failed(e);
+        }
+        finally {
+            unlock();
+        }
+    }
+
+    private void writeHeaders(Stream stream, List<String> fields, boolean endStream) throws IOException {
+        writeLock.lock();
+        try {
+            writeControl();
+            if (stream.reset)
+                throw new IOException("Stream " + stream.id + " reset");
+
+            int size = tableSize;
+            if (size >= 0) {
+                tableSize = -1;
+                encoder.setMaxTableSize(size);
+            }
+            encoder.begin();
+            for (int i = 0; i < fields.size(); i += 2)
+                encoder.header(fields.get(i), fields.get(i + 1));
+
+            byte[] block = encoder.buffer();
+            int length = encoder.length();
+            int type = HEADERS;
+            int pos = 0;
+            do {
+                int count = Math.min(length - pos, MAX_FRAME_SIZE);
+                int flags = (pos + count == length ? END_HEADERS : 0)
+                        | (type == HEADERS && endStream ? END_STREAM : 0);
+                writeFrame(type, flags, stream.id, block, pos, count);
+                type = CONTINUATION;
+                pos += count;
+            } while (pos < length);
+
+            if (endStream && !writeLock.hasQueuedThreads())
+                out.flush();
+        }
+        catch (IOException e) {
+            throw stream.reset ? e : failed(e);
+        }
+        finally {
+            unlock();
+        }
+    }
+
+    private void writeData(Stream stream, byte[] data, int offset, int length, boolean endStream)
+            throws IOException {
+        do {
+            int count = length > 0 ? reserve(stream, length) : 0;
+            boolean last = count == length;
+
+            writeLock.lock();
+            try {
+                writeControl();
+                if (stream.reset)
+                    throw new IOException("Stream " + stream.id + " reset");
+                writeFrame(DATA, last && endStream ? END_STREAM : 0, stream.id, data, offset, count);
+                if (last && !writeLock.hasQueuedThreads())
+                    out.flush();
+            }
+            catch (IOException e) {
+                throw stream.reset ? e : failed(e);
+            }
+            finally {
+                unlock();
+            }
+
+            offset += count;
+            length -= count;
+        } while (length > 0);
+    }
+
+    /**
+     * Takes as much of the stream's and the connection's send windows as
+     * there is for the next frame, waiting for the client to give more if
+     * there isn't any.
+     * 
+     * @return the number of bytes that may be sent, at least 1
+     */
+    private int reserve(Stream stream, int length) throws IOException {
+        synchronized (this) {
+            int credit = credit(stream, length);
+            if (credit > 0)
+                return credit;
+        }
+
+        // The client may be waiting for what's buffered before it gives more
+        flushOutput();
+
+        int timeout = guard.getWriteTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            for (;;) {
+                int credit = credit(stream, length);
+                if (credit > 0)
+                    return credit;
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeout > 0 && remaining <= 0) {
+                    guard.violated(ConnectionGuard.Violation.WRITE_TIMEOUT);
+                    throw new SocketTimeoutException("No flow control credit for stream " + stream.id);
+                }
+                try {
+                    wait(timeout > 0 ? remaining : 0);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for flow control credit");
+                }
+            }
+        }
+    }
+
+    /**
+     * Called holding the monitor.
+     */
+    private int credit(Stream stream, int length) throws IOException {
+        if (closed || stream.reset)
+            throw new IOException("Stream " + stream.id + " reset");
+
+        int credit = Math.min(Math.min(length, MAX_FRAME_SIZE), Math.min(sendWindow, stream.sendWindow));
+        if (credit <= 0)
+            return 0;
+        sendWindow -= credit;
+        stream.sendWindow -= credit;
+        return credit;
+    }
+
+    /**
+     * Called holding the write lock.
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        frameHeader(frameHeader, length, type, flags, streamId);
+        out.write(frameHeader, 0, FRAME_HEADER_LENGTH);
+        if (length > 0)
+            out.write(payload, offset, length);
+    }
+
+    private static byte[] frame(int type, int flags, int streamId, int length) {
+        byte[] frame = new byte[FRAME_HEADER_LENGTH + length];
+        frameHeader(frame, length, type, flags, streamId);
+        return frame;
+    }
+
+    private static void frameHeader(byte[] header, int length, int type, int flags, int streamId) {
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt(header, 5, streamId);
+    }
+
+    private static byte[] rstStream(int streamId, int errorCode) {
+        byte[] frame = frame(RST_STREAM, 0, streamId, 4);
+        writeInt(frame, FRAME_HEADER_LENGTH, errorCode);
+        return frame;
+    }
+
+    private static byte[] windowUpdate(int streamId, int increment) {
+        byte[] frame = frame(WINDOW_UPDATE, 0, streamId, 4);
+        writeInt(frame, FRAME_HEADER_LENGTH, increment);
+        return frame;
+    }
+
+    private static int setting(byte[] frame, int pos, int id, int value) {
+        frame[pos] = (byte) (id >>> 8);
+        frame[pos + 1] = (byte) id;
+        writeInt(frame, pos + 2, value);
+        return pos + 6;
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16 | (data[pos + 2] & 0xff) << 8
+                | (data[pos + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(ISO_8859_1);
+    }
+
+    /**
+     * A breach of the protocol that ends the connection.
+     */
+    private static class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int errorCode;
+
+        ConnectionError(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * A request and its response. The reading thread buffers the body and
+     * then hands the stream to the Dispatcher, which serves it like a request
+     * on a connection of its own.
+     */
+    private class Stream implements Runnable, PendingResponse.Completion {
+        final int id;
+        private final List<String> fields;
+        /** The Content-Length the client gave, or -1 */
+        final long contentLength;
+        /** Set if the request is answered with an error without being read */
+        int errorStatus;
+        private byte[] body;
+        int bodyLength;
+        int receiveWindow = streamWindow();
+        /** Guarded by the connection */
+        int sendWindow = peerInitialWindow;
+        boolean dispatched;
+        long dispatchedAt;
+        volatile boolean remoteClosed;
+        volatile boolean reset;
+        volatile PendingResponse pending;
+        private ResponseStream response;
+        private Connection streamConnection;
+        private boolean closed;
+
+        Stream(int id, List<String> fields) {
+            this.id = id;
+            this.fields = fields;
+
+            long contentLength = -1;
+            int lines = 1;
+            int longestLine = 0;
+            for (int i = 0; i < fields.size(); i += 2) {
+                String name = fields.get(i);
+                String value = fields.get(i + 1);
+                if (name.equals("content-length")) {
+                    try {
+                        contentLength = Long.parseLong(value.trim());
+                    }
+                    catch (NumberFormatException e) {
+                        errorStatus = 400;
+                    }
+                }
+                if (name.charAt(0) != ':')
+                    lines++;
+                longestLine = Math.max(longestLine, name.length() + 2 + value.length());
+            }
+            this.contentLength = contentLength;
+
+            ConnectionGuard.Violation violation = guard.checkHead(lines, longestLine);
+            if (violation != null) {
+                guard.violated(violation);
+                errorStatus = 431;
+            }
+        }
+
+        void append(byte[] data, int offset, int length) {
+            if (dispatched || length == 0)
+                return;
+
+            if ((long) bodyLength + length > configuration.getMaxRequestSize()) {
+                // Answered straight away, the rest of the body is thrown away as it arrives
+                release();
+                errorStatus = 413;
+                dispatch(this);
+                return;
+            }
+
+            if (body == null || bodyLength + length > body.length) {
+                int size = Math.max(bodyLength + length, body == null ? 4096 : body.length * 2);
+                byte[] larger = BufferPool.getDefault().acquire(Math.min(size,
+                        Math.max(bodyLength + length, configuration.getMaxRequestSize())));
+                if (body != null)
+                    System.arraycopy(body, 0, larger, 0, bodyLength);
+                release();
+                body = larger;
+            }
+            System.arraycopy(data, offset, body, bodyLength, length);
+            bodyLength += length;
+        }
+
+        void release() {
+            if (body != null) {
+                BufferPool.getDefault().release(body);
+                body = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (instrumentation != null)
+                instrumentation.stage(Instrumentation.Stage.QUEUE, System.nanoTime() - dispatchedAt);
+
+            if (!admission.start(dispatcher, dispatchedAt)) {
+                reset(this, REFUSED_STREAM);
+                writeQueued();
+                return;
+            }
+
+            response = new ResponseStream(method());
+            try {
+                if (errorStatus != 0) {
+                    release();
+                    PendingResponse.error(errorStatus, ResponseHead.getReason(errorStatus)).write(response);
+                    finish();
+                    return;
+                }
+
+                streamConnection = open();
+                Request request = server.readRequest(streamConnection);
+                if (request == null) {
+                    PendingResponse.error(400, "Bad Request").write(response);
+                    finish();
+                }
+                else if (server.isAsynchronous()) {
+                    pending = server.respond(streamConnection, request, this);
+                    // Reset before there was a response to cancel
+                    if (reset)
+                        pending.cancel();
+                }
+                else {
+                    server.respond(streamConnection, request);
+                    finish();
+                }
+            }
+            catch (Throwable e) {
+                if (!(e instanceof IOException))
+                    e.printStackTrace();
+                abort();
+            }
+        }
+
+        @Override
+        public void completed(boolean keepAlive) {
+            // The stream's own connection is never kept alive, whether the response was written is up to the stream
+            try {
+                finish();
+            }
+            catch (IOException e) {
+                abort();
+            }
+        }
+
+        private String method() {
+            for (int i = 0; i < fields.size(); i += 2)
+                if (fields.get(i).equals(":method"))
+                    return fields.get(i + 1);
+            return null;
+        }
+
+        /**
+         * Makes the connection the request is read from and the response
+         * written to: the request's head, as HTTP/1.x, and its body in a
+         * buffer, and the stream's {@link ResponseStream}.
+         */
+        private Connection open() {
+            String method = null;
+            String path = null;
+            String authority = null;
+            StringBuilder cookies = null;
+            boolean host = false;
+
+            StringBuilder head = new StringBuilder(256);
+            for (int i = 0; i < fields.size(); i += 2) {
+                String name = fields.get(i);
+                String value = fields.get(i + 1);
+                if (name.equals(":method"))
+                    method = value;
+                else if (name.equals(":path"))
+                    path = value;
+                else if (name.equals(":authority"))
+                    authority = value;
+                else if (name.charAt(0) == ':')
+                    continue;
+                else if (name.equals("cookie"))
+                    // Split into several fields for better compression, HTTP/1.x needs them back together
+                    cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+                else if (!name.equals("content-length") && !name.equals("expect") && !name.equals("te")) {
+                    host |= name.equals("host");
+                    head.append(name).append(": ").append(value).append("\r\n");
+                }
+            }
+            if (!host && authority != null)
+                head.append("host: ").append(authority).append("\r\n");
+            if (cookies != null)
+                head.append("cookie: ").append(cookies).append("\r\n");
+            // The body has all arrived, so there's no need to say it may be sent
+            if (bodyLength > 0 || contentLength >= 0)
+                head.append("content-length: ").append(bodyLength).append("\r\n");
+            head.append("\r\n");
+            head.insert(0, method + ' ' + path + " HTTP/2.0\r\n");
+
+            int headLength = head.length();
+            byte[] bytes = BufferPool.getDefault().acquire(headLength + bodyLength);
+            for (int i = 0; i < headLength; i++)
+                bytes[i] = (byte) head.charAt(i);
+            if (bodyLength > 0)
+                System.arraycopy(body, 0, bytes, headLength, bodyLength);
+            release();
+
+            HttpInputStream in = new HttpInputStream(null, 0);
+            in.setBytes(bytes, headLength + bodyLength);
+
+            final Connection parent = connection;
+            return new Connection(parent.getSocket(), in, response, guard, null) {
+                @Override
+                public boolean isSecure() {
+                    return parent.isSecure();
+                }
+
+                @Override
+                public SSLSession getSslSession() {
+                    return parent.getSslSession();
+                }
+
+                @Override
+                public String getApplicationProtocol() {
+                    return parent.getApplicationProtocol();
+                }
+
+                @Override
+                boolean hasBufferedRequest() {
+                    return false;
+                }
+
+                @Override
+                void flush() {
+                    // Frames go out as the response is written and when it ends
+                }
+            };
+        }
+
+        /**
+         * Ends the stream once the response has been written, telling the
+         * client to stop sending if it hasn't finished yet.
+         * 
+         * @throws IOException
+         *             if the response was cut short
+         */
+        private void finish() throws IOException {
+            if (reset) {
+                closed();
+                return;
+            }
+
+            response.end();
+            if (!remoteClosed) {
+                queue(rstStream(id, NO_ERROR));
+                writeQueued();
+            }
+            closed();
+        }
+
+        private void abort() {
+            if (!reset) {
+                reset = true;
+                queue(rstStream(id, INTERNAL_ERROR));
+                writeQueued();
+            }
+            closed();
+        }
+
+        private void closed() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+            }
+
+            if (response != null)
+                response.release();
+            if (streamConnection != null)
+                streamConnection.release();
+            release();
+            streamClosed(this);
+        }
+
+        /**
+         * Takes the HTTP/1.x response a {@link Response} writes and sends it
+         * as HEADERS and DATA frames: the status line and headers, less those
+         * that only concern an HTTP/1.x connection, as header fields, and the
+         * body, de-chunked if need be, in frames of up to
+         * {@link Http2Connection#MAX_FRAME_SIZE}.
+         */
+        private class ResponseStream extends OutputStream implements CountingOutput {
+            private final boolean headRequest;
+            private final byte[] single = new byte[1];
+            private byte[] head = new byte[256];
+            private int headLength;
+            /** Set once the final head has been written */
+            private List<String> headers;
+            private boolean headersSent;
+            private boolean bodyless;
+            /** What's left of the Content-Length, or -1 */
+            private long remaining = -1;
+            private int chunkState = NOT_CHUNKED;
+            private long chunkSize;
+            private boolean chunkDigits;
+            private boolean chunkExtension;
+            private int trailerLength;
+            private byte[] buffer;
+            private int count;
+            private long bytesWritten;
+
+            ResponseStream(String method) {
+                this.headRequest = "HEAD".equals(method);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                single[0] = (byte) b;
+                write(single, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                bytesWritten += len;
+                int end = off + len;
+
+                while (off < end && headers == null) {
+                    if (headLength == head.length) {
+                        if (headLength >= MAX_HEADER_BLOCK)
+                            throw new IOException("Response head larger than " + MAX_HEADER_BLOCK + " bytes");
+                        head = Arrays.copyOf(head, headLength * 2);
+                    }
+
+                    byte c = b[off++];
+                    head[headLength++] = c;
+                    if (c == '\n' && headLength > 1 && (head[headLength - 2] == '\n'
+                            || (headLength > 2 && head[headLength - 2] == '\r' && head[headLength - 3] == '\n')))
+                        parseHead();
+                }
+
+                if (off == end)
+                    return;
+                if (chunkState != NOT_CHUNKED)
+                    dechunk(b, off, end - off);
+                else
+                    content(b, off, end - off);
+            }
+
+            private void parseHead() throws IOException {
+                String[] lines = new String(head, 0, headLength, ISO_8859_1).split("\r?\n");
+                headLength = 0;
+
+                String statusLine = lines[0];
+                int space = statusLine.indexOf(' ');
+                int status;
+                try {
+                    status = Integer.parseInt(statusLine.substring(space + 1, space + 4));
+                }
+                catch (RuntimeException e) {
+                    throw new IOException("Malformed status line: " + statusLine);
+                }
+
+                List<String> fields = new ArrayList<String>();
+                fields.add(":status");
+                fields.add(Integer.toString(status));
+                boolean chunked = false;
+                long contentLength = -1;
+                for (int i = 1; i < lines.length; i++) {
+                    String line = lines[i];
+                    int colon = line.indexOf(':');
+                    if (colon <= 0)
+                        throw new IOException("Malformed response header: " + line);
+
+                    String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equals("transfer-encoding"))
+                        chunked = value.toLowerCase(Locale.ENGLISH).endsWith("chunked");
+                    if (isConnectionSpecific(name))
+                        continue;
+                    if (name.equals("content-length")) {
+                        try {
+                            contentLength = Long.parseLong(value);
+                        }
+                        catch (NumberFormatException e) {
+                            throw new IOException("Malformed Content-Length: " + value);
+                        }
+                    }
+                    fields.add(name);
+                    fields.add(value);
+                }
+
+                if (status < 200) {
+                    if (status == 101)
+                        throw new IOException("A stream can't switch protocols");
+                    // An interim response, the final one follows
+                    writeHeaders(Stream.this, fields, false);
+                    return;
+                }
+
+                headers = fields;
+                bodyless = headRequest || status == 204 || status == 304;
+                remaining = chunked ? -1 : contentLength;
+                chunkState = chunked ? CHUNK_SIZE : NOT_CHUNKED;
+            }
+
+            /**
+             * Passes on the data of each chunk, checking the chunks are well
+             * formed so a response cut short is noticed.
+             */
+            private void dechunk(byte[] b, int off, int len) throws IOException {
+                int end = off + len;
+                while (off < end) {
+                    if (chunkState == CHUNK_DATA) {
+                        int length = (int) Math.min(chunkSize, end - off);
+                        content(b, off, length);
+                        off += length;
+                        chunkSize -= length;
+                        if (chunkSize == 0)
+                            chunkState = CHUNK_DATA_END;
+                        continue;
+                    }
+
+                    int c = b[off++];
+                    switch (chunkState) {
+                    case CHUNK_SIZE:
+                        if (c == '\n') {
+                            if (!chunkDigits)
+                                throw new IOException("Malformed chunk size");
+                            chunkState = chunkSize == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+                            chunkDigits = chunkExtension = false;
+                            trailerLength = 0;
+                        }
+                        else if (!chunkExtension) {
+                            int digit = Character.digit(c, 16);
+                            if (digit >= 0) {
+                                if (chunkSize > Integer.MAX_VALUE)
+                                    throw new IOException("Chunk too large");
+                                chunkSize = chunkSize * 16 + digit;
+                                chunkDigits = true;
+                            }
+                            else if (c == ';' || c == ' ' || c == '\t' || c == '\r')
+                                chunkExtension = true;
+                            else
+                                throw new IOException("Malformed chunk size");
+                        }
+                        break;
+                    case CHUNK_DATA_END:
+                        if (c == '\n')
+                            chunkState = CHUNK_SIZE;
+                        else if (c != '\r')
+                            throw new IOException("Chunk longer than its size");
+                        break;
+                    case CHUNK_TRAILER:
+                        // Trailers aren't passed on
+                        if (c == '\n') {
+                            if (trailerLength == 0)
+                                chunkState = CHUNK_DONE;
+                            trailerLength = 0;
+                        }
+                        else if (c != '\r')
+                            trailerLength++;
+                        break;
+                    default:
+                        throw new IOException("Data after the last chunk");
+                    }
+                }
+            }
+
+            private void content(byte[] b, int off, int len) throws IOException {
+                if (bodyless || len == 0)
+                    return;
+                if (remaining >= 0) {
+                    if (len > remaining)
+                        throw new IOException("Response body longer than its Content-Length");
+                    remaining -= len;
+                }
+
+                if (count > 0 && count + len > MAX_FRAME_SIZE)
+                    send(false);
+                if (len >= MAX_FRAME_SIZE) {
+                    sendHeaders(false);
+                    writeData(Stream.this, b, off, len, false);
+                    return;
+                }
+
+                if (buffer == null)
+                    buffer = BufferPool.getDefault().acquire(MAX_FRAME_SIZE);
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+
+            private void sendHeaders(boolean endStream) throws IOException {
+                if (!headersSent) {
+                    headersSent = true;
+                    writeHeaders(Stream.this, headers, endStream);
+                }
+            }
+
+            private void send(boolean endStream) throws IOException {
+                sendHeaders(false);
+                writeData(Stream.this, buffer, 0, count, endStream);
+                count = 0;
+            }
+
+            /**
+             * Sends what has been written so far, for responses streamed a
+             * piece at a time.
+             */
+            @Override
+            public void flush() throws IOException {
+                if (headers == null)
+                    return;
+
+                if (count > 0)
+                    send(false);
+                else if (!headersSent) {
+                    sendHeaders(false);
+                    flushOutput();
+                }
+            }
+
+            /**
+             * Sends the rest of the response and ends the stream.
+             * 
+             * @throws IOException
+             *             if the response was incomplete
+             */
+            void end() throws IOException {
+                if (headers == null)
+                    throw new IOException("Response head incomplete");
+                if (!bodyless && (remaining > 0 || (chunkState != NOT_CHUNKED && chunkState != CHUNK_DONE)))
+                    throw new IOException("Response body incomplete");
+
+                if (!headersSent && count == 0)
+                    sendHeaders(true);
+                else
+                    send(true);
+            }
+
+            void release() {
+                if (buffer != null) {
+                    BufferPool.getDefault().release(buffer);
+                    buffer = null;
+                }
+            }
+
+            @Override
+            public long getBytesWritten() {
+                return bytesWritten;
+            }
+        }
+    }
+}
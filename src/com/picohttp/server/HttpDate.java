@@ -0,0 +1,160 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Formatting and parsing of HTTP dates. The value of the Date header is
+ * shared by every response sent within the same second.
+ */
+final class HttpDate {
+    /** IMF-fixdate, the format dates are sent in. */
+    private static final DateTimeFormatter IMF_FIXDATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static final DateTimeFormatter[] FORMATS = {
+            // RFC 822, updated by RFC 1123
+            DateTimeFormatter.RFC_1123_DATE_TIME,
+            // The same with a zone name other than GMT
+            DateTimeFormatter.ofPattern("EEE, d MMM yyyy HH:mm:ss zzz", Locale.US),
+            // RFC 850, obsoleted by RFC 1036
+            new DateTimeFormatterBuilder().appendPattern("EEEE, dd-MMM-")
+                    .appendValueReduced(ChronoField.YEAR, 2, 2, 1970).appendPattern(" HH:mm:ss zzz")
+                    .toFormatter(Locale.US),
+            // ANSI C's asctime() format
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC),
+    };
+
+    private static volatile Now now = new Now(System.currentTimeMillis());
+
+    private HttpDate() {
+    }
+
+    static String format(Date date) {
+        return IMF_FIXDATE.format(date.toInstant());
+    }
+
+    static String format(Instant instant) {
+        return IMF_FIXDATE.format(instant);
+    }
+
+    /**
+     * @return the date in any of the three formats HTTP allows or null if it
+     *         isn't one
+     */
+    static Instant parse(String value) {
+        Instant instant = parseImfFixdate(value);
+        if (instant != null)
+            return instant;
+
+        for (DateTimeFormatter format : FORMATS) {
+            try {
+                return ZonedDateTime.parse(value, format).toInstant();
+            }
+            catch (DateTimeException e) {
+            }
+        }
+        return null;
+    }
+
+    private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+    /**
+     * Parses the fixed layout of IMF-fixdate, which is how nearly every date
+     * arrives, without going through a formatter.
+     * 
+     * @return the date or null if it isn't exactly in that layout
+     */
+    private static Instant parseImfFixdate(String value) {
+        // Sun, 06 Nov 1994 08:49:37 GMT
+        if (value.length() != 29 || value.charAt(3) != ',' || !value.endsWith(" GMT"))
+            return null;
+
+        int month = MONTHS.indexOf(value.substring(8, 11));
+        if (month < 0 || month % 3 != 0)
+            return null;
+
+        int day = digits(value, 5, 2);
+        int year = digits(value, 12, 4);
+        int hour = digits(value, 17, 2);
+        int minute = digits(value, 20, 2);
+        int second = digits(value, 23, 2);
+        if (day < 1 || day > 31 || year < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0
+                || second > 60 || value.charAt(19) != ':' || value.charAt(22) != ':')
+            return null;
+
+        try {
+            return LocalDateTime.of(year, month / 3 + 1, day, hour, minute, Math.min(second, 59))
+                    .toInstant(ZoneOffset.UTC);
+        }
+        catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the decimal number or -1 if there's anything else
+     */
+    private static int digits(String value, int offset, int count) {
+        int n = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            n = n * 10 + c - '0';
+        }
+        return n;
+    }
+
+    /**
+     * @return the current date as ISO-8859-1 bytes, regenerated at most once a
+     *         second
+     */
+    static byte[] now() {
+        Now current = now;
+        long time = System.currentTimeMillis();
+        if (time / 1000 != current.second) {
+            // Racing threads format the same value, whichever is stored last wins
+            current = new Now(time);
+            now = current;
+        }
+        return current.bytes;
+    }
+
+    private static class Now {
+        final long second;
+        final byte[] bytes;
+
+        Now(long time) {
+            this.second = time / 1000;
+            String date = format(Instant.ofEpochMilli(time));
+            this.bytes = new byte[date.length()];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) date.charAt(i);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.Flushable;
+import java.io.InputStream;
+
+/**
+ * The buffered input of a {@link Connection}. Besides being an ordinary
+ * InputStream it lets request parsers scan the buffered bytes in place and
+ * consume exactly as many of them as belong to the request, leaving the rest
+ * for the next one.
+ */
+class HttpInputStream extends InputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final InputStream in;
+    private Flushable beforeRead;
+    byte[] buf;
+    int pos;
+    int limit;
+    private int markPos = -1;
+    private int markLimit;
+    private long bytesRead;
+
+    HttpInputStream(InputStream in, int size) {
+        this.in = in;
+        this.buf = size > 0 ? BufferPool.getDefault().acquire(size) : EMPTY;
+    }
+
+    /**
+     * Replaces the buffered bytes with a complete request, for engines that
+     * read the request before handing it over. The previous bytes go back to
+     * the {@link BufferPool} and these are given back in turn, so they must
+     * have come from it.
+     */
+    void setBytes(byte[] bytes, int length) {
+        release();
+        buf = bytes;
+        pos = 0;
+        limit = length;
+        bytesRead += length;
+        markPos = -1;
+    }
+
+    /**
+     * @param beforeRead
+     *            flushed before waiting for more bytes from the stream, so
+     *            nothing the client may be waiting for is held back
+     */
+    void setBeforeRead(Flushable beforeRead) {
+        this.beforeRead = beforeRead;
+    }
+
+    /**
+     * @return true if everything there is to read is already buffered, as
+     *         with requests handed over by {@link #setBytes(byte[], int)}
+     */
+    boolean isComplete() {
+        return in == null;
+    }
+
+    /**
+     * @return the number of bytes already buffered
+     */
+    int buffered() {
+        return limit - pos;
+    }
+
+    /**
+     * @return the number of bytes read from the stream or handed over with
+     *         {@link #setBytes(byte[], int)} so far
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Reads more bytes into the buffer, moving the unread bytes to the start of
+     * the buffer or growing it as needed.
+     * 
+     * @param maxSize
+     *            the largest the buffer may grow to
+     * @return false at the end of the stream
+     * @throws IOException
+     *             if the buffer is full and already {@code maxSize} bytes
+     */
+    boolean fill(int maxSize) throws IOException {
+        if (in == null)
+            return false;
+
+        if (markPos >= 0 && pos - markPos > markLimit)
+            markPos = -1;
+
+        int keep = markPos >= 0 ? markPos : pos;
+        if (limit == buf.length) {
+            if (keep > 0) {
+                System.arraycopy(buf, keep, buf, 0, limit - keep);
+                limit -= keep;
+                pos -= keep;
+                if (markPos >= 0)
+                    markPos -= keep;
+            }
+            else if (buf.length < maxSize) {
+                byte[] larger = BufferPool.getDefault().acquire(Math.min(buf.length * 2, maxSize));
+                System.arraycopy(buf, 0, larger, 0, limit);
+                // Not release(), which would forget what's buffered
+                if (buf != EMPTY)
+                    BufferPool.getDefault().release(buf);
+                buf = larger;
+            }
+            else
+                throw new IOException("Request head larger than " + maxSize + " bytes");
+        }
+
+        if (beforeRead != null)
+            beforeRead.flush();
+        int count = in.read(buf, limit, buf.length - limit);
+        if (count == -1)
+            return false;
+
+        limit += count;
+        bytesRead += count;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !fill(buf.length))
+            return -1;
+
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        if (pos == limit) {
+            // Large reads go straight to the stream instead of through the buffer
+            if (len >= buf.length && markPos < 0 && in != null) {
+                if (beforeRead != null)
+                    beforeRead.flush();
+                int count = in.read(b, off, len);
+                if (count > 0)
+                    bytesRead += count;
+                return count;
+            }
+
+            if (!fill(buf.length))
+                return -1;
+        }
+
+        int count = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+
+        if (pos == limit && !fill(buf.length))
+            return 0;
+
+        int count = (int) Math.min(n, limit - pos);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return limit - pos + (in != null ? in.available() : 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        markPos = pos;
+        markLimit = readLimit;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        if (markPos < 0)
+            throw new IOException("Resetting to invalid mark");
+
+        pos = markPos;
+    }
+
+    /**
+     * Gives the buffer back to the {@link BufferPool}, after which the stream
+     * holds nothing.
+     */
+    void release() {
+        if (buf != EMPTY)
+            BufferPool.getDefault().release(buf);
+        buf = EMPTY;
+        pos = limit = 0;
+        markPos = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null)
+            in.close();
+    }
+}
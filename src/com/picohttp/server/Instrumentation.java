@@ -0,0 +1,69 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+/**
+ * Told by the server about each stage of serving a request, so their cost
+ * can be measured. Set one with {@link Configuration#setInstrumentation};
+ * without one the server doesn't even read the clock.
+ * <p>
+ * Every method is called from the server's own threads, often concurrently,
+ * and should return quickly.
+ * 
+ * @see ServerMetrics
+ */
+public interface Instrumentation {
+    public enum Stage {
+        /** Taking a new connection from the listening socket and handing it on. */
+        ACCEPT,
+        /** Waiting in the Dispatcher for a worker. */
+        QUEUE,
+        /** Reading and parsing the request head, from its first byte. */
+        PARSE,
+        /** Running the RequestHandler, until an asynchronous response is ready. */
+        HANDLE,
+        /** Writing the response. */
+        WRITE
+    }
+
+    /**
+     * Called once the server is listening.
+     */
+    public void started(PicoHttp server);
+
+    public void connectionOpened();
+
+    public void connectionClosed();
+
+    /**
+     * @param nanos
+     *            how long the stage took for one connection or request
+     */
+    public void stage(Stage stage, long nanos);
+
+    /**
+     * Called after each response.
+     * 
+     * @param statusCode
+     *            the response's status code or 0 if it doesn't say
+     * @param bytesIn
+     *            the bytes read from the connection since the last response
+     * @param bytesOut
+     *            the bytes written for the response
+     */
+    public void responded(int statusCode, long bytesIn, long bytesOut);
+}
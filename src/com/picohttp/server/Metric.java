@@ -0,0 +1,30 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+
+/**
+ * Something a {@link MetricsRegistry} can report.
+ */
+public interface Metric {
+    /**
+     * Appends the metric in the Prometheus text exposition format, including
+     * its HELP and TYPE lines.
+     */
+    public void writePrometheus(Appendable out) throws IOException;
+}
@@ -0,0 +1,79 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics an application reports, the server's own among them when a
+ * {@link ServerMetrics} is created with it. Any {@link Metric} can be
+ * registered.
+ * 
+ * @see MetricsRequestHandler
+ */
+public class MetricsRegistry {
+    private final List<Metric> metrics = new CopyOnWriteArrayList<Metric>();
+
+    public <M extends Metric> M register(M metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    public void unregister(Metric metric) {
+        metrics.remove(metric);
+    }
+
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    public Gauge gauge(String name, String help, LongSupplier value) {
+        return register(new Gauge(name, help, value));
+    }
+
+    public Histogram histogram(String name, String help) {
+        return register(new Histogram(name, help));
+    }
+
+    public List<Metric> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Appends every metric in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        for (Metric metric : metrics)
+            metric.writePrometheus(out);
+    }
+
+    static void writeHeader(Appendable out, String name, String help, String type) throws IOException {
+        if (help != null)
+            out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n"))
+                    .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,47 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+
+/**
+ * Serves a {@link MetricsRegistry} for Prometheus to scrape.
+ */
+public class MetricsRequestHandler implements RequestHandler {
+    private final MetricsRegistry registry;
+
+    public MetricsRequestHandler(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Response execute(Request request) {
+        StringBuilder body = new StringBuilder(4096);
+        try {
+            registry.writePrometheus(body);
+        }
+        catch (IOException e) {
+            // StringBuilder doesn't throw
+        }
+
+        SimpleResponse response = new SimpleResponse();
+        response.setHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.setBody(body.toString());
+        return response;
+    }
+}
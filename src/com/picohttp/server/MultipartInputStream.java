@@ -0,0 +1,277 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Splits a multipart body into its parts as it's read, through a buffer of
+ * fixed size. {@link #nextPart()} moves on to the next part and returns its
+ * headers, after which reading returns the part's content up to the next
+ * boundary.
+ * <p>
+ * The boundary is found with Boyer-Moore-Horspool, which for the long
+ * boundaries clients generate looks at only a few bytes of every boundary
+ * length of content. Closing it leaves the underlying stream open.
+ */
+class MultipartInputStream extends InputStream {
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    private final InputStream in;
+    /** CRLF, two dashes and the boundary */
+    private final byte[] delimiter;
+    private final int[] skip = new int[256];
+    private final byte[] buffer;
+    private final byte[] single = new byte[1];
+    private int pos, limit;
+    /** Where the delimiter starts in the buffer or -1 if it hasn't been found yet */
+    private int match = -1;
+    /** No delimiter starts in the buffer before here */
+    private int scanned;
+    private boolean inPart = true;
+    private boolean finished;
+    /** Bytes that weren't content read by the last call to nextPart() */
+    private long overhead;
+
+    MultipartInputStream(InputStream in, String boundary) throws IOException {
+        if (boundary.isEmpty() || boundary.length() > 200)
+            throw new IOException("Invalid multipart boundary: " + boundary);
+
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(8192, delimiter.length * 4)];
+
+        int length = delimiter.length;
+        for (int c = 0; c < skip.length; c++)
+            skip[c] = length;
+        for (int i = 0; i < length - 1; i++)
+            skip[delimiter[i] & 0xff] = length - 1 - i;
+
+        // The first boundary needn't follow a line break, so pretend there was one
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        limit = 2;
+    }
+
+    /**
+     * Skips whatever is left of the current part, or the preamble before the
+     * first one, and reads the next part's headers.
+     *
+     * @return the headers, which ignore the case of names, or null after the
+     *         last part
+     */
+    Map<String, String> nextPart() throws IOException {
+        if (finished)
+            return null;
+
+        overhead = 0;
+        for (int count; (count = readable()) > 0; ) {
+            pos += count;
+            overhead += count;
+        }
+
+        pos = match + delimiter.length;
+        overhead += delimiter.length;
+        match = -1;
+        if (!ensure(2))
+            throw new EOFException("Multipart body ended in a boundary");
+
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+            inPart = false;
+            return null;
+        }
+
+        // Transport padding may follow the boundary
+        while (ensure(1) && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+            pos++;
+            overhead++;
+        }
+        if (!ensure(2) || buffer[pos] != '\r' || buffer[pos + 1] != '\n')
+            throw new IOException("Malformed multipart boundary line");
+        pos += 2;
+        overhead += 2;
+
+        Map<String, String> headers = readHeaders();
+        scanned = pos;
+        inPart = true;
+        return headers;
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        String name = null;
+        int size = 0;
+
+        for (String line; !(line = readLine()).isEmpty(); ) {
+            size += line.length();
+            if (size > MAX_HEADER_SIZE)
+                throw new IOException("Part headers larger than " + MAX_HEADER_SIZE + " bytes");
+
+            char first = line.charAt(0);
+            if ((first == ' ' || first == '\t') && name != null) {
+                headers.put(name, headers.get(name) + " " + line.trim());
+                continue;
+            }
+
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                throw new IOException("Malformed part header: " + line);
+            name = line.substring(0, colon).trim();
+            if (!headers.containsKey(name))
+                headers.put(name, line.substring(colon + 1).trim());
+        }
+
+        return headers;
+    }
+
+    /**
+     * @return the next line without its terminator, as UTF-8 since browsers
+     *         send file names that way
+     */
+    private String readLine() throws IOException {
+        for (int from = pos; ; ) {
+            for (int i = from; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = i > pos && buffer[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buffer, pos, end - pos, StandardCharsets.UTF_8);
+                    overhead += i + 1 - pos;
+                    pos = i + 1;
+                    return line;
+                }
+            }
+
+            if (pos == 0 && limit == buffer.length)
+                throw new IOException("Part header line longer than " + buffer.length + " bytes");
+            from = limit - pos;
+            if (!fill())
+                throw new EOFException("Multipart body ended in the part headers");
+        }
+    }
+
+    /**
+     * @return how many bytes the last {@link #nextPart()} read that weren't
+     *         content: what it skipped, the boundary line and the headers
+     */
+    long getOverhead() {
+        return overhead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!inPart)
+            return -1;
+        if (len == 0)
+            return 0;
+
+        int count = readable();
+        if (count == 0)
+            return -1;
+
+        count = Math.min(count, len);
+        System.arraycopy(buffer, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        if (!inPart)
+            return 0;
+        return (match >= 0 ? match : Math.max(scanned, pos)) - pos;
+    }
+
+    /**
+     * @return how many bytes of the current part are in the buffer, reading
+     *         more if there are none yet, or 0 at the boundary ending it
+     */
+    private int readable() throws IOException {
+        int length = delimiter.length;
+
+        while (true) {
+            if (match >= 0)
+                return match - pos;
+
+            int i = Math.max(scanned, pos);
+            while (i + length <= limit) {
+                int j = length - 1;
+                while (j >= 0 && buffer[i + j] == delimiter[j])
+                    j--;
+                if (j < 0) {
+                    match = i;
+                    return match - pos;
+                }
+                i += skip[buffer[i + length - 1] & 0xff];
+            }
+
+            // What's left could be the start of the delimiter
+            scanned = i;
+            if (scanned > pos)
+                return scanned - pos;
+
+            if (!fill())
+                throw new EOFException("Multipart body ended without its closing boundary");
+        }
+    }
+
+    /**
+     * @return false if the stream ended before {@code count} bytes were
+     *         buffered
+     */
+    private boolean ensure(int count) throws IOException {
+        while (limit - pos < count)
+            if (!fill())
+                return false;
+        return true;
+    }
+
+    /**
+     * Moves what hasn't been read to the start of the buffer and reads more
+     * after it.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            scanned = Math.max(0, scanned - pos);
+            if (match >= 0)
+                match -= pos;
+            pos = 0;
+        }
+
+        int count = in.read(buffer, limit, buffer.length - limit);
+        if (count == -1)
+            return false;
+        limit += count;
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
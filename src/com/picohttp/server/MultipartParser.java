@@ -0,0 +1,328 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a multipart/form-data request body one {@link Part} at a time as it
+ * arrives, without holding the whole body. A part up to the memory threshold
+ * is kept in memory, while there's room within the limit for all the parts,
+ * and any other is written to a temporary file as it's read, so memory use
+ * doesn't grow with the size of the upload. The number of parts is limited
+ * too, and their boundaries and headers count towards the total size.
+ * <p>
+ * Closing the parser deletes the temporary files of the parts it read.
+ *
+ * <pre>
+ * MultipartParser parser = new MultipartParser(request);
+ * try {
+ *     for (Part part; (part = parser.next()) != null; )
+ *         if (part.getFilename() != null)
+ *             part.moveTo(new File(uploads, UUID.randomUUID().toString()));
+ * }
+ * finally {
+ *     parser.close();
+ * }
+ * </pre>
+ */
+public class MultipartParser implements Closeable {
+    private final MultipartInputStream in;
+    private final long declaredLength;
+    private final List<Part> parts = new ArrayList<Part>();
+    private final byte[] buffer = new byte[8192];
+    private int memoryThreshold = 16 * 1024;
+    private long maxPartSize = 32 * 1024 * 1024;
+    private long maxTotalSize = 128 * 1024 * 1024;
+    private long maxMemorySize = 1024 * 1024;
+    private int maxParts = 1000;
+    private File tempDirectory;
+    private long total;
+    /** Content of the parts read so far that's held in memory */
+    private long inMemory;
+
+    /**
+     * @throws IOException
+     *             if the request isn't multipart
+     */
+    public MultipartParser(Request request) throws IOException {
+        this(request.getBodyStream(), getBoundary(request.getHeader("Content-Type")),
+                lengthOf(request.getHeader("Content-Length")));
+    }
+
+    /**
+     * @param boundary
+     *            the boundary parameter of the Content-Type
+     */
+    public MultipartParser(InputStream body, String boundary) throws IOException {
+        this(body, boundary, -1);
+    }
+
+    private MultipartParser(InputStream body, String boundary, long declaredLength) throws IOException {
+        if (boundary == null)
+            throw new IOException("Not a multipart request");
+        this.in = new MultipartInputStream(body, boundary);
+        this.declaredLength = declaredLength;
+    }
+
+    private static long lengthOf(String contentLength) {
+        try {
+            return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the boundary of a multipart Content-Type or null if it isn't
+     *         one
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.regionMatches(true, 0, "multipart/", 0, 10))
+            return null;
+        return parameter(contentType, "boundary");
+    }
+
+    /**
+     * Reads the next part to the end, into memory or a temporary file.
+     *
+     * @return the part or null after the last one
+     * @throws SizeLimitException
+     *             if the part or the body is larger than allowed, or there
+     *             are more parts than allowed
+     */
+    public Part next() throws IOException {
+        if (maxTotalSize > 0 && declaredLength > maxTotalSize)
+            throw new SizeLimitException("Multipart body of " + declaredLength + " bytes is larger than "
+                    + maxTotalSize + " bytes");
+
+        Map<String, String> headers = in.nextPart();
+        total += in.getOverhead();
+        if (maxTotalSize > 0 && total > maxTotalSize)
+            throw new SizeLimitException("Multipart body is larger than " + maxTotalSize + " bytes");
+        if (headers == null)
+            return null;
+        if (maxParts > 0 && parts.size() >= maxParts)
+            throw new SizeLimitException("More than " + maxParts + " parts");
+
+        Part part = new Part(headers);
+        ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.min(memoryThreshold, buffer.length));
+        OutputStream out = memory;
+        File file = null;
+        long size = 0;
+
+        try {
+            for (int count; (count = in.read(buffer)) != -1; ) {
+                size += count;
+                total += count;
+                if (maxPartSize > 0 && size > maxPartSize)
+                    throw new SizeLimitException((part.getName() != null ? "Part " + part.getName() : "A part")
+                            + " is larger than " + maxPartSize + " bytes");
+                if (maxTotalSize > 0 && total > maxTotalSize)
+                    throw new SizeLimitException("Multipart body is larger than " + maxTotalSize + " bytes");
+
+                // Too large for memory, or the memory allowed for all the parts has been used up
+                boolean spill = size > memoryThreshold || maxMemorySize > 0 && inMemory + size > maxMemorySize;
+                if (file == null && spill) {
+                    file = File.createTempFile("picohttp-", ".part", tempDirectory);
+                    out = new FileOutputStream(file);
+                    memory.writeTo(out);
+                    memory = null;
+                }
+                out.write(buffer, 0, count);
+            }
+            out.close();
+        }
+        catch (IOException e) {
+            try {
+                out.close();
+            }
+            catch (IOException ignored) {
+            }
+            if (file != null)
+                file.delete();
+            throw e;
+        }
+
+        if (memory != null)
+            inMemory += size;
+        part.setContent(memory != null ? memory.toByteArray() : null, file, size);
+        parts.add(part);
+        return part;
+    }
+
+    /**
+     * Reads the rest of the parts.
+     *
+     * @return every part read, including those already returned by
+     *         {@link #next()}
+     */
+    public List<Part> getParts() throws IOException {
+        while (next() != null)
+            ;
+        return parts;
+    }
+
+    /**
+     * Deletes the temporary files of the parts that haven't been moved.
+     */
+    @Override
+    public void close() {
+        for (Part part : parts)
+            part.delete();
+    }
+
+    /**
+     * @return the most a part is allowed to hold in memory before it's moved
+     *         to a temporary file
+     */
+    public int getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    public void setMemoryThreshold(int memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * @return the largest part allowed or 0 for no limit
+     */
+    public long getMaxPartSize() {
+        return maxPartSize;
+    }
+
+    public void setMaxPartSize(long maxPartSize) {
+        this.maxPartSize = maxPartSize;
+    }
+
+    /**
+     * @return the most allowed of the body, the parts' content together with
+     *         their boundaries and headers, or 0 for no limit
+     */
+    public long getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    public void setMaxTotalSize(long maxTotalSize) {
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    /**
+     * @return the most content kept in memory for all the parts together,
+     *         past which parts go to temporary files whatever their size, or
+     *         0 for no limit
+     */
+    public long getMaxMemorySize() {
+        return maxMemorySize;
+    }
+
+    public void setMaxMemorySize(long maxMemorySize) {
+        this.maxMemorySize = maxMemorySize;
+    }
+
+    /**
+     * @return the most parts allowed or 0 for no limit
+     */
+    public int getMaxParts() {
+        return maxParts;
+    }
+
+    public void setMaxParts(int maxParts) {
+        this.maxParts = maxParts;
+    }
+
+    /**
+     * @return where temporary files are created or null for the system's
+     *         temporary directory
+     */
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    public void setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * @return the value of a parameter of a header like Content-Type or
+     *         Content-Disposition, unquoted, or null if it hasn't got it
+     */
+    static String parameter(String header, String name) {
+        if (header == null)
+            return null;
+
+        int length = header.length();
+        for (int i = header.indexOf(';'); i >= 0 && i < length; ) {
+            int equals = header.indexOf('=', i);
+            if (equals < 0)
+                return null;
+            int semicolon = header.indexOf(';', i + 1);
+            if (semicolon >= 0 && semicolon < equals) {
+                i = semicolon;
+                continue;
+            }
+
+            String key = header.substring(i + 1, equals).trim();
+            int start = equals + 1;
+            while (start < length && header.charAt(start) == ' ')
+                start++;
+
+            String value;
+            if (start < length && header.charAt(start) == '"') {
+                // Browsers escape quotes in file names as %22 rather than with backslashes
+                int end = header.indexOf('"', start + 1);
+                if (end < 0)
+                    end = length;
+                value = header.substring(start + 1, end);
+                i = header.indexOf(';', end);
+            }
+            else {
+                int end = header.indexOf(';', start);
+                if (end < 0)
+                    end = length;
+                value = header.substring(start, end).trim();
+                i = end;
+            }
+
+            if (key.equalsIgnoreCase(name))
+                return value;
+        }
+
+        return null;
+    }
+
+    /**
+     * Thrown when a part or the whole body is larger than allowed, or has too
+     * many parts, which a handler would usually answer with a 413.
+     */
+    public static class SizeLimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public SizeLimitException(String message) {
+            super(message);
+        }
+    }
+}
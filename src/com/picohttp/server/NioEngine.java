@@ -0,0 +1,1059 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Accepts connections on a ServerSocketChannel and spreads them over a number
+ * of selector event loops. The event loops read without blocking until a
+ * whole request (head and Content-Length body) is buffered and only then hand
+ * it to the pool, so idle and slow connections don't hold a thread. Requests
+ * pipelined behind it are served by the same worker and their responses
+ * written together. TLS handshakes are driven by the event loops too, but
+ * their expensive steps are run by the {@link TlsContext}'s own threads.
+ * <p>
+ * An HTTP/2 connection is read by its event loop for as long as it's open,
+ * and each request on it served by a worker once it has all arrived.
+ */
+class NioEngine implements Runnable {
+    private static final byte[] TOO_LARGE = ascii("HTTP/1.1 413 Request Entity Too Large\r\n"
+            + "Connection: close\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+    private static final byte[] BAD_REQUEST = ascii("HTTP/1.1 400 Bad Request\r\n"
+            + "Connection: close\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] REQUEST_TIMEOUT = ascii("HTTP/1.1 408 Request Timeout\r\n"
+            + "Connection: close\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] HEADERS_TOO_LARGE = ascii("HTTP/1.1 431 Request Header Fields Too Large\r\n"
+            + "Connection: close\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] NOT_IMPLEMENTED = ascii("HTTP/1.1 501 Not Implemented\r\n"
+            + "Connection: close\r\nContent-Length: 0\r\n\r\n");
+
+    /** What {@code NioConnection.frame()} returns when there isn't a whole request. */
+    private static final int INCOMPLETE = -1, MALFORMED = -2, OVERSIZED = -3, HEAD_TOO_LARGE = -4,
+            UNSUPPORTED = -5;
+
+    private final PicoHttp server;
+    private final ServerSocketChannel serverChannel;
+    private final Configuration configuration;
+    private final EventLoop[] eventLoops;
+    private final Dispatcher dispatcher;
+    private final Instrumentation instrumentation;
+    private final AdmissionControl admission;
+    private final ConnectionGuard guard;
+    private final TlsContext tlsContext;
+    private final boolean http2Enabled;
+
+    /**
+     * @param eventLoops
+     *            the number of selector threads serving accepted connections
+     */
+    NioEngine(PicoHttp server, ServerSocketChannel serverChannel, int eventLoops) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.configuration = server.getConfiguration();
+        this.dispatcher = server.getDispatcher();
+        this.instrumentation = server.getInstrumentation();
+        this.admission = server.getAdmissionControl();
+        this.guard = server.getConnectionGuard();
+        this.tlsContext = server.getTlsContext();
+        this.http2Enabled = configuration.isHttp2Enabled();
+
+        this.eventLoops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < this.eventLoops.length; i++)
+            this.eventLoops[i] = new EventLoop();
+    }
+
+    @Override
+    public void run() {
+        Thread[] threads = new Thread[eventLoops.length];
+        for (int i = 0; i < eventLoops.length; i++) {
+            threads[i] = new Thread(eventLoops[i], Thread.currentThread().getName() + "-loop-" + i);
+            threads[i].start();
+        }
+
+        System.out.println("PicoHttp listening on " + serverChannel.socket().getLocalSocketAddress());
+
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            int next = 0;
+            while (server.isRunning()) {
+                selector.select(1000);
+                selector.selectedKeys().clear();
+
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    try {
+                        int client = admission.connectionOpened(channel.socket().getInetAddress());
+                        if (client == AdmissionControl.REFUSED) {
+                            // Still blocking, as accepted. A TLS client couldn't read it.
+                            if (tlsContext == null)
+                                admission.sendServiceUnavailable(channel.socket());
+                            close(channel);
+                            continue;
+                        }
+
+                        long accepted = instrumentation != null ? System.nanoTime() : 0;
+                        channel.configureBlocking(false);
+                        eventLoops[next].add(channel, client, accepted);
+                        // Wrapped rather than counted up, which would go negative
+                        next = (next + 1) % eventLoops.length;
+                    }
+                    catch (IOException e) {
+                        close(channel);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            if (selector != null)
+                close(selector);
+        }
+
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.selector.wakeup();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        server.engineStopped();
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * @param accepted
+         *            when the channel was accepted, to time its registration
+         */
+        void add(final SocketChannel channel, final int client, final long accepted) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new NioConnection(EventLoop.this, channel, client);
+                        if (instrumentation != null) {
+                            instrumentation.connectionOpened();
+                            instrumentation.stage(Instrumentation.Stage.ACCEPT, System.nanoTime() - accepted);
+                        }
+                    }
+                    catch (IOException e) {
+                        close(channel);
+                        admission.connectionClosed(client);
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            int interval = guard.getSweepInterval();
+            long lastIdleCheck = System.currentTimeMillis();
+
+            try {
+                while (server.isRunning()) {
+                    selector.select(interval);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        NioConnection connection = (NioConnection) key.attachment();
+                        // Writable only while a TLS handshake waits to send
+                        if (key.isValid() && (key.isReadable() || key.isWritable()))
+                            connection.read();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= interval) {
+                        sweep(now);
+                        lastIdleCheck = now;
+                    }
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            finally {
+                // Connections with a request in flight are closed by their worker
+                for (SelectionKey key : selector.keys()) {
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!connection.busy)
+                        connection.close();
+                }
+                close(selector);
+            }
+        }
+
+        /**
+         * Closes connections left idle too long and those too slow sending a
+         * request.
+         */
+        private void sweep(long now) {
+            int keepAliveTimeout = configuration.getKeepAliveTimeout();
+            int headTimeout = guard.getHeadTimeout();
+            int bodyTimeout = guard.getBodyTimeout();
+
+            for (SelectionKey key : selector.keys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection.busy)
+                    continue;
+
+                Http2Connection http2 = connection.http2;
+                if (http2 != null) {
+                    // One given up on is closed once its GOAWAY is written
+                    if (http2.isClosed())
+                        continue;
+                    if (http2.isReceiving()) {
+                        if (bodyTimeout > 0 && now - http2.getLastActive() > bodyTimeout) {
+                            guard.violated(ConnectionGuard.Violation.BODY_TIMEOUT);
+                            connection.abortHttp2(Http2Connection.NO_ERROR);
+                        }
+                    }
+                    else if (http2.isIdle() && now - http2.getLastActive() > keepAliveTimeout) {
+                        connection.abortHttp2(Http2Connection.NO_ERROR);
+                    }
+                    continue;
+                }
+
+                if (connection.headEnd != -1) {
+                    if (bodyTimeout > 0 && now - connection.lastActive > bodyTimeout)
+                        connection.timedOut(ConnectionGuard.Violation.BODY_TIMEOUT);
+                }
+                else if (connection.requestStarted != 0 && headTimeout > 0) {
+                    if (now - connection.requestStarted > headTimeout)
+                        connection.timedOut(ConnectionGuard.Violation.HEAD_TIMEOUT);
+                }
+                else if (now - connection.lastActive > keepAliveTimeout)
+                    connection.close();
+            }
+        }
+    }
+
+    private class NioConnection implements Runnable, PendingResponse.Completion {
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        /** The connection's slot in the per client counts */
+        private final int client;
+        private final SelectionKey key;
+        private final HttpInputStream requestStream = new HttpInputStream(null, 0);
+        private final ChannelOutputStream out;
+        private final Connection connection;
+        /** Null for plain HTTP */
+        private final TlsChannel tls;
+        private ByteBuffer in = ByteBuffer.wrap(BufferPool.getDefault().acquire(8192));
+        private int headEnd = -1;
+        private int scanned;
+        /** The lines of the head scanned so far, the start of the current one and the longest */
+        private int headLines, lineStart, longestLine;
+        private ConnectionGuard.Violation headViolation;
+        /** When the first byte of a request still being received arrived, or 0 */
+        private long requestStarted;
+        private boolean chunked;
+        private int chunkStart;
+        private boolean continued;
+        private byte[] request;
+        private int requestLength;
+        private long lastActive = System.currentTimeMillis();
+        private volatile boolean busy;
+        private long dispatched;
+        /** An asynchronous response being waited for, while the channel is watched for the client leaving. */
+        private PendingResponse pending;
+        /** Set once the connection has switched to HTTP/2 */
+        private volatile Http2Connection http2;
+
+        NioConnection(EventLoop eventLoop, SocketChannel channel, int client) throws IOException {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+            this.client = client;
+            this.tls = tlsContext != null ? new TlsChannel(channel, tlsContext.createEngine()) : null;
+            this.out = new ChannelOutputStream(channel, tls, 8192, guard);
+            this.connection = new Connection(channel.socket(), requestStream, out, guard, tls) {
+                @Override
+                boolean hasBufferedRequest() {
+                    return frame() >= 0;
+                }
+            };
+            this.key = channel.register(eventLoop.selector, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * Called by the event loop when the channel is readable.
+         */
+        void read() {
+            if (busy) {
+                watch();
+                return;
+            }
+
+            int count;
+            try {
+                do {
+                    if (!in.hasRemaining()) {
+                        // Whole frames are taken as they arrive, so the largest is enough for HTTP/2
+                        int maxSize = http2 == null ? configuration.getMaxRequestSize() : Math.max(
+                                configuration.getMaxRequestSize(),
+                                Http2Connection.MAX_FRAME_SIZE + Http2Connection.FRAME_HEADER_LENGTH);
+                        if (in.capacity() >= maxSize) {
+                            reject(TOO_LARGE);
+                            return;
+                        }
+
+                        ByteBuffer larger = ByteBuffer.wrap(BufferPool.getDefault().acquire(Math.min(
+                                in.capacity() * 2, maxSize)));
+                        in.flip();
+                        larger.put(in);
+                        BufferPool.getDefault().release(in.array());
+                        in = larger;
+                    }
+
+                    count = tls != null ? tls.read(in) : channel.read(in);
+                    if (count == -1) {
+                        close();
+                        return;
+                    }
+                    // What TLS has decrypted already won't make the channel readable again
+                } while (count > 0 && tls != null && tls.hasBufferedInput());
+            }
+            catch (IOException e) {
+                close();
+                return;
+            }
+
+            lastActive = System.currentTimeMillis();
+            if (tls != null) {
+                // The handshake is held to the head timeout, the wait for a request after it to the keep-alive timeout
+                if (!tls.isEstablished()) {
+                    if (requestStarted == 0)
+                        requestStarted = lastActive;
+                }
+                else if (in.position() == 0)
+                    requestStarted = 0;
+
+                if (count == 0 && !handshake())
+                    return;
+            }
+            process();
+        }
+
+        /**
+         * Moves on a TLS handshake that stopped short of producing any
+         * plaintext.
+         * 
+         * @return false if it has been handed to a handshake thread
+         */
+        private boolean handshake() {
+            if (tls.needsTasks()) {
+                key.interestOps(0);
+                tlsContext.runTasks(tls, new Runnable() {
+                    @Override
+                    public void run() {
+                        eventLoop.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (key.isValid() && !busy) {
+                                    key.interestOps(SelectionKey.OP_READ);
+                                    read();
+                                }
+                            }
+                        });
+                    }
+                });
+                return false;
+            }
+
+            key.interestOps(tls.hasPendingOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+            return true;
+        }
+
+        /**
+         * Reads while an asynchronous response is pending, to notice the
+         * client disconnecting. Anything it sends meanwhile is kept for later.
+         */
+        private void watch() {
+            // Stop reading until the response is done with
+            if (!in.hasRemaining()) {
+                key.interestOps(0);
+                return;
+            }
+
+            try {
+                if ((tls != null ? tls.read(in) : channel.read(in)) != -1)
+                    return;
+            }
+            catch (IOException e) {
+            }
+
+            key.interestOps(0);
+            if (pending != null)
+                pending.cancel();
+        }
+
+        /**
+         * Dispatches the buffered request if it is complete.
+         */
+        void process() {
+            if (http2 != null) {
+                receiveHttp2();
+                return;
+            }
+
+            if (http2Enabled && connection.getRequestCount() == 0 && headEnd == -1) {
+                // ALPN has settled before the handshake is over, when it's too soon to write
+                int preface = tls == null ? Http2Connection.matchPreface(in.array(), 0, in.position())
+                        : !tls.isEstablished() ? 0 : "h2".equals(connection.getApplicationProtocol()) ? 1 : -1;
+                if (preface > 0) {
+                    startHttp2();
+                    return;
+                }
+                // Its start would pass for an HTTP/1.x request
+                if (preface == 0 && in.position() > 0) {
+                    if (requestStarted == 0)
+                        requestStarted = System.currentTimeMillis();
+                    return;
+                }
+            }
+
+            int total = frame();
+            if (total == INCOMPLETE) {
+                if (requestStarted == 0 && in.position() > 0)
+                    requestStarted = System.currentTimeMillis();
+                if (headEnd != -1)
+                    awaitBody(in.array(), in.position());
+                return;
+            }
+            if (total == MALFORMED) {
+                reject(BAD_REQUEST);
+                return;
+            }
+            if (total == OVERSIZED) {
+                reject(TOO_LARGE);
+                return;
+            }
+            if (total == HEAD_TOO_LARGE) {
+                guard.violated(headViolation);
+                reject(HEADERS_TOO_LARGE);
+                return;
+            }
+            if (total == UNSUPPORTED) {
+                reject(NOT_IMPLEMENTED);
+                return;
+            }
+
+            take(total);
+
+            if (!admission.admit(dispatcher)) {
+                reject(admission.getServiceUnavailable());
+                return;
+            }
+
+            busy = true;
+            key.interestOps(0);
+            dispatched = System.nanoTime();
+            try {
+                dispatcher.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                admission.shed(AdmissionControl.Reason.QUEUE_FULL);
+                reject(admission.getServiceUnavailable());
+            }
+        }
+
+        /**
+         * Switches to HTTP/2 for a client that chose it with ALPN or by
+         * sending the connection preface.
+         */
+        private void startHttp2() {
+            requestStarted = 0;
+            http2 = new Http2Connection(server, connection, closer(), true);
+            try {
+                http2.start();
+            }
+            catch (IOException e) {
+                close();
+                return;
+            }
+            receiveHttp2();
+        }
+
+        /**
+         * Switches to HTTP/2 on a worker, in answer to an upgrade request,
+         * and hands the connection back to the event loop to read its frames.
+         */
+        private void upgrade(Request request) throws IOException {
+            connection.finishRequest();
+            Http2Connection http2 = new Http2Connection(server, connection, closer(), true);
+            http2.upgrade(request);
+            this.http2 = http2;
+
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    busy = false;
+                    lastActive = System.currentTimeMillis();
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        process();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Takes in the whole frames read so far.
+         */
+        private void receiveHttp2() {
+            try {
+                int used = http2.receive(in.array(), 0, in.position());
+                if (used > 0)
+                    consume(used);
+            }
+            catch (IOException e) {
+                abortHttp2(Http2Connection.INTERNAL_ERROR);
+                return;
+            }
+
+            if (http2.isFinished())
+                close();
+        }
+
+        /**
+         * Gives up on an HTTP/2 connection, which stops being read and is
+         * closed by the worker writing its GOAWAY, if not at once.
+         */
+        private void abortHttp2(int errorCode) {
+            if (key.isValid())
+                key.interestOps(0);
+            http2.abort(errorCode);
+            if (http2.isFinished())
+                close();
+        }
+
+        /**
+         * @return what a stream's worker uses to give up on the connection
+         */
+        private Runnable closer() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            };
+        }
+
+        /**
+         * Finds the end of the request at the start of the buffer, picking up
+         * where it left off when more has been read since.
+         * 
+         * @return the length of the request or {@link #INCOMPLETE},
+         *         {@link #MALFORMED}, {@link #OVERSIZED} or
+         *         {@link #HEAD_TOO_LARGE}
+         */
+        private int frame() {
+            byte[] data = in.array();
+            int length = in.position();
+
+            // Blank lines between requests are allowed and ignored
+            int start = 0;
+            while (headEnd == -1 && start < length && (data[start] == '\r' || data[start] == '\n'))
+                start++;
+            if (start > 0) {
+                consume(start);
+                length = in.position();
+            }
+
+            if (headEnd == -1) {
+                for (int i = Math.max(scanned, 1); i < length; i++) {
+                    if (data[i] == '\n') {
+                        if (data[i - 1] == '\n') {
+                            headEnd = i + 1;
+                            break;
+                        }
+                        if (data[i - 1] == '\r' && i > 1 && data[i - 2] == '\n') {
+                            headEnd = i + 1;
+                            break;
+                        }
+                        headLines++;
+                        longestLine = Math.max(longestLine, i - lineStart);
+                        lineStart = i + 1;
+                    }
+                }
+
+                // Checked as it arrives, so a client can't make us buffer a huge head
+                int partial = headEnd == -1 ? length - lineStart : 0;
+                headViolation = guard.checkHead(headLines, Math.max(longestLine, partial));
+                if (headViolation != null)
+                    return HEAD_TOO_LARGE;
+
+                if (headEnd == -1) {
+                    scanned = length;
+                    return INCOMPLETE;
+                }
+            }
+
+            if (!chunked) {
+                int coding = transferCoding(data, headEnd);
+                if (coding < 0)
+                    return UNSUPPORTED;
+                if (coding > 0) {
+                    chunked = true;
+                    chunkStart = headEnd;
+                }
+            }
+            if (chunked)
+                return chunkedEnd(data, length);
+
+            long contentLength = contentLength(data, headEnd);
+            if (contentLength < 0)
+                return MALFORMED;
+            if (headEnd + contentLength > configuration.getMaxRequestSize())
+                return OVERSIZED;
+
+            int total = headEnd + (int) contentLength;
+            return length < total ? INCOMPLETE : total;
+        }
+
+        /**
+         * Moves a complete request out of the buffer for the worker.
+         */
+        private void take(int total) {
+            // Given back by the request stream when it moves on to the next one
+            request = BufferPool.getDefault().acquire(total);
+            requestLength = total;
+            System.arraycopy(in.array(), 0, request, 0, total);
+            consume(total);
+            headEnd = -1;
+            scanned = 0;
+            headLines = lineStart = longestLine = 0;
+            requestStarted = 0;
+            chunked = false;
+            continued = false;
+        }
+
+        /**
+         * Tells the client to go ahead with the body if only the head has
+         * arrived and it is waiting to be told.
+         */
+        private void awaitBody(byte[] data, int length) {
+            if (!continued && length == headEnd && expectsContinue(data, headEnd)) {
+                continued = true;
+                try {
+                    send(CONTINUE);
+                }
+                catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Walks the chunks of a chunked body, remembering how far it got so
+         * each chunk is only looked at once.
+         * 
+         * @return the end of the message, {@link #INCOMPLETE}, or
+         *         {@link #MALFORMED} or {@link #OVERSIZED} if the chunks are
+         *         malformed or too large
+         */
+        private int chunkedEnd(byte[] data, int length) {
+            for (;;) {
+                int lineEnd = indexOf(data, '\n', chunkStart, length);
+                if (lineEnd < 0)
+                    return INCOMPLETE;
+
+                long size = 0;
+                int digits = 0;
+                for (int i = chunkStart; i < lineEnd; i++) {
+                    int digit = Character.digit(data[i], 16);
+                    if (digit < 0)
+                        break;
+                    if (++digits > 8)
+                        return MALFORMED;
+                    size = size * 16 + digit;
+                }
+                if (digits == 0)
+                    return MALFORMED;
+
+                int dataStart = lineEnd + 1;
+                if (size == 0) {
+                    // The last chunk, followed by optional trailers and a blank line
+                    for (int line = dataStart;;) {
+                        int end = indexOf(data, '\n', line, length);
+                        if (end < 0)
+                            return INCOMPLETE;
+                        if (end == line || (end == line + 1 && data[line] == '\r'))
+                            return end + 1;
+                        line = end + 1;
+                    }
+                }
+
+                long next = dataStart + size + 2;
+                if (next > configuration.getMaxRequestSize())
+                    return OVERSIZED;
+                if (next > length)
+                    return INCOMPLETE;
+                if (data[(int) next - 1] != '\n')
+                    return MALFORMED;
+
+                chunkStart = (int) next;
+            }
+        }
+
+        private void consume(int count) {
+            in.flip();
+            in.position(count);
+            in.compact();
+        }
+
+        /**
+         * Runs on a pool thread to serve the buffered request.
+         */
+        @Override
+        public void run() {
+            if (instrumentation != null)
+                instrumentation.stage(Instrumentation.Stage.QUEUE, System.nanoTime() - dispatched);
+
+            // Turned away without parsing it
+            if (!admission.start(dispatcher, dispatched)) {
+                reject(admission.getServiceUnavailable());
+                return;
+            }
+
+            boolean keepAlive = false;
+
+            try {
+                do {
+                    requestStream.setBytes(request, requestLength);
+                    request = null;
+
+                    Request request = server.readRequest(connection);
+                    if (request == null) {
+                        keepAlive = false;
+                        break;
+                    }
+                    if (http2Enabled && tls == null && Http2Connection.isUpgrade(request)) {
+                        upgrade(request);
+                        return;
+                    }
+                    if (server.isAsynchronous()) {
+                        awaitResponse(server.respond(connection, request, this));
+                        return;
+                    }
+                    keepAlive = server.respond(connection, request);
+                } while (keepAlive && server.isRunning() && takePipelined());
+            }
+            catch (Throwable e) {
+                if (!(e instanceof IOException))
+                    e.printStackTrace();
+            }
+
+            completed(keepAlive);
+        }
+
+        /**
+         * Watches the channel while an asynchronous response is pending.
+         */
+        private void awaitResponse(final PendingResponse response) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (busy && !response.isDone() && key.isValid()) {
+                        pending = response;
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Takes the next request if the client pipelined it and it's all here.
+         * The event loop leaves the buffer alone while the connection is busy.
+         */
+        private boolean takePipelined() {
+            int total = frame();
+            if (total < 0)
+                return false;
+
+            take(total);
+            return true;
+        }
+
+        @Override
+        public void completed(boolean keepAlive) {
+            try {
+                // A response held back for a pipelined request that turned out to be bad
+                connection.flush();
+            }
+            catch (IOException e) {
+                keepAlive = false;
+            }
+
+            if (!keepAlive) {
+                close();
+                return;
+            }
+
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    busy = false;
+                    pending = null;
+                    lastActive = System.currentTimeMillis();
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        // The client may have sent the next request already
+                        if (tls != null && tls.hasBufferedInput())
+                            read();
+                        else
+                            process();
+                    }
+                }
+            });
+        }
+
+        void timedOut(ConnectionGuard.Violation violation) {
+            guard.violated(violation);
+            reject(REQUEST_TIMEOUT);
+        }
+
+        private void reject(byte[] response) {
+            try {
+                send(response);
+            }
+            catch (IOException e) {
+            }
+            close();
+        }
+
+        /**
+         * Writes a response of our own as far as the socket will take it,
+         * unless a TLS handshake isn't over.
+         */
+        private void send(byte[] response) throws IOException {
+            if (tls == null)
+                channel.write(ByteBuffer.wrap(response));
+            else if (tls.isEstablished())
+                tls.write(ByteBuffer.wrap(response));
+        }
+
+        /**
+         * Closes the channel, which the event loop and a worker may both try.
+         */
+        synchronized void close() {
+            if (!channel.isOpen())
+                return;
+            if (http2 != null)
+                http2.close();
+
+            // Sending TLS a close_notify first
+            NioEngine.close(tls != null ? tls : channel);
+            admission.connectionClosed(client);
+            if (instrumentation != null)
+                instrumentation.connectionClosed();
+
+            // On the event loop, so it can't be reading into them
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    BufferPool pool = BufferPool.getDefault();
+                    pool.release(in.array());
+                    in = ByteBuffer.wrap(new byte[0]);
+                    pool.release(request);
+                    request = null;
+                    requestStream.release();
+                    // Streams may still be writing, they find the channel closed
+                    if (http2 == null)
+                        out.release();
+                    if (tls != null)
+                        tls.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the Content-Length of the request head in {@code data}, 0 if
+     *         there isn't one or -1 if it is invalid
+     */
+    static long contentLength(byte[] data, int headEnd) {
+        int i = 0;
+        while (i < headEnd) {
+            int lineEnd = i;
+            while (lineEnd < headEnd && data[lineEnd] != '\n')
+                lineEnd++;
+
+            if (regionMatchesIgnoreCase(data, i, lineEnd, "content-length:")) {
+                long length = 0;
+                int digits = 0;
+                for (int p = i + 15; p < lineEnd; p++) {
+                    byte b = data[p];
+                    if (b >= '0' && b <= '9') {
+                        if (++digits > 18)
+                            return -1;
+                        length = length * 10 + (b - '0');
+                    }
+                    else if (b != ' ' && b != '\t' && b != '\r')
+                        return -1;
+                }
+                return digits > 0 ? length : -1;
+            }
+
+            i = lineEnd + 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return 1 if the request head in {@code data} has a Transfer-Encoding of
+     *         just chunked, 0 if it has none or -1 if it has any other, which
+     *         leaves the end of the body unknown
+     */
+    static int transferCoding(byte[] data, int headEnd) {
+        int coding = 0;
+        int i = 0;
+        while (i < headEnd) {
+            int lineEnd = indexOf(data, '\n', i, headEnd);
+            if (lineEnd < 0)
+                lineEnd = headEnd;
+
+            if (regionMatchesIgnoreCase(data, i, lineEnd, "transfer-encoding:")) {
+                // Codings listed across several headers aren't a lone chunked either
+                if (coding != 0)
+                    return -1;
+
+                int start = i + 18;
+                int end = lineEnd;
+                while (start < end && (data[start] == ' ' || data[start] == '\t'))
+                    start++;
+                while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t' || data[end - 1] == '\r'))
+                    end--;
+                coding = end - start == 7 && regionMatchesIgnoreCase(data, start, end, "chunked") ? 1 : -1;
+            }
+
+            i = lineEnd + 1;
+        }
+
+        return coding;
+    }
+
+    /**
+     * @return true if the request head in {@code data} has
+     *         {@code Expect: 100-continue}
+     */
+    static boolean expectsContinue(byte[] data, int headEnd) {
+        int i = 0;
+        while (i < headEnd) {
+            int lineEnd = indexOf(data, '\n', i, headEnd);
+            if (lineEnd < 0)
+                lineEnd = headEnd;
+
+            if (regionMatchesIgnoreCase(data, i, lineEnd, "expect:")) {
+                int start = i + 7;
+                while (start < lineEnd && data[start] == ' ')
+                    start++;
+                return regionMatchesIgnoreCase(data, start, lineEnd, "100-continue");
+            }
+
+            i = lineEnd + 1;
+        }
+
+        return false;
+    }
+
+    private static int indexOf(byte[] data, char c, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (data[i] == c)
+                return i;
+        return -1;
+    }
+
+    private static boolean regionMatchesIgnoreCase(byte[] data, int start, int end, String lowerCase) {
+        if (end - start < lowerCase.length())
+            return false;
+
+        for (int i = 0; i < lowerCase.length(); i++) {
+            int b = data[start + i];
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != lowerCase.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static byte[] ascii(String string) {
+        byte[] bytes = new byte[string.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) string.charAt(i);
+        return bytes;
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    private static void close(Selector selector) {
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+        }
+    }
+}
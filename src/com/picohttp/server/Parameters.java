@@ -0,0 +1,204 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The www-form-urlencoded parameters of a request's query string and form
+ * body. Only the positions of the names and values are recorded up front;
+ * each value is decoded when it's asked for, so a handler reading one
+ * parameter doesn't pay for the rest. A name may be given more than once.
+ */
+final class Parameters {
+    private String[] sources = new String[2];
+    private Charset[] charsets = new Charset[2];
+    private int sourceCount;
+    /** source, name start, name end, value start and value end for each parameter */
+    private int[] pairs = new int[5 * 4];
+    private int count;
+    private Map<String, String> map;
+
+    /**
+     * Adds the parameters encoded in {@code encoded}.
+     * 
+     * @param charset
+     *            what the percent-encoded bytes are in, UTF-8 if it's null or
+     *            not supported
+     */
+    void add(String encoded, String charset) {
+        if (sourceCount == sources.length) {
+            sources = Arrays.copyOf(sources, sourceCount * 2);
+            charsets = Arrays.copyOf(charsets, sourceCount * 2);
+        }
+        int source = sourceCount++;
+        sources[source] = encoded;
+        charsets[source] = charset(charset);
+
+        int length = encoded.length();
+        for (int start = 0; start < length; ) {
+            int end = encoded.indexOf('&', start);
+            if (end < 0)
+                end = length;
+
+            if (end > start) {
+                int equals = encoded.indexOf('=', start);
+                if (equals < 0 || equals > end)
+                    equals = end;
+
+                if (count * 5 == pairs.length)
+                    pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                int p = count++ * 5;
+                pairs[p] = source;
+                pairs[p + 1] = start;
+                pairs[p + 2] = equals;
+                pairs[p + 3] = Math.min(equals + 1, end);
+                pairs[p + 4] = end;
+            }
+
+            start = end + 1;
+        }
+        map = null;
+    }
+
+    private static Charset charset(String name) {
+        try {
+            if (name != null)
+                return Charset.forName(name);
+        }
+        catch (IllegalArgumentException e) {
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * @return the first value given for the name or null
+     */
+    String get(String name) {
+        for (int i = 0; i < count; i++)
+            if (nameEquals(i, name))
+                return value(i);
+        return null;
+    }
+
+    /**
+     * @return every value given for the name in order or null if there are
+     *         none
+     */
+    String[] getValues(String name) {
+        String[] values = null;
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name)) {
+                if (values == null)
+                    values = new String[1];
+                else if (found == values.length)
+                    values = Arrays.copyOf(values, found * 2);
+                values[found++] = value(i);
+            }
+        }
+        return values == null || found == values.length ? values : Arrays.copyOf(values, found);
+    }
+
+    /**
+     * @return every parameter with its first value, in the order given
+     */
+    Map<String, String> asMap() {
+        if (map == null) {
+            map = new LinkedHashMap<String, String>();
+            for (int i = 0; i < count; i++) {
+                String name = decode(i, 1);
+                if (!map.containsKey(name))
+                    map.put(name, value(i));
+            }
+        }
+        return map;
+    }
+
+    private boolean nameEquals(int i, String name) {
+        int p = i * 5;
+        String source = sources[pairs[p]];
+        int start = pairs[p + 1], end = pairs[p + 2];
+
+        if (isPlain(source, start, end))
+            return end - start == name.length() && source.regionMatches(start, name, 0, name.length());
+        return decode(i, 1).equals(name);
+    }
+
+    private String value(int i) {
+        return decode(i, 3);
+    }
+
+    /**
+     * @param offset
+     *            1 for the name or 3 for the value
+     */
+    private String decode(int i, int offset) {
+        int p = i * 5;
+        return decode(sources[pairs[p]], pairs[p + offset], pairs[p + offset + 1], charsets[pairs[p]]);
+    }
+
+    private static boolean isPlain(String encoded, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = encoded.charAt(i);
+            if (c == '%' || c == '+' || c >= 0x80)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a www-form-urlencoded region of {@code encoded} without the
+     * intermediate Strings URLDecoder creates.
+     */
+    static String decode(String encoded, int start, int end, Charset charset) {
+        if (isPlain(encoded, start, end))
+            return encoded.substring(start, end);
+
+        byte[] scratch = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = encoded.charAt(i);
+            if (c == '+')
+                scratch[length++] = ' ';
+            else if (c == '%' && i + 2 < end
+                    && Character.digit(encoded.charAt(i + 1), 16) >= 0
+                    && Character.digit(encoded.charAt(i + 2), 16) >= 0) {
+                scratch[length++] = (byte) (Character.digit(encoded.charAt(i + 1), 16) << 4
+                        | Character.digit(encoded.charAt(i + 2), 16));
+                i += 2;
+            }
+            else if (c < 0x80)
+                scratch[length++] = (byte) c;
+            else {
+                // Shouldn't be in encoded data but keep it rather than mangle it
+                byte[] bytes = String.valueOf(c).getBytes(charset);
+                // Leaving room for the rest, which takes no more than a byte a char
+                if (length + bytes.length + end - i - 1 > scratch.length)
+                    scratch = Arrays.copyOf(scratch, length + bytes.length + end - i - 1);
+                System.arraycopy(bytes, 0, scratch, length, bytes.length);
+                length += bytes.length;
+            }
+        }
+
+        return new String(scratch, 0, length, charset);
+    }
+}
@@ -0,0 +1,167 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A field or file from a multipart/form-data request, read by a
+ * {@link MultipartParser}. Small parts are kept in memory and larger ones in
+ * a temporary file, which is deleted when the parser is closed unless the
+ * part has been moved with {@link #moveTo(File)}.
+ */
+public class Part {
+    private final Map<String, String> headers;
+    private final String name;
+    private final String filename;
+    private byte[] bytes;
+    private File file;
+    private boolean temporary;
+    private long size;
+
+    Part(Map<String, String> headers) {
+        this.headers = Collections.unmodifiableMap(headers);
+
+        String disposition = headers.get("Content-Disposition");
+        this.name = MultipartParser.parameter(disposition, "name");
+        this.filename = MultipartParser.parameter(disposition, "filename");
+    }
+
+    void setContent(byte[] bytes, File file, long size) {
+        this.bytes = bytes;
+        this.file = file;
+        this.temporary = file != null;
+        this.size = size;
+    }
+
+    /**
+     * @return the name of the form field
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the name of the uploaded file as the client gave it, which may
+     *         include a path, or null if the part isn't a file
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getContentType() {
+        return headers.get("Content-Type");
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * @return the file holding the content or null if it's in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        if (file != null)
+            return new FileInputStream(file);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    public byte[] getBytes() throws IOException {
+        if (file != null)
+            return Files.readAllBytes(file.toPath());
+        return bytes;
+    }
+
+    /**
+     * @return the content decoded in the charset of its Content-Type or in
+     *         UTF-8
+     */
+    public String getString() throws IOException {
+        Charset charset = StandardCharsets.UTF_8;
+        String name = MultipartParser.parameter(getContentType(), "charset");
+        try {
+            if (name != null)
+                charset = Charset.forName(name);
+        }
+        catch (IllegalArgumentException e) {
+        }
+
+        return new String(getBytes(), charset);
+    }
+
+    /**
+     * Moves the content to {@code target}, which then belongs to the caller.
+     */
+    public void moveTo(File target) throws IOException {
+        if (file != null) {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        else {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                out.write(bytes);
+            }
+            finally {
+                out.close();
+            }
+            bytes = null;
+        }
+
+        file = target;
+        temporary = false;
+    }
+
+    /**
+     * Deletes the temporary file, if there is one.
+     */
+    public void delete() {
+        if (temporary && file.delete())
+            temporary = false;
+    }
+
+    @Override
+    public String toString() {
+        return name + (filename != null ? " (" + filename + ")" : "") + ": " + size + " bytes";
+    }
+}
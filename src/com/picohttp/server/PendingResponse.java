@@ -0,0 +1,212 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * The response to a request whose {@link AsyncRequestHandler} returned before
+ * it was ready. Whichever comes first of the handler's answer, the timeout and
+ * the client disconnecting decides what happens to the connection.
+ */
+class PendingResponse implements BiConsumer<Response, Throwable> {
+    /**
+     * Told once the response has been written, or given up on.
+     */
+    interface Completion {
+        /**
+         * @param keepAlive
+         *            true if the connection can carry another request
+         */
+        void completed(boolean keepAlive);
+    }
+
+    private final PicoHttp server;
+    private final Connection connection;
+    private final Request request;
+    private final CompletionStage<Response> stage;
+    private final Completion completion;
+    private final AtomicBoolean answered = new AtomicBoolean();
+    private final Thread caller = Thread.currentThread();
+    private final long created;
+    private volatile boolean started;
+    private volatile ScheduledFuture<?> timeout;
+
+    PendingResponse(PicoHttp server, Connection connection, Request request, CompletionStage<Response> stage,
+            Completion completion) {
+        this.server = server;
+        this.connection = connection;
+        this.request = request;
+        this.stage = stage;
+        this.completion = completion;
+        this.created = server.getInstrumentation() != null ? System.nanoTime() : 0;
+    }
+
+    void start() {
+        long millis = server.getConfiguration().getAsyncTimeout();
+        if (millis > 0) {
+            try {
+                timeout = server.getTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (answered.compareAndSet(false, true)) {
+                            cancelStage();
+                            respond(abandoned(503, "Service Unavailable"));
+                        }
+                    }
+                }, millis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // The server has been stopped, the response is still written once it's ready
+            }
+        }
+
+        stage.whenComplete(this);
+        started = true;
+    }
+
+    /**
+     * Called when the handler's stage completes.
+     */
+    @Override
+    public void accept(Response response, Throwable failure) {
+        if (!answered.compareAndSet(false, true))
+            return;
+        cancelTimeout();
+
+        if (failure == null && response == null)
+            failure = new NullPointerException("No response from " + request.getPath());
+        respond(failure == null ? response : failed(failure));
+    }
+
+    /**
+     * Gives up on the response because the client has gone.
+     */
+    void cancel() {
+        if (answered.compareAndSet(false, true)) {
+            cancelTimeout();
+            cancelStage();
+            completion.completed(false);
+        }
+    }
+
+    /**
+     * @return true once the response has been decided on
+     */
+    boolean isDone() {
+        return answered.get();
+    }
+
+    private void respond(final Response response) {
+        Instrumentation instrumentation = server.getInstrumentation();
+        if (instrumentation != null)
+            instrumentation.stage(Instrumentation.Stage.HANDLE, System.nanoTime() - created);
+
+        // A stage that was already complete is written by the thread that called the handler
+        if (!started && Thread.currentThread() == caller) {
+            write(response);
+            return;
+        }
+
+        try {
+            server.getDispatcher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(response);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            completion.completed(false);
+        }
+    }
+
+    private void write(Response response) {
+        boolean keepAlive = false;
+        try {
+            keepAlive = server.send(connection, request, response);
+        }
+        catch (IOException e) {
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        completion.completed(keepAlive);
+    }
+
+    private void cancelTimeout() {
+        ScheduledFuture<?> timeout = this.timeout;
+        if (timeout != null)
+            timeout.cancel(false);
+    }
+
+    private void cancelStage() {
+        try {
+            stage.toCompletableFuture().cancel(true);
+        }
+        catch (UnsupportedOperationException e) {
+        }
+    }
+
+    /**
+     * @return the response for a stage that completed exceptionally
+     */
+    static Response failed(Throwable failure) {
+        while ((failure instanceof CompletionException || failure instanceof ExecutionException)
+                && failure.getCause() != null)
+            failure = failure.getCause();
+
+        if (failure instanceof TimeoutException)
+            return abandoned(504, "Gateway Timeout");
+        if (failure instanceof CancellationException)
+            return abandoned(503, "Service Unavailable");
+
+        failure.printStackTrace();
+        return error(500, "Internal Server Error");
+    }
+
+    /**
+     * @return an error response for a handler that was given up on, which
+     *         closes the connection. The handler may still be reading the
+     *         request body, and cancelling it doesn't stop it, so what's left
+     *         of the body can't be skipped to the next request.
+     */
+    private static Response abandoned(int statusCode, String statusMessage) {
+        SimpleResponse response = error(statusCode, statusMessage);
+        response.setHeader("Connection", "close");
+        return response;
+    }
+
+    static SimpleResponse error(int statusCode, String statusMessage) {
+        SimpleResponse response = new SimpleResponse();
+        response.setStatusCode(statusCode);
+        response.setStatusMessage(statusMessage);
+        response.setHeader("Content-Type", "text/plain");
+        response.setBody(statusCode + " " + statusMessage);
+        return response;
+    }
+}
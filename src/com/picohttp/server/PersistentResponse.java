@@ -0,0 +1,43 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+/**
+ * A {@link Response} that knows where its own message ends and can therefore
+ * be followed by another response on the same connection. Plain
+ * {@link Response}s are always followed by the connection being closed.
+ */
+public interface PersistentResponse extends Response {
+    /**
+     * Called by the server right before {@link #write(java.io.OutputStream)}.
+     * 
+     * @param request
+     *            the request being answered
+     * @param keepAlive
+     *            true if the server would like to keep the connection open
+     * @return true if the connection may be reused once the response has been
+     *         written
+     */
+    public boolean prepare(Request request, boolean keepAlive);
+
+    /**
+     * @return the response's status code, or 0 if it doesn't know, for
+     *         {@link Instrumentation}
+     */
+    public default int getStatusCode() {
+        return 0;
+    }
+}
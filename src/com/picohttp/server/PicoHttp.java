@@ -13,73 +13,145 @@
  * limitations under the License.
  */
 
+
 package com.picohttp.server;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PicoHttp {
+    private static final byte[] NOT_IMPLEMENTED = ("HTTP/1.1 501 Not Implemented\r\n"
+            + "Connection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
     private final Constructor<? extends Request> requestConstructor;
-    private final RequestHandler requestHandler;
-    private boolean run = true;
+    private final boolean persistentRequests;
+    private final AsyncRequestHandler requestHandler;
+    /** The handler to call directly when it isn't asynchronous, otherwise null. */
+    private final RequestHandler synchronousHandler;
+    private final Configuration configuration;
+    private final Dispatcher dispatcher;
+    private final Instrumentation instrumentation;
+    private final AdmissionControl admissionControl;
+    private final ConnectionGuard connectionGuard;
+    /** Null when serving plain HTTP */
+    private final TlsContext tlsContext;
+    private ServerSocketChannel[] listeners;
+    private final AtomicInteger runningEngines = new AtomicInteger();
+    private volatile ScheduledExecutorService timer;
+    private volatile boolean run = true;
 
     public PicoHttp(RequestHandler requestHandler, int port) {
-        this(SimpleRequest.class, requestHandler, null, port, 20);
+        this(SimpleRequest.class, requestHandler, null, port, new Configuration());
     }
 
     public <R extends Request> PicoHttp(Class<R> requestType,
             RequestHandler requestHandler, InetAddress address, int port,
             final int maxThreads) throws IllegalArgumentException {
+        this(requestType, requestHandler, address, port, configuration(maxThreads));
+    }
+
+    /**
+     * @param requestType
+     *            the Request implementation to create for each request. A
+     *            {@code (Connection)} constructor allows several requests per
+     *            connection, otherwise a {@code (Socket)} constructor is used
+     *            and the connection is closed after every response.
+     */
+    public <R extends Request> PicoHttp(Class<R> requestType,
+            RequestHandler requestHandler, InetAddress address, int port,
+            Configuration configuration) throws IllegalArgumentException {
+        this(requestType, AsyncRequestHandler.adapt(requestHandler), address, port, configuration);
+    }
+
+    /**
+     * Serves requests with a handler that may answer them after it has
+     * returned, without holding a worker thread while it waits.
+     * 
+     * @see #PicoHttp(Class, RequestHandler, InetAddress, int, Configuration)
+     */
+    public <R extends Request> PicoHttp(Class<R> requestType,
+            AsyncRequestHandler requestHandler, InetAddress address, int port,
+            Configuration configuration) throws IllegalArgumentException {
         this.requestHandler = requestHandler;
+        this.synchronousHandler = requestHandler instanceof AsyncRequestHandler.SynchronousHandler
+                ? ((AsyncRequestHandler.SynchronousHandler) requestHandler).handler : null;
+        this.configuration = configuration;
+        final int maxThreads = configuration.getMaxThreads();
+        this.dispatcher = configuration.getDispatcher() != null ? configuration.getDispatcher()
+                : new ThreadPoolDispatcher(maxThreads);
+        this.instrumentation = configuration.getInstrumentation();
+        this.admissionControl = new AdmissionControl(configuration);
+        this.connectionGuard = new ConnectionGuard(configuration);
+        this.tlsContext = configuration.getSslContext() != null ? new TlsContext(configuration) : null;
         
         try {
-            final ServerSocket server = address == null ? new ServerSocket(port) : new ServerSocket(port, maxThreads * 4, address);
-            server.setSoTimeout(1000);
-
-            requestConstructor = requestType.getConstructor(Socket.class);
+            Constructor<R> constructor;
+            try {
+                constructor = requestType.getConstructor(Connection.class);
+            }
+            catch (NoSuchMethodException e) {
+                constructor = requestType.getConstructor(Socket.class);
+            }
+            requestConstructor = constructor;
+            persistentRequests = constructor.getParameterTypes()[0] == Connection.class;
 
-            final Thread main = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, maxThreads, 30,
-                            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            boolean nio = configuration.getEngineType() == EngineType.NIO;
+            if (nio && !persistentRequests)
+                throw new IllegalArgumentException("The NIO engine needs a (Connection) constructor in " + requestType);
+            if (tlsContext != null && !persistentRequests)
+                throw new IllegalArgumentException("TLS needs a (Connection) constructor in " + requestType);
+            if (configuration.isHttp2Enabled() && !persistentRequests)
+                throw new IllegalArgumentException("HTTP/2 needs a (Connection) constructor in " + requestType);
 
-                    System.out.println("PicoHttp listening on " + server.getLocalSocketAddress());
+            int acceptors = Math.max(1, configuration.getAcceptors());
+            // Opened as channels so accepted sockets can send files with transferTo
+            listeners = listen(address, port, acceptors);
+            runningEngines.set(acceptors);
 
-                    while (run) {
-                        try {
-                            Socket socket = server.accept();
-                            RequestEngine requestEngine = new RequestEngine(socket);
-                            executor.execute(requestEngine);
-                        }
-                        catch (SocketTimeoutException e) {
-                        }
-                        catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    executor.shutdown();
-                    try {
-                        executor.awaitTermination(1, TimeUnit.MINUTES);
-                    }
-                    catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+            int eventLoops = Math.max(acceptors, configuration.getEventLoops());
+            for (int i = 0; i < acceptors; i++) {
+                final Runnable engine;
+                if (nio) {
+                    // Each acceptor gets its share of the event loops
+                    int share = eventLoops / acceptors + (i < eventLoops % acceptors ? 1 : 0);
+                    engine = new NioEngine(this, listeners[i], share);
                 }
-            });
-            main.setDaemon(false);
-            main.start();
+                else {
+                    ServerSocket server = listeners[i].socket();
+                    server.setSoTimeout(1000);
+                    engine = new BlockingEngine(this, server);
+                }
+
+                String name = acceptors == 1 ? "PicoHttp-" + port : "PicoHttp-" + port + "-" + i;
+                final Thread main = new Thread(engine, name);
+                main.setDaemon(false);
+                main.start();
+            }
+
+            if (instrumentation != null)
+                instrumentation.started(this);
         }
         catch (IOException e) {
             throw new IllegalArgumentException("Couldn't start the server.", e);
@@ -93,53 +165,400 @@ public class PicoHttp {
         }
     }
 
-    private class RequestEngine implements Runnable {
-        private final Socket socket;
+    /**
+     * Opens a listening socket for each acceptor with {@code SO_REUSEPORT}, or
+     * a single one for all of them where that isn't supported.
+     */
+    private ServerSocketChannel[] listen(InetAddress address, int port, int acceptors) throws IOException {
+        int backlog = configuration.getBacklog() > 0 ? configuration.getBacklog()
+                : Math.max(50, configuration.getMaxThreads() * 4);
+        SocketOption<Boolean> reusePort = acceptors > 1 ? reusePort() : null;
+
+        ServerSocketChannel[] listeners = new ServerSocketChannel[acceptors];
+        try {
+            for (int i = 0; i < acceptors; i++) {
+                if (i > 0 && reusePort == null) {
+                    listeners[i] = listeners[0];
+                    continue;
+                }
 
-        public RequestEngine(Socket socket) {
-            this.socket = socket;
+                ServerSocketChannel listener = ServerSocketChannel.open();
+                listeners[i] = listener;
+                if (reusePort != null && !listener.supportedOptions().contains(reusePort))
+                    reusePort = null;
+                if (reusePort != null)
+                    listener.setOption(reusePort, true);
+
+                listener.socket().bind(new InetSocketAddress(address, port), backlog);
+                // The others must share the port the first was given
+                port = listener.socket().getLocalPort();
+            }
+        }
+        catch (IOException e) {
+            for (ServerSocketChannel listener : listeners)
+                close(listener);
+            throw e;
         }
 
-        @Override
-        public void run() {
-            Request request = null;
-            
-            try {
-                request = requestConstructor.newInstance(socket);
+        return listeners;
+    }
+
+    /**
+     * @return {@code StandardSocketOptions.SO_REUSEPORT} or null before Java 9
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePort() {
+        try {
+            // Looked up reflectively so the server still builds and runs on Java 8
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static void close(ServerSocketChannel listener) {
+        try {
+            if (listener != null)
+                listener.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * Called by each engine once it has stopped accepting connections. The
+     * last one closes the listening sockets and waits for the workers to
+     * finish.
+     */
+    void engineStopped() {
+        if (runningEngines.decrementAndGet() > 0)
+            return;
+
+        for (ServerSocketChannel listener : listeners)
+            close(listener);
+        if (tlsContext != null)
+            tlsContext.shutdown();
+
+        try {
+            dispatcher.shutdown(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Configuration configuration(int maxThreads) {
+        Configuration configuration = new Configuration();
+        configuration.setMaxThreads(maxThreads);
+        return configuration;
+    }
+
+    Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return the Dispatcher serving this server's connections
+     */
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return what decides whether connections and requests are taken on or
+     *         shed, with counts of each
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * @return what holds connections to their deadlines and header limits,
+     *         with counts of those that didn't keep to them
+     */
+    public ConnectionGuard getConnectionGuard() {
+        return connectionGuard;
+    }
+
+    /**
+     * @return what makes the SSLEngines for TLS connections or null if
+     *         serving plain HTTP
+     */
+    TlsContext getTlsContext() {
+        return tlsContext;
+    }
+
+    /**
+     * @return the Instrumentation to tell about each stage or null
+     */
+    Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    boolean isRunning() {
+        return run;
+    }
+
+    boolean hasPersistentRequests() {
+        return persistentRequests;
+    }
+
+    /**
+     * @return true if responses are written by
+     *         {@link #respond(Connection, Request, PendingResponse.Completion)}
+     */
+    boolean isAsynchronous() {
+        return synchronousHandler == null;
+    }
+
+    /**
+     * @return the thread timing out asynchronous responses, started when it
+     *         is first needed
+     */
+    ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            synchronized (this) {
+                if (timer == null) {
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable task) {
+                            Thread thread = new Thread(task, "PicoHttp-timer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    // Nearly every timeout is cancelled, don't keep them queued until they're due
+                    executor.setRemoveOnCancelPolicy(true);
+                    timer = executor;
+                }
             }
-            catch (Exception e) {
+        }
+        return timer;
+    }
+
+    /**
+     * Reads the next request from a connection.
+     * 
+     * @return the request or null if the client closed or abandoned the
+     *         connection instead of sending another one
+     */
+    Request readRequest(Connection connection) {
+        long start = 0;
+        if (instrumentation != null) {
+            if (!awaitRequest(connection))
+                return null;
+            start = System.nanoTime();
+        }
+
+        try {
+            Request request = requestConstructor.newInstance(connection);
+            if (instrumentation != null)
+                instrumentation.stage(Instrumentation.Stage.PARSE, System.nanoTime() - start);
+            return request;
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AbstractRequest.UnsupportedTransferEncodingException)
+                notImplemented(connection);
+            // Clients are free to hang up or go quiet between requests
+            else if (!(cause instanceof EOFException || cause instanceof SocketTimeoutException)
+                    || connection.getRequestCount() == 0)
                 System.err.println("Bad request from "
-                        + socket.getRemoteSocketAddress());
+                        + connection.getSocket().getRemoteSocketAddress());
+        }
+        catch (Exception e) {
+            System.err.println("Bad request from "
+                    + connection.getSocket().getRemoteSocketAddress());
+        }
+
+        return null;
+    }
+
+    /**
+     * Answers a request with a body that can't be read with a 501. The
+     * connection is closed after it, since the body can't be skipped either.
+     */
+    private void notImplemented(Connection connection) {
+        try {
+            connection.getOutputStream().write(NOT_IMPLEMENTED);
+            connection.flush();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * Waits for the first byte of the next request, so the time a connection
+     * spends idle between requests isn't counted as parsing.
+     * 
+     * @return false if the client closed or abandoned the connection
+     */
+    private boolean awaitRequest(Connection connection) {
+        HttpInputStream in = connection.getHttpInputStream();
+        try {
+            return in.buffered() > 0 || in.fill(in.buf.length);
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a request with the legacy {@code (Socket)} constructor.
+     */
+    Request readRequest(Socket socket) {
+        try {
+            return requestConstructor.newInstance(socket);
+        }
+        catch (Exception e) {
+            System.err.println("Bad request from "
+                    + socket.getRemoteSocketAddress());
+        }
+
+        return null;
+    }
+
+    /**
+     * Hands a request to the RequestHandler and writes the response.
+     * 
+     * @return true if the connection can carry another request
+     */
+    boolean respond(Connection connection, Request request) throws IOException {
+        if (instrumentation == null)
+            return send(connection, request, synchronousHandler.execute(request));
+
+        long start = System.nanoTime();
+        Response response = synchronousHandler.execute(request);
+        instrumentation.stage(Instrumentation.Stage.HANDLE, System.nanoTime() - start);
+        return send(connection, request, response);
+    }
+
+    /**
+     * Hands a request to the AsyncRequestHandler. The response is written
+     * when it is ready, possibly before this returns, and then the completion
+     * is told whether the connection can carry another request.
+     * 
+     * @return the response, which the engine cancels if the client disconnects
+     */
+    PendingResponse respond(Connection connection, Request request, PendingResponse.Completion completion) {
+        CompletionStage<Response> stage;
+        try {
+            stage = requestHandler.execute(request);
+        }
+        catch (RuntimeException e) {
+            CompletableFuture<Response> failed = new CompletableFuture<Response>();
+            failed.completeExceptionally(e);
+            stage = failed;
+        }
+
+        PendingResponse response = new PendingResponse(this, connection, request, stage, completion);
+        response.start();
+        return response;
+    }
+
+    /**
+     * Writes a response.
+     * 
+     * @return true if the connection can carry another request
+     */
+    boolean send(Connection connection, Request request, Response response) throws IOException {
+        final OutputStream out = connection.getOutputStream();
+
+        boolean keepAlive = run && isKeepAlive(request)
+                && connection.getRequestCount() + 1 < configuration.getMaxRequestsPerConnection();
+        if (response instanceof PersistentResponse)
+            keepAlive = ((PersistentResponse) response).prepare(request, keepAlive);
+        else
+            keepAlive = false;
+
+        long start = instrumentation != null ? System.nanoTime() : 0;
+
+        response.write(out);
+
+        // Skipping the rest of the body may need a read, which flushes anything held back first
+        keepAlive = keepAlive && connection.finishRequest();
+
+        // Responses to pipelined requests that have already arrived go out together
+        if (!keepAlive || isAsynchronous() || !connection.deferFlush(configuration.getMaxPipelineDepth()))
+            connection.flush();
+
+        if (instrumentation != null) {
+            instrumentation.stage(Instrumentation.Stage.WRITE, System.nanoTime() - start);
+            int statusCode = response instanceof PersistentResponse
+                    ? ((PersistentResponse) response).getStatusCode() : 0;
+            instrumentation.responded(statusCode, connection.takeBytesRead(), connection.takeBytesWritten());
+        }
+
+        return keepAlive;
+    }
+
+    /**
+     * Hands a request read with the legacy {@code (Socket)} constructor to the
+     * RequestHandler and writes the response.
+     */
+    void respond(Request request) throws IOException {
+        final Response response = synchronousHandler != null ? synchronousHandler.execute(request) : await(request);
+        final OutputStream out = request.getSocket().getOutputStream();
+        response.write(out);
+        out.close();
+    }
+
+    private Response await(Request request) {
+        try {
+            CompletableFuture<Response> response = requestHandler.execute(request).toCompletableFuture();
+            int timeout = configuration.getAsyncTimeout();
+            try {
+                return timeout > 0 ? response.get(timeout, TimeUnit.MILLISECONDS) : response.get();
             }
-            
-            if (request != null) {
-                final Response response = requestHandler.execute(request);
-                final Socket socket = request.getSocket();
-
-                try {
-                    final OutputStream out = socket.getOutputStream();
-                    response.write(out);
-                    out.close();
-                }
-                catch (IOException e) {
-                    e.printStackTrace();
-                }
-                finally {
-                    try {
-                        if (!socket.isClosed())
-                            socket.close();
-                    }
-                    catch (IOException e) {
-                    }
-                }
+            catch (TimeoutException e) {
+                response.cancel(true);
+                return PendingResponse.error(503, "Service Unavailable");
             }
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return PendingResponse.error(503, "Service Unavailable");
+        }
+        catch (Exception e) {
+            return PendingResponse.failed(e);
+        }
+    }
+
+    private boolean isKeepAlive(Request request) {
+        // Framed one way or the other, whoever passed it on may have read it the other way
+        if (request.getHeader("Transfer-Encoding") != null && request.getHeader("Content-Length") != null)
+            return false;
+
+        String connection = request.getHeader("Connection");
+
+        if ("HTTP/1.1".equals(request.getProtocol()))
+            return connection == null || !hasToken(connection, "close");
+
+        return connection != null && hasToken(connection, "keep-alive");
+    }
+
+    private boolean hasToken(String header, String token) {
+        for (String part : header.split(","))
+            if (part.trim().equalsIgnoreCase(token))
+                return true;
+
+        return false;
     }
 
     public void stop() {
         run = false;
+
+        if (timer != null)
+            timer.shutdown();
     }
 
+    /**
+     * @deprecated SimpleDateFormat isn't thread-safe, so these mustn't be used
+     *             by concurrent requests. Headers are formatted and parsed
+     *             with a copy of them per thread.
+     */
+    @Deprecated
     public static final DateFormat[] HTTP_HEADER_DATE_FORMATS = {
             new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z"), // RFC 822, updated by RFC 1123
             new SimpleDateFormat("EEEE, dd-MMM-yy HH:mm:ss z"), // RFC 850, obsoleted by RFC 1036
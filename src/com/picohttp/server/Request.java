@@ -16,7 +16,9 @@
 package com.picohttp.server;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.util.Collections;
 import java.util.Map;
 
 public interface Request {
@@ -30,8 +32,45 @@ public interface Request {
     public String getHeader(String name);
     public <T> T getHeader(String name, Class<T> target);
     public Map<String, String> getHeaders();
+    /**
+     * @return the request body as it arrives, ending with the body rather than
+     *         the connection. Nothing is buffered so anything read here is no
+     *         longer available to {@link #getBody()} and vice versa.
+     * @throws IOException
+     *             if this type of request can't stream its body
+     */
+    public default InputStream getBodyStream() throws IOException {
+        throw new IOException(getClass().getName() + " doesn't stream its body");
+    }
+    /**
+     * @return the rest of the body decoded with the Content-Type's charset
+     */
     public String getBody() throws IOException;
+    /**
+     * @return the first value of a query string or form parameter, or null
+     */
     public String getParameter(String name);
+    /**
+     * @return every value of a parameter given more than once, in the order
+     *         given, or null if it wasn't given
+     */
+    public default String[] getParameterValues(String name) {
+        String value = getParameter(name);
+        return value != null ? new String[] { value } : null;
+    }
     public <T> T getParameter(String name, Class<T> target);
     public Map<String, String> getParameters();
+    /**
+     * @return the value captured for a {@code {name}} in the template of the
+     *         {@link Router} route that matched, or null
+     */
+    public default String getPathParameter(String name) {
+        return null;
+    }
+    public default <T> T getPathParameter(String name, Class<T> target) {
+        return Converters.convert(getPathParameter(name), target);
+    }
+    public default Map<String, String> getPathParameters() {
+        return Collections.emptyMap();
+    }
 }
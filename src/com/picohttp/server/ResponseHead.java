@@ -0,0 +1,283 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes a status line and headers into a reusable per-thread buffer.
+ * Common status lines and header names are encoded once, numbers and the
+ * current date are written without creating any strings.
+ */
+final class ResponseHead {
+    /** Bodies up to this size are copied after the head so both go out together. */
+    private static final int COPY_LIMIT = 8 * 1024;
+    private static final int INITIAL_SIZE = 1024;
+    /** Buffers grown beyond this by a huge head aren't kept for the next one. */
+    private static final int RETAINED_SIZE = 64 * 1024;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] DATE = bytes("Date: ");
+
+    private static final String[] REASONS = new String[600];
+    private static final byte[][] HTTP_11_STATUS_LINES = new byte[600][];
+    private static final byte[][] HTTP_10_STATUS_LINES = new byte[600][];
+    private static final Map<String, byte[]> NAMES = new HashMap<String, byte[]>();
+
+    static {
+        reason(100, "Continue");
+        reason(101, "Switching Protocols");
+        reason(200, "OK");
+        reason(201, "Created");
+        reason(202, "Accepted");
+        reason(204, "No Content");
+        reason(206, "Partial Content");
+        reason(301, "Moved Permanently");
+        reason(302, "Found");
+        reason(303, "See Other");
+        reason(304, "Not Modified");
+        reason(307, "Temporary Redirect");
+        reason(308, "Permanent Redirect");
+        reason(400, "Bad Request");
+        reason(401, "Unauthorized");
+        reason(403, "Forbidden");
+        reason(404, "Not Found");
+        reason(405, "Method Not Allowed");
+        reason(408, "Request Timeout");
+        reason(409, "Conflict");
+        reason(410, "Gone");
+        reason(411, "Length Required");
+        reason(412, "Precondition Failed");
+        reason(413, "Payload Too Large");
+        reason(414, "URI Too Long");
+        reason(415, "Unsupported Media Type");
+        reason(416, "Range Not Satisfiable");
+        reason(429, "Too Many Requests");
+        reason(431, "Request Header Fields Too Large");
+        reason(500, "Internal Server Error");
+        reason(501, "Not Implemented");
+        reason(502, "Bad Gateway");
+        reason(503, "Service Unavailable");
+        reason(504, "Gateway Timeout");
+
+        for (String name : new String[] { "Accept-Ranges", "Age", "Cache-Control", "Connection",
+                "Content-Encoding", "Content-Length", "Content-Range", "Content-Type", "Date", "ETag", "Expires",
+                "Keep-Alive", "Last-Modified", "Location", "Server", "Set-Cookie", "Transfer-Encoding", "Vary" })
+            NAMES.put(name, bytes(name + ": "));
+    }
+
+    private static final ThreadLocal<ResponseHead> HEADS = new ThreadLocal<ResponseHead>() {
+        @Override
+        protected ResponseHead initialValue() {
+            return new ResponseHead();
+        }
+    };
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int count;
+
+    private ResponseHead() {
+    }
+
+    /**
+     * @return this thread's head, emptied
+     */
+    static ResponseHead get() {
+        ResponseHead head = HEADS.get();
+        if (head.buf.length > RETAINED_SIZE)
+            head.buf = new byte[INITIAL_SIZE];
+        head.count = 0;
+        return head;
+    }
+
+    /**
+     * @return the usual reason phrase for the status code, or null
+     */
+    static String getReason(int statusCode) {
+        return statusCode >= 0 && statusCode < REASONS.length ? REASONS[statusCode] : null;
+    }
+
+    void statusLine(String protocol, int statusCode, String statusMessage) {
+        String reason = getReason(statusCode);
+        if (reason != null && reason.equals(statusMessage)) {
+            if ("HTTP/1.1".equals(protocol)) {
+                append(HTTP_11_STATUS_LINES[statusCode]);
+                return;
+            }
+            if ("HTTP/1.0".equals(protocol)) {
+                append(HTTP_10_STATUS_LINES[statusCode]);
+                return;
+            }
+        }
+
+        append(protocol);
+        append(' ');
+        append(statusCode);
+        append(' ');
+        append(statusMessage);
+        append(CRLF);
+    }
+
+    void header(String name, Object value) {
+        name(name);
+        if (value instanceof Integer || value instanceof Long)
+            append(((Number) value).longValue());
+        else if (value instanceof Date)
+            append(HttpDate.format((Date) value));
+        else if (value instanceof Instant)
+            append(HttpDate.format((Instant) value));
+        else
+            append(String.valueOf(value));
+        append(CRLF);
+    }
+
+    void header(String name, long value) {
+        name(name);
+        append(value);
+        append(CRLF);
+    }
+
+    /**
+     * Adds a Date header with the current time.
+     */
+    void date() {
+        append(DATE);
+        append(HttpDate.now());
+        append(CRLF);
+    }
+
+    /**
+     * Ends the headers with an empty line.
+     */
+    void end() {
+        append(CRLF);
+    }
+
+    void append(byte[] bytes) {
+        append(bytes, 0, bytes.length);
+    }
+
+    void append(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buf, count, length);
+        count += length;
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = new byte[count];
+        System.arraycopy(buf, 0, bytes, 0, count);
+        return bytes;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    /**
+     * Writes the head followed by the body, in a single write where the output
+     * allows it.
+     */
+    void writeTo(OutputStream out, byte[] body) throws IOException {
+        if (body == null || body.length == 0)
+            writeTo(out);
+        else if (body.length <= COPY_LIMIT) {
+            append(body);
+            writeTo(out);
+        }
+        else if (out instanceof GatheringOutput)
+            ((GatheringOutput) out).write(buf, count, body, 0, body.length);
+        else {
+            writeTo(out);
+            out.write(body);
+        }
+    }
+
+    private void name(String name) {
+        byte[] encoded = NAMES.get(name);
+        if (encoded != null)
+            append(encoded);
+        else {
+            append(name);
+            append(':');
+            append(' ');
+        }
+    }
+
+    private void append(char c) {
+        ensure(1);
+        buf[count++] = (byte) c;
+    }
+
+    private void append(String string) {
+        int length = string.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            buf[count++] = c < 256 ? (byte) c : (byte) '?';
+        }
+    }
+
+    private void append(long value) {
+        if (value == Long.MIN_VALUE) {
+            append(Long.toString(value));
+            return;
+        }
+
+        ensure(20);
+        if (value < 0) {
+            buf[count++] = '-';
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            digits++;
+
+        count += digits;
+        int i = count;
+        do {
+            buf[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+    }
+
+    private void ensure(int length) {
+        if (count + length > buf.length) {
+            byte[] grown = new byte[Math.max(buf.length * 2, count + length)];
+            System.arraycopy(buf, 0, grown, 0, count);
+            buf = grown;
+        }
+    }
+
+    private static void reason(int statusCode, String reason) {
+        REASONS[statusCode] = reason;
+        HTTP_11_STATUS_LINES[statusCode] = bytes("HTTP/1.1 " + statusCode + ' ' + reason + "\r\n");
+        HTTP_10_STATUS_LINES[statusCode] = bytes("HTTP/1.0 " + statusCode + ' ' + reason + "\r\n");
+    }
+
+    private static byte[] bytes(String string) {
+        byte[] bytes = new byte[string.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) string.charAt(i);
+        return bytes;
+    }
+}
@@ -0,0 +1,470 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends each request to the handler whose route matches its method and path.
+ * <p>
+ * A route's path template is made of literal text, {@code {name}} which
+ * captures one path segment, and a trailing {@code *} or {@code {name*}}
+ * which captures the rest of the path. Captured values are percent-decoded
+ * and available from {@link Request#getPathParameter(String)}, the rest
+ * under the name "*" unless it's given one.
+ * <p>
+ * Routes are compiled into a radix tree, so finding one depends on the length
+ * of the path rather than the number of routes. Literal text is preferred to
+ * a capture and a capture to the rest of the path, whatever order the routes
+ * were added in. A path that matches routes for other methods gets a 405,
+ * HEAD is served by GET routes and anything else goes to the not found
+ * handler.
+ * <p>
+ * Routes should all be added before the server starts.
+ */
+public class Router implements RequestHandler {
+    private final Node root = new Node("");
+    private int maxCaptures;
+    private RequestHandler notFoundHandler = new RequestHandler() {
+        @Override
+        public Response execute(Request request) {
+            return error(404, "Not Found");
+        }
+    };
+
+    public Router get(String template, RequestHandler handler) {
+        return add("GET", template, handler);
+    }
+
+    public Router post(String template, RequestHandler handler) {
+        return add("POST", template, handler);
+    }
+
+    public Router put(String template, RequestHandler handler) {
+        return add("PUT", template, handler);
+    }
+
+    public Router delete(String template, RequestHandler handler) {
+        return add("DELETE", template, handler);
+    }
+
+    /**
+     * @param method
+     *            the request method or "*" for any
+     * @return this router so routes can be chained
+     * @throws IllegalArgumentException
+     *             if the template is malformed or already routed for the
+     *             method
+     */
+    public synchronized Router add(String method, String template, RequestHandler handler) {
+        List<String> names = new ArrayList<String>();
+        Node node = root;
+        int i = 0;
+
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c == '{') {
+                int end = template.indexOf('}', i);
+                if (end < 0)
+                    throw new IllegalArgumentException("Unclosed { in " + template);
+                String name = template.substring(i + 1, end);
+                i = end + 1;
+
+                if (name.endsWith("*")) {
+                    node = rest(node, template, i);
+                    names.add(name.length() > 1 ? name.substring(0, name.length() - 1) : "*");
+                }
+                else {
+                    if (name.length() == 0)
+                        throw new IllegalArgumentException("Unnamed parameter in " + template);
+                    if (node.segment == null)
+                        node.segment = new Node("");
+                    node = node.segment;
+                    names.add(name);
+                }
+            }
+            else if (c == '*') {
+                node = rest(node, template, ++i);
+                names.add("*");
+            }
+            else {
+                int end = i;
+                while (end < template.length() && template.charAt(end) != '{' && template.charAt(end) != '*')
+                    end++;
+                node = node.insert(template.substring(i, end));
+                i = end;
+            }
+        }
+
+        for (Route route : node.routes)
+            if (route.method.equals(method))
+                throw new IllegalArgumentException(method + " " + template + " is already routed");
+
+        node.routes.add(new Route(method, handler, names.toArray(new String[names.size()])));
+        maxCaptures = Math.max(maxCaptures, names.size());
+        return this;
+    }
+
+    private static Node rest(Node node, String template, int end) {
+        if (end != template.length())
+            throw new IllegalArgumentException("* must end " + template);
+        if (node.rest == null)
+            node.rest = new Node("");
+        return node.rest;
+    }
+
+    @Override
+    public Response execute(Request request) {
+        String path = request.getPath();
+        int[] captures = new int[maxCaptures * 2];
+
+        Node node = root.match(path, 0, captures, 0);
+        if (node == null)
+            return notFoundHandler.execute(request);
+
+        String method = request.getMethod();
+        Route route = node.find(method);
+        if (route == null && method.equals("HEAD"))
+            route = node.find("GET");
+        if (route == null)
+            route = node.find("*");
+        if (route == null) {
+            SimpleResponse response = error(405, "Method Not Allowed");
+            response.setHeader("Allow", node.allow());
+            return response;
+        }
+
+        return route.handler.execute(withPathParameters(request, route.names, path, captures));
+    }
+
+    private static Request withPathParameters(Request request, String[] names, String path, int[] captures) {
+        if (names.length == 0)
+            return request;
+
+        Map<String, String> parameters = new LinkedHashMap<String, String>(names.length * 2);
+        for (int i = 0; i < names.length; i++)
+            parameters.put(names[i], decode(path, captures[i * 2], captures[i * 2 + 1]));
+
+        if (request instanceof AbstractRequest) {
+            ((AbstractRequest) request).setPathParameters(Collections.unmodifiableMap(parameters));
+            return request;
+        }
+        return new RoutedRequest(request, Collections.unmodifiableMap(parameters));
+    }
+
+    /**
+     * Percent-decodes part of a path as UTF-8. Unlike a query string a + is
+     * left alone.
+     */
+    static String decode(String path, int start, int end) {
+        int percent = path.indexOf('%', start);
+        if (percent < 0 || percent >= end)
+            return path.substring(start, end);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            int hi, lo;
+            if (c == '%' && i + 2 < end && (hi = Character.digit(path.charAt(i + 1), 16)) >= 0
+                    && (lo = Character.digit(path.charAt(i + 2), 16)) >= 0) {
+                bytes.write(hi << 4 | lo);
+                i += 2;
+            }
+            else if (c < 256) {
+                // The request line was read a byte per character
+                bytes.write(c);
+            }
+            else {
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static SimpleResponse error(int statusCode, String statusMessage) {
+        SimpleResponse response = new SimpleResponse();
+        response.setStatusCode(statusCode);
+        response.setStatusMessage(statusMessage);
+        response.setHeader("Content-Type", "text/plain");
+        response.setBody(statusCode + " " + statusMessage);
+        return response;
+    }
+
+    public RequestHandler getNotFoundHandler() {
+        return notFoundHandler;
+    }
+
+    /**
+     * @param notFoundHandler
+     *            handles requests for paths without a route, for instance a
+     *            {@link FileRequestHandler}
+     */
+    public void setNotFoundHandler(RequestHandler notFoundHandler) {
+        this.notFoundHandler = notFoundHandler;
+    }
+
+    private static class Route {
+        final String method;
+        final RequestHandler handler;
+        final String[] names;
+
+        Route(String method, RequestHandler handler, String[] names) {
+            this.method = method;
+            this.handler = handler;
+            this.names = names;
+        }
+    }
+
+    /**
+     * A node of the radix tree. Its literal children each start with a
+     * different character, its segment child captures up to the next / and
+     * its rest child captures everything left.
+     */
+    private static class Node {
+        String prefix;
+        Node[] children = new Node[0];
+        Node segment;
+        Node rest;
+        List<Route> routes = new ArrayList<Route>(1);
+
+        Node(String prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * @return the node reached after the literal text, splitting nodes
+         *         and adding new ones as needed
+         */
+        Node insert(String text) {
+            if (text.length() == 0)
+                return this;
+
+            for (int c = 0; c < children.length; c++) {
+                Node child = children[c];
+                if (child.prefix.charAt(0) != text.charAt(0))
+                    continue;
+
+                int common = 1;
+                int max = Math.min(child.prefix.length(), text.length());
+                while (common < max && child.prefix.charAt(common) == text.charAt(common))
+                    common++;
+
+                if (common < child.prefix.length()) {
+                    // Split the child at the end of what they have in common
+                    Node split = new Node(child.prefix.substring(0, common));
+                    child.prefix = child.prefix.substring(common);
+                    split.children = new Node[] { child };
+                    children[c] = split;
+                    child = split;
+                }
+                return child.insert(text.substring(common));
+            }
+
+            Node child = new Node(text);
+            Node[] grown = new Node[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, children.length);
+            grown[children.length] = child;
+            children = grown;
+            return child;
+        }
+
+        /**
+         * @return the node whose routes match the path from {@code start}
+         *         after this node's prefix, or null
+         */
+        Node match(String path, int start, int[] captures, int capture) {
+            if (!path.startsWith(prefix, start))
+                return null;
+            int i = start + prefix.length();
+
+            if (i == path.length() && !routes.isEmpty())
+                return this;
+
+            if (i < path.length()) {
+                char c = path.charAt(i);
+                for (Node child : children) {
+                    if (child.prefix.charAt(0) == c) {
+                        Node match = child.match(path, i, captures, capture);
+                        if (match != null)
+                            return match;
+                        break;
+                    }
+                }
+
+                if (segment != null) {
+                    int end = path.indexOf('/', i);
+                    if (end < 0)
+                        end = path.length();
+                    if (end > i) {
+                        Node match = segment.match(path, end, captures, capture + 1);
+                        if (match != null) {
+                            captures[capture * 2] = i;
+                            captures[capture * 2 + 1] = end;
+                            return match;
+                        }
+                    }
+                }
+            }
+
+            if (rest != null && !rest.routes.isEmpty()) {
+                captures[capture * 2] = i;
+                captures[capture * 2 + 1] = path.length();
+                return rest;
+            }
+
+            return null;
+        }
+
+        Route find(String method) {
+            for (Route route : routes)
+                if (route.method.equals(method))
+                    return route;
+            return null;
+        }
+
+        String allow() {
+            StringBuilder allow = new StringBuilder();
+            for (Route route : routes) {
+                if (allow.length() > 0)
+                    allow.append(", ");
+                allow.append(route.method);
+            }
+            if (find("GET") != null && find("HEAD") == null)
+                allow.append(", HEAD");
+            return allow.toString();
+        }
+    }
+
+    /**
+     * Adds path parameters to requests that don't extend
+     * {@link AbstractRequest}.
+     */
+    private static class RoutedRequest implements Request {
+        private final Request request;
+        private final Map<String, String> pathParameters;
+
+        RoutedRequest(Request request, Map<String, String> pathParameters) {
+            this.request = request;
+            this.pathParameters = pathParameters;
+        }
+
+        @Override
+        public String getPathParameter(String name) {
+            return pathParameters.get(name);
+        }
+
+        @Override
+        public <T> T getPathParameter(String name, Class<T> target) {
+            return Converters.convert(getPathParameter(name), target);
+        }
+
+        @Override
+        public Map<String, String> getPathParameters() {
+            return pathParameters;
+        }
+
+        @Override
+        public Socket getSocket() {
+            return request.getSocket();
+        }
+
+        @Override
+        public String getMethod() {
+            return request.getMethod();
+        }
+
+        @Override
+        public String getUri() {
+            return request.getUri();
+        }
+
+        @Override
+        public String getProtocol() {
+            return request.getProtocol();
+        }
+
+        @Override
+        public String getPath() {
+            return request.getPath();
+        }
+
+        @Override
+        public String getQueryString() {
+            return request.getQueryString();
+        }
+
+        @Override
+        public String getHostname() {
+            return request.getHostname();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return request.getHeader(name);
+        }
+
+        @Override
+        public <T> T getHeader(String name, Class<T> target) {
+            return request.getHeader(name, target);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return request.getHeaders();
+        }
+
+        @Override
+        public InputStream getBodyStream() throws IOException {
+            return request.getBodyStream();
+        }
+
+        @Override
+        public String getBody() throws IOException {
+            return request.getBody();
+        }
+
+        @Override
+        public String getParameter(String name) {
+            return request.getParameter(name);
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            return request.getParameterValues(name);
+        }
+
+        @Override
+        public <T> T getParameter(String name, Class<T> target) {
+            return request.getParameter(name, target);
+        }
+
+        @Override
+        public Map<String, String> getParameters() {
+            return request.getParameters();
+        }
+    }
+}
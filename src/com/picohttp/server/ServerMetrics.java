@@ -0,0 +1,191 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Instrumentation that keeps the server's metrics in a
+ * {@link MetricsRegistry}: a latency histogram per {@link Instrumentation.Stage},
+ * connection, byte and per status code counts, the Dispatcher's queue
+ * depth and busy workers, work admitted and shed by the
+ * {@link AdmissionControl}, connections closed by the {@link ConnectionGuard}
+ * and how well the {@link BufferPool} is doing.
+ * 
+ * <pre>
+ * MetricsRegistry registry = new MetricsRegistry();
+ * configuration.setInstrumentation(new ServerMetrics(registry));
+ * router.get("/metrics", new MetricsRequestHandler(registry));
+ * </pre>
+ */
+public class ServerMetrics implements Instrumentation {
+    private final MetricsRegistry registry;
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final LongAdder activeConnections = new LongAdder();
+    private final Counter connections;
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final LongAdder[] statusCodes = new LongAdder[600];
+
+    public ServerMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+
+        for (Stage stage : Stage.values()) {
+            String name = stage.name().toLowerCase();
+            stages[stage.ordinal()] = registry.histogram("picohttp_" + name + "_seconds",
+                    "Time spent in the " + name + " stage");
+        }
+
+        registry.gauge("picohttp_connections_active", "Open client connections", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return activeConnections.sum();
+            }
+        });
+        connections = registry.counter("picohttp_connections_total", "Client connections accepted");
+        bytesIn = registry.counter("picohttp_received_bytes_total", "Bytes read from clients");
+        bytesOut = registry.counter("picohttp_sent_bytes_total", "Bytes written to clients");
+
+        for (int i = 0; i < statusCodes.length; i++)
+            statusCodes[i] = new LongAdder();
+        registry.register(new Metric() {
+            @Override
+            public void writePrometheus(Appendable out) throws IOException {
+                MetricsRegistry.writeHeader(out, "picohttp_responses_total", "Responses by status code", "counter");
+                for (int i = 0; i < statusCodes.length; i++) {
+                    long count = statusCodes[i].sum();
+                    if (count > 0)
+                        out.append("picohttp_responses_total{code=\"").append(i == 0 ? "unknown" : Integer.toString(i))
+                                .append("\"} ").append(Long.toString(count)).append('\n');
+                }
+            }
+        });
+
+        final BufferPool pool = BufferPool.getDefault();
+        registry.register(new Metric() {
+            @Override
+            public void writePrometheus(Appendable out) throws IOException {
+                MetricsRegistry.writeHeader(out, "picohttp_buffer_pool_total", "Buffers asked of the pool", "counter");
+                out.append("picohttp_buffer_pool_total{result=\"hit\"} ").append(Long.toString(pool.getHits()))
+                        .append('\n');
+                out.append("picohttp_buffer_pool_total{result=\"miss\"} ").append(Long.toString(pool.getMisses()))
+                        .append('\n');
+                MetricsRegistry.writeHeader(out, "picohttp_buffer_pool_discarded_total",
+                        "Buffers given back that the pool didn't keep", "counter");
+                out.append("picohttp_buffer_pool_discarded_total ").append(Long.toString(pool.getDiscards()))
+                        .append('\n');
+                MetricsRegistry.writeHeader(out, "picohttp_buffer_pool_leaks_total",
+                        "Buffers collected without being given back, with leak detection on", "counter");
+                out.append("picohttp_buffer_pool_leaks_total ").append(Long.toString(pool.getLeaks())).append('\n');
+            }
+        });
+        registry.gauge("picohttp_buffer_pool_retained_bytes", "Bytes of buffers held by the pool", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return pool.getRetainedBytes();
+            }
+        });
+    }
+
+    @Override
+    public void started(PicoHttp server) {
+        final Dispatcher dispatcher = server.getDispatcher();
+        registry.gauge("picohttp_dispatcher_queue_depth", "Tasks waiting for a worker", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return dispatcher.getQueueDepth();
+            }
+        });
+        registry.gauge("picohttp_dispatcher_active_workers", "Workers running a task", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return dispatcher.getActiveWorkers();
+            }
+        });
+
+        final AdmissionControl admission = server.getAdmissionControl();
+        registry.register(new Metric() {
+            @Override
+            public void writePrometheus(Appendable out) throws IOException {
+                MetricsRegistry.writeHeader(out, "picohttp_admitted_total", "Work started within its time in the queue",
+                        "counter");
+                out.append("picohttp_admitted_total ").append(Long.toString(admission.getAdmitted())).append('\n');
+                MetricsRegistry.writeHeader(out, "picohttp_shed_total", "Connections and requests turned away with a 503",
+                        "counter");
+                for (AdmissionControl.Reason reason : AdmissionControl.Reason.values())
+                    out.append("picohttp_shed_total{reason=\"").append(reason.name().toLowerCase()).append("\"} ")
+                            .append(Long.toString(admission.getShed(reason))).append('\n');
+            }
+        });
+
+        final ConnectionGuard guard = server.getConnectionGuard();
+        registry.register(new Metric() {
+            @Override
+            public void writePrometheus(Appendable out) throws IOException {
+                MetricsRegistry.writeHeader(out, "picohttp_violations_total",
+                        "Connections closed for missing a deadline or breaking a header limit", "counter");
+                for (ConnectionGuard.Violation violation : ConnectionGuard.Violation.values())
+                    out.append("picohttp_violations_total{kind=\"").append(violation.name().toLowerCase())
+                            .append("\"} ").append(Long.toString(guard.getViolations(violation))).append('\n');
+            }
+        });
+    }
+
+    @Override
+    public void connectionOpened() {
+        activeConnections.increment();
+        connections.increment();
+    }
+
+    @Override
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    @Override
+    public void stage(Stage stage, long nanos) {
+        stages[stage.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void responded(int statusCode, long bytesIn, long bytesOut) {
+        statusCodes[statusCode > 0 && statusCode < statusCodes.length ? statusCode : 0].increment();
+        this.bytesIn.add(bytesIn);
+        this.bytesOut.add(bytesOut);
+    }
+
+    public Histogram getHistogram(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    /**
+     * @return the number of responses sent with the status code
+     */
+    public long getResponses(int statusCode) {
+        return statusCode > 0 && statusCode < statusCodes.length ? statusCodes[statusCode].sum() : 0;
+    }
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+}
@@ -15,89 +15,140 @@
 
 package com.picohttp.server;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Constructor;
+import java.io.InputStream;
 import java.net.Socket;
-import java.net.URLDecoder;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Locale;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
 
-public class SimpleRequest implements Request {
-    private final Socket socket;
-    private final BufferedInputStream inputStream;
+public class SimpleRequest extends AbstractRequest {
+    private final InputStream inputStream;
+    /** The limits on the request head's lines or null */
+    private final ConnectionGuard guard;
     private final String method, uri, protocol, path, queryString, hostname;
-    private final Map<String, String> headers = new HashMap<String, String>();
-    private final Map<String, String> parameters = new HashMap<String, String>();
-
-    private String body = null;
+    private String[] headerNames = new String[16];
+    private String[] headerValues = new String[16];
+    private int headerCount;
+    private final HeaderIndex index = new HeaderIndex() {
+        @Override
+        protected boolean nameEquals(int i, String name) {
+            return headerNames[i].equalsIgnoreCase(name);
+        }
+    };
+    private Map<String, String> headers;
+    private Parameters parameters;
+    private final StringBuilder lineBuilder = new StringBuilder();
 
     public SimpleRequest(Socket socket) throws IOException {
-        this.socket = socket;
-        this.inputStream = new BufferedInputStream(socket.getInputStream());
+        this(new Connection(socket));
+    }
 
-        // Read the first line
-        String line = readHeaderLine();
+    public SimpleRequest(Connection connection) throws IOException {
+        super(connection);
+        this.inputStream = connection.getInputStream();
+        this.guard = connection.getGuard();
+
+        // Read the first line, ignoring any blank lines left over from a previous request
+        String line;
+        do {
+            line = readHeaderLine();
+            if (line == null)
+                throw new EOFException("Connection closed before a request was received");
+        } while (line.length() == 0);
         String[] parts = splitStatusLine(line);
         this.method = parts[0];
         this.uri = parts[1];
         this.protocol = parts[2];
 
         // Read the headers
-        String name = null;
-        while ((line = readHeaderLine()).length() > 0) {
+        while ((line = readHeaderLine()) != null && line.length() > 0) {
             if (line.charAt(0) != ' ') {
                 parts = splitHeaderLine(line);
-                name = parts[0];
-                String value = parts[1];
-                headers.put(name, value);
+                if (parts[0] != null)
+                    addHeader(parts[0], parts[1]);
             }
-            else {
-                headers.put(name, headers.get(name) + line.trim());
+            else if (headerCount > 0) {
+                headerValues[headerCount - 1] += line.trim();
             }
         }
+        if (line == null)
+            throw new EOFException("Connection closed while reading the request headers");
+
+        // The body ends after Content-Length bytes or the last chunk, anything beyond that is the next request
+        initBody(inputStream, contentLength());
 
-        // Read the query string parameters
+        // Parameters are only decoded if they're asked for
         int q = uri.indexOf('?');
         if (q != -1) {
             path = uri.substring(0, q);
             queryString = uri.substring(q + 1);
-            readUrlEncodedParameters(uri.substring(q + 1), "UTF-8");
         }
         else {
             path = uri;
             queryString = null;
         }
 
-        String contentType = getHeader("Content-Type");
-        if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
-            String charset = getCharset(contentType);
-            // Read the parameters encoded in the message body
-            readUrlEncodedParameters(getBody(), charset);
-        }
-        
         String hostname = getHeader("Host");
         if (hostname != null)
             hostname = hostname.replaceAll(":.*", "");
         else
-            hostname = socket.getInetAddress().getHostAddress();
+            hostname = connection.getSocket().getInetAddress().getHostAddress();
         this.hostname = hostname;
     }
     
+    /**
+     * @return the Content-Length or 0 if there isn't one
+     * @throws IOException
+     *             if it isn't a plain decimal number or is given more than
+     *             once with different values, which would leave the end of the
+     *             body open to interpretation
+     */
+    private long contentLength() throws IOException {
+        long contentLength = -1;
+        boolean transferEncoding = false;
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNames[i].equalsIgnoreCase("Transfer-Encoding")) {
+                // Codings listed across several headers, only a lone chunked is supported
+                if (transferEncoding)
+                    throw new UnsupportedTransferEncodingException("more than one header");
+                transferEncoding = true;
+            }
+            if (!headerNames[i].equalsIgnoreCase("Content-Length"))
+                continue;
+
+            String value = headerValues[i].trim();
+            if (value.length() == 0 || value.length() > 18)
+                throw new IOException("Invalid Content-Length: " + headerValues[i]);
+            long length = 0;
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c < '0' || c > '9')
+                    throw new IOException("Invalid Content-Length: " + headerValues[i]);
+                length = length * 10 + (c - '0');
+            }
+
+            if (contentLength >= 0 && length != contentLength)
+                throw new IOException("Conflicting Content-Length headers");
+            contentLength = length;
+        }
+        return Math.max(contentLength, 0);
+    }
+
+    /**
+     * @return the next line without its line terminator or null if the
+     *         connection was closed before anything could be read
+     */
     private String readHeaderLine() throws IOException {
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = lineBuilder;
+        sb.setLength(0);
         
-        int b;
+        int b = inputStream.read();
+        if (b == -1)
+            return null;
         
-        while ((b = inputStream.read()) != -1) {
+        for (; b != -1; b = inputStream.read()) {
             if (b == '\r' || b == '\n') {
                 if (b == '\r') {
                     // Header lines should end with \r\n but just to be safe...
@@ -111,20 +162,16 @@ public class SimpleRequest implements Request {
                 
                 break;
             }
-            else
+            else {
                 sb.append((char) b);
+                if (guard != null)
+                    guard.checkHeaderLineLength(sb.length());
+            }
         }
         
         return sb.toString();
     }
     
-    protected String getCharset(String string) {
-        if (string != null && string.contains("charset="))
-            return string.replaceAll(".*charset=(\\S+)", "$1");
-        else
-            return "UTF-8";
-    }
-
     protected String[] splitStatusLine(String line) {
         String[] parts = new String[3];
         if (line != null) {
@@ -156,26 +203,46 @@ public class SimpleRequest implements Request {
         return parts;
     }
 
-    protected void readUrlEncodedParameters(String encoded, String charset) {
-        try {
-            String[] pairs = encoded.split("&");
-            for (String pair : pairs) {
-                String[] parts = pair.split("=", 2);
-                String name = URLDecoder.decode(parts[0], charset);
-                String value = "";
-                if (parts.length == 2)
-                    value = URLDecoder.decode(parts[1], charset);
-                parameters.put(name, value);
-            }
-        }
-        catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+    private void addHeader(String name, String value) throws IOException {
+        if (headerCount == headerNames.length) {
+            headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+            headerValues = Arrays.copyOf(headerValues, headerCount * 2);
         }
+        headerNames[headerCount] = name;
+        headerValues[headerCount] = value;
+        headerCount++;
+        index.add(HeaderIndex.hash(name));
+        if (guard != null)
+            guard.checkHeaderCount(headerCount);
     }
 
-    @Override
-    public Socket getSocket() {
-        return socket;
+    /**
+     * Adds the parameters encoded in {@code encoded}, which are decoded when
+     * they're asked for.
+     */
+    protected void readUrlEncodedParameters(String encoded, String charset) {
+        parameters().add(encoded, charset);
+    }
+
+    private Parameters parameters() {
+        if (parameters == null) {
+            parameters = new Parameters();
+
+            if (queryString != null)
+                readUrlEncodedParameters(queryString, "UTF-8");
+
+            String contentType = getHeader("Content-Type");
+            if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+                try {
+                    // Read the parameters encoded in the message body
+                    readUrlEncodedParameters(getBody(), getCharset(contentType));
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return parameters;
     }
 
     @Override
@@ -210,137 +277,33 @@ public class SimpleRequest implements Request {
 
     @Override
     public String getHeader(String name) {
-        String value = headers.get(name);
-
-        if (value == null) {
-            for (String header : headers.keySet()) {
-                if (name.equalsIgnoreCase(header)) {
-                    value = headers.get(header);
-                    break;
-                }
-            }
-        }
-
-        return value;
-    }
-
-    @Override
-    public String getBody() throws IOException {
-        if (body == null)
-            readBody();
-
-        return body;
-    }
-
-    synchronized private void readBody() throws IOException {
-        if (body != null)
-            return;
-
-        Integer contentLength = getHeader("Content-Length", Integer.class);
-        
-        int maxBytes = contentLength != null ? contentLength : 16*1024*1024;
-        
-        StringBuilder sb = new StringBuilder();
-        
-        String charset = getCharset(getHeader("Content-Type"));
-
-        byte[] data = new byte[4096];
-        int count;
-        while (maxBytes > 0 && (count = inputStream.read(data, 0, Math.min(data.length, maxBytes))) != -1) {
-            sb.append(new String(data, 0, count, charset));
-            maxBytes -= count;
-        }
-
-        body = sb.toString();
+        int i = index.find(name);
+        return i >= 0 ? headerValues[i] : null;
     }
 
     @Override
     public String getParameter(String name) {
-        return parameters.get(name);
+        return parameters().get(name);
     }
 
     @Override
-    public <T> T getParameter(String name, Class<T> target) {
-        return cooerce(getParameter(name), target);
-    }
-    
-    private static final DateFormat[] DATE_FORMATS = {
-        new SimpleDateFormat("d MMM yy"),
-        new SimpleDateFormat("yyyy M d"),
-        new SimpleDateFormat("yyyy MMM d"),
-        new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy")
-    };
-    public static final Pattern PRE_PROCESS_PATTERN = Pattern.compile("(?<!GMT)[\\s,/\\.-]+");
-    
-    private <T> T cooerce(String value, Class<T> target) {
-        if (value == null)
-            return null;
-
-        if (target == Date.class) {
-            for (DateFormat format : PicoHttp.HTTP_HEADER_DATE_FORMATS) {
-                try {
-                    @SuppressWarnings("unchecked")
-                    final T date = (T) format.parse(value);
-                    return date;
-                }
-                catch (ParseException e) {
-                }
-            }
-            
-            // Courtesy of Stripe's DateTypeConverter
-            String d = PRE_PROCESS_PATTERN.matcher(value).replaceAll(" ");
-            d = checkAndAppendYear(d);
-            for (DateFormat format : DATE_FORMATS) {
-                try {
-                    @SuppressWarnings("unchecked")
-                    final T date = (T) format.parse(d);
-                    return date;
-                }
-                catch (ParseException e) {
-                }
-            }
-            
-            return null;
-        }
-
-        try {
-            Constructor<T> constructor = target.getConstructor(String.class);
-
-            return constructor.newInstance(value);
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        return null;
-    }
-    
-    private String checkAndAppendYear(String input) {
-        // Count the spaces, date components = spaces + 1
-        int count = 0;
-        for (char ch : input.toCharArray()) {
-            if (ch == ' ') ++count;
-        }
-
-        // Looks like we probably only have a day and month component, that won't work!
-        if (count == 1) {
-            input += " " + Calendar.getInstance(Locale.getDefault()).get(Calendar.YEAR);
-        }
-        return input;
+    public String[] getParameterValues(String name) {
+        return parameters().getValues(name);
     }
 
     @Override
     public Map<String, String> getHeaders() {
+        if (headers == null) {
+            headers = new LinkedHashMap<String, String>();
+            for (int i = 0; i < headerCount; i++)
+                if (!headers.containsKey(headerNames[i]))
+                    headers.put(headerNames[i], headerValues[i]);
+        }
         return headers;
     }
 
     @Override
     public Map<String, String> getParameters() {
-        return parameters;
-    }
-
-    @Override
-    public <T> T getHeader(String name, Class<T> target) {
-        return cooerce(getHeader(name), target);
+        return parameters().asMap();
     }
 }
@@ -17,64 +17,27 @@ package com.picohttp.server;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
-public class SimpleResponse implements Response {
-    private int statusCode = 200;
-    private String statusMessage = "OK";
-    private Map<String, Object> headers = new HashMap<String, Object>();
+public class SimpleResponse extends AbstractResponse {
     private byte[] body;
-    
-    private static final String CRLF = "\r\n";
 
     @Override
-    public void write(OutputStream os) throws IOException {
-        PrintStream out = new PrintStream(os);
-        
-        // First line
-        out.print("HTTP/1.0 "+statusCode+' '+statusMessage+CRLF);
-
-        // Headers
-        for (Map.Entry<String, Object> header : headers.entrySet()) {
-            String key = header.getKey();
-            Object value = header.getValue();
-            if (value instanceof Date)
-                value = PicoHttp.HTTP_HEADER_DATE_FORMATS[0].format((Date) value);
-            out.print(key+": "+value.toString()+CRLF);
-        }
-
-        out.print(CRLF);
-
-        if (body != null)
-            out.write(body);
-    }
-
-    public int getStatusCode() {
-        return statusCode;
-    }
-
-    public void setStatusCode(int statusCode) {
-        this.statusCode = statusCode;
-    }
+    protected boolean delimitBody() {
+        // Not even a length of 0 is allowed on these, and a 304's is the one it would have had
+        int statusCode = getStatusCode();
+        if (statusCode < 200 || statusCode == 204)
+            removeHeader("Content-Length");
+        // Without a length the client could only find the end of the body by the connection closing
+        else if (body == null && getHeader("Content-Length") == null && !isBodyless())
+            setHeader("Content-Length", 0);
 
-    public String getStatusMessage() {
-        return statusMessage;
+        return true;
     }
 
-    public void setStatusMessage(String statusMessage) {
-        this.statusMessage = statusMessage;
-    }
-    
-    public void setHeader(String name, Object value) {
-        headers.put(name, value);
-    }
-    
-    public Object getHeader(String name) {
-        return headers.get(name);
+    @Override
+    public void write(OutputStream out) throws IOException {
+        writeHead(out, isHeadRequest() || isBodyless() ? null : body);
     }
 
     public byte[] getBody() {
@@ -0,0 +1,187 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The buffered output of a blocking {@link Connection}. Sockets accepted
+ * through a channel can send files with {@link FileChannel#transferTo} and
+ * large responses with a gathering write.
+ * <p>
+ * With a {@link ConnectionGuard.Deadline} each write to the socket must finish
+ * within the write timeout. Large writes are made a piece at a time so it's
+ * the client taking too long over a piece that closes the connection, not the
+ * size of the response.
+ */
+class SocketOutputStream extends BufferedOutputStream implements FileTransfer, GatheringOutput, CountingOutput {
+    /** The most written to the socket under one deadline */
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final ConnectionGuard.Deadline deadline;
+    private long bytesWritten;
+
+    SocketOutputStream(Socket socket) throws IOException {
+        this(socket, null);
+    }
+
+    SocketOutputStream(Socket socket, ConnectionGuard.Deadline deadline) throws IOException {
+        this(socket.getOutputStream(), socket.getChannel(), deadline);
+    }
+
+    /**
+     * @param channel
+     *            the blocking channel {@code out} writes to, for the faster
+     *            ways of sending, or null to write everything to {@code out}
+     */
+    SocketOutputStream(OutputStream out, SocketChannel channel, ConnectionGuard.Deadline deadline) {
+        // The buffer comes from the pool instead
+        super(deadline != null ? new DeadlineOutputStream(out, deadline) : out, 1);
+        this.buf = BufferPool.getDefault().acquire(8192);
+        this.channel = channel;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Gives the buffer back to the {@link BufferPool}, leaving one too small
+     * to hold anything.
+     */
+    synchronized void release() {
+        if (buf.length > 1) {
+            BufferPool.getDefault().release(buf);
+            buf = new byte[1];
+            count = 0;
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        super.write(b);
+        bytesWritten++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        bytesWritten += len;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void write(byte[] head, int headLength, byte[] body, int offset, int length) throws IOException {
+        if (channel == null || !channel.isBlocking()) {
+            write(head, 0, headLength);
+            write(body, offset, length);
+            return;
+        }
+
+        ByteBuffer[] buffers = { ByteBuffer.wrap(buf, 0, count), ByteBuffer.wrap(head, 0, headLength),
+                ByteBuffer.wrap(body, offset, length) };
+        if (deadline == null) {
+            while (buffers[2].hasRemaining())
+                channel.write(buffers);
+        }
+        else {
+            int end = offset + length;
+            while (buffers[2].hasRemaining()) {
+                buffers[2].limit(Math.min(end, buffers[2].position() + WRITE_SIZE));
+                deadline.start(ConnectionGuard.Violation.WRITE_TIMEOUT);
+                try {
+                    while (buffers[2].hasRemaining())
+                        channel.write(buffers);
+                }
+                finally {
+                    deadline.stop(ConnectionGuard.Violation.WRITE_TIMEOUT);
+                }
+                buffers[2].limit(end);
+            }
+        }
+        count = 0;
+        bytesWritten += headLength + length;
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        flush();
+
+        if (channel == null || !channel.isBlocking()) {
+            FileResponse.copy(file, position, count, this);
+            flush();
+            return;
+        }
+
+        while (count > 0) {
+            long sent;
+            if (deadline == null)
+                sent = file.transferTo(position, count, channel);
+            else {
+                deadline.start(ConnectionGuard.Violation.WRITE_TIMEOUT);
+                try {
+                    sent = file.transferTo(position, Math.min(count, WRITE_SIZE), channel);
+                }
+                finally {
+                    deadline.stop(ConnectionGuard.Violation.WRITE_TIMEOUT);
+                }
+            }
+            if (sent <= 0 && position >= file.size())
+                throw new IOException("File truncated while being sent");
+            position += sent;
+            count -= sent;
+            bytesWritten += sent;
+        }
+    }
+
+    /**
+     * Writes to the socket a piece at a time, each within the deadline.
+     */
+    private static class DeadlineOutputStream extends FilterOutputStream {
+        private final ConnectionGuard.Deadline deadline;
+
+        DeadlineOutputStream(OutputStream out, ConnectionGuard.Deadline deadline) {
+            super(out);
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int size = Math.min(len, WRITE_SIZE);
+                deadline.start(ConnectionGuard.Violation.WRITE_TIMEOUT);
+                try {
+                    out.write(b, off, size);
+                }
+                finally {
+                    deadline.stop(ConnectionGuard.Violation.WRITE_TIMEOUT);
+                }
+                off += size;
+                len -= size;
+            }
+        }
+    }
+}
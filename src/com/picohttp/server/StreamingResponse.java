@@ -0,0 +1,97 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A response whose body is written by a {@link BodyWriter} while the response
+ * is sent instead of being held in memory. If no Content-Length has been set
+ * the body is sent with {@code Transfer-Encoding: chunked} to HTTP/1.1 clients
+ * so the connection can be reused, and ends with the connection otherwise.
+ * Every {@link #getChunkSize()} bytes written are flushed to the client.
+ */
+public class StreamingResponse extends AbstractResponse {
+    public interface BodyWriter {
+        /**
+         * Writes the body. The stream doesn't need to be closed.
+         */
+        public void writeBody(OutputStream out) throws IOException;
+    }
+
+    private BodyWriter bodyWriter;
+    private int chunkSize = 8192;
+    private boolean chunked;
+
+    public StreamingResponse(BodyWriter bodyWriter) {
+        this.bodyWriter = bodyWriter;
+    }
+
+    @Override
+    protected boolean delimitBody() {
+        if (getHeader("Content-Length") != null || isBodyless())
+            return true;
+
+        if (getProtocol().equals("HTTP/1.1")) {
+            chunked = true;
+            setHeader("Transfer-Encoding", "chunked");
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        writeHead(out);
+
+        if (isHeadRequest() || isBodyless()) {
+            out.flush();
+            return;
+        }
+
+        Object length = getHeader("Content-Length");
+        long contentLength = !chunked && length != null ? Long.parseLong(length.toString()) : -1;
+
+        ChunkedOutputStream body = new ChunkedOutputStream(out, chunkSize, chunked, contentLength);
+        try {
+            bodyWriter.writeBody(body);
+            body.close();
+        }
+        finally {
+            body.release();
+        }
+        out.flush();
+    }
+
+    public BodyWriter getBodyWriter() {
+        return bodyWriter;
+    }
+
+    public void setBodyWriter(BodyWriter bodyWriter) {
+        this.bodyWriter = bodyWriter;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+}
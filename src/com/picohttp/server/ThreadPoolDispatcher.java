@@ -0,0 +1,57 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed size pool of platform threads. Idle threads time out so a quiet
+ * server doesn't keep them all around. This is the default Dispatcher, sized
+ * by {@link Configuration#getMaxThreads()}.
+ */
+public class ThreadPoolDispatcher extends ExecutorDispatcher {
+    public ThreadPoolDispatcher(int threads) {
+        super(newExecutor(threads), true);
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads) {
+        // With an unbounded queue the pool never grows past its core size so
+        // core and maximum have to be the same.
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        return new Thread(task, "PicoHttp-worker-" + count.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return the number of threads currently in the pool
+     */
+    public int getPoolSize() {
+        return ((ThreadPoolExecutor) getExecutor()).getPoolSize();
+    }
+}
@@ -0,0 +1,448 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A SocketChannel with TLS, encrypted and decrypted by an {@link SSLEngine}.
+ * The handshake is carried out as the first reads need it.
+ * <p>
+ * Made for a non-blocking channel, reads and writes return 0 rather than
+ * wait. A handshake step that needs a delegated task also returns 0 from
+ * {@link #read(ByteBuffer)}, leaving the task for the caller to run off the
+ * event loop with {@link #runTasks()}. Made for a {@link Socket}, it blocks
+ * like the socket does and is used through {@link #getInputStream()} and
+ * {@link #getOutputStream()}, the reads of which keep to the socket's timeout.
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    /** Where a blocking channel's ciphertext is read from, so the read timeout applies */
+    private final InputStream source;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /** Ciphertext read but not yet decrypted, ready to be filled */
+    private ByteBuffer netIn;
+    /** Plaintext decrypted but not yet read, ready to be read */
+    private ByteBuffer appIn;
+    /** Ciphertext not yet sent, ready to be written */
+    private ByteBuffer netOut;
+    private boolean inboundDone;
+    private volatile boolean established;
+
+    /**
+     * For a non-blocking channel.
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        this(channel, engine, null);
+    }
+
+    /**
+     * For a blocking socket accepted through a channel.
+     */
+    TlsChannel(Socket socket, SSLEngine engine) throws IOException {
+        this(socket.getChannel(), engine, socket.getInputStream());
+    }
+
+    private TlsChannel(SocketChannel channel, SSLEngine engine, InputStream source) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.source = source;
+        // Writes are whole records already, and Nagle would hold back a response sent after a session ticket
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        SSLSession session = engine.getSession();
+        BufferPool pool = BufferPool.getDefault();
+        netIn = ByteBuffer.wrap(pool.acquire(session.getPacketBufferSize()));
+        appIn = ByteBuffer.wrap(pool.acquire(session.getApplicationBufferSize()));
+        appIn.limit(0);
+        netOut = ByteBuffer.wrap(pool.acquire(session.getPacketBufferSize()));
+        netOut.limit(0);
+    }
+
+    SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return true once the first handshake is over
+     */
+    boolean isEstablished() {
+        return established;
+    }
+
+    /**
+     * @return true if there's something received that hasn't been read, which
+     *         the socket won't signal again
+     */
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining() || netIn.position() > 0;
+    }
+
+    /**
+     * @return true if there's ciphertext that couldn't be sent yet
+     */
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * @return true if the handshake is waiting for {@link #runTasks()}
+     */
+    boolean needsTasks() {
+        return engine.getHandshakeStatus() == HandshakeStatus.NEED_TASK;
+    }
+
+    /**
+     * Runs the handshake's delegated tasks, the expensive part of it.
+     */
+    void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    /**
+     * Reads plaintext, handshaking as needed.
+     *
+     * @return the number of bytes read, 0 if there aren't any yet or -1 once
+     *         the client has closed the connection
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        for (;;) {
+            if (appIn.hasRemaining()) {
+                int count = Math.min(appIn.remaining(), dst.remaining());
+                int limit = appIn.limit();
+                appIn.limit(appIn.position() + count);
+                dst.put(appIn);
+                appIn.limit(limit);
+                return count;
+            }
+
+            int progress = step();
+            if (progress <= 0)
+                return progress;
+        }
+    }
+
+    /**
+     * Carries out the handshake on a blocking socket, without waiting for
+     * anything the client may send after it.
+     */
+    void handshake() throws IOException {
+        while (!established)
+            if (step() == -1)
+                throw new EOFException("Closed during the TLS handshake");
+    }
+
+    /**
+     * Takes the next step of the handshake or decrypts the next record.
+     *
+     * @return 1 if it got somewhere, 0 if it has to wait for the socket or a
+     *         delegated task, or -1 once the client has closed the connection
+     */
+    private int step() throws IOException {
+        if (inboundDone)
+            return -1;
+        if (!flush())
+            return 0;
+
+        HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == HandshakeStatus.NEED_TASK) {
+            if (source == null)
+                return 0;
+            runTasks();
+            return 1;
+        }
+        if (status == HandshakeStatus.NEED_WRAP) {
+            // A flight of handshake messages goes out in one write, not one per message
+            while (wrap(EMPTY).bytesProduced() > 0 && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+                ;
+            return 1;
+        }
+
+        netIn.flip();
+        appIn.clear();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        }
+        finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        if (result.getHandshakeStatus() == HandshakeStatus.FINISHED)
+            established = true;
+
+        switch (result.getStatus()) {
+        case BUFFER_UNDERFLOW:
+            if (!netIn.hasRemaining())
+                netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+            int count = readNet();
+            if (count == -1) {
+                inboundDone = true;
+                return -1;
+            }
+            return count == 0 ? 0 : 1;
+        case BUFFER_OVERFLOW:
+            appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+            appIn.limit(0);
+            return 1;
+        case CLOSED:
+            // Answered with our own close_notify when the channel is closed
+            inboundDone = true;
+            return 1;
+        default:
+            return 1;
+        }
+    }
+
+    private int readNet() throws IOException {
+        if (source == null)
+            return channel.read(netIn);
+
+        int count = source.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (count > 0)
+            netIn.position(netIn.position() + count);
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts a record at a time until the plaintext has all been taken or
+     * the socket can take no more.
+     *
+     * @return the number of plaintext bytes taken, which may be more than has
+     *         been sent; see {@link #flush()}
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            long taken = 0;
+            while (flush() && remaining(srcs, offset, length)) {
+                SSLEngineResult result = wrap(srcs, offset, length);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new ClosedChannelException();
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                    throw new SSLException("Can't write while handshaking");
+                taken += result.bytesConsumed();
+            }
+            return taken;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static boolean remaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++)
+            if (srcs[i].hasRemaining())
+                return true;
+        return false;
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        writeLock.lock();
+        try {
+            return wrap(new ByteBuffer[] { src }, 0, 1);
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        for (;;) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, offset, length, netOut);
+            }
+            finally {
+                netOut.flip();
+            }
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut.compact();
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                netOut.flip();
+                continue;
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.FINISHED)
+                established = true;
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+                runTasks();
+            return result;
+        }
+    }
+
+    /**
+     * Sends what's left of the ciphertext.
+     *
+     * @return false if the socket couldn't take it all
+     */
+    boolean flush() throws IOException {
+        writeLock.lock();
+        try {
+            while (netOut.hasRemaining())
+                if (channel.write(netOut) == 0)
+                    return false;
+            return true;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return a larger buffer with the contents of {@code buffer}, which is
+     *         ready to be filled and is given back to the pool
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer larger = ByteBuffer.wrap(pool.acquire(Math.max(size, buffer.capacity() * 2)));
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer.array());
+        return larger;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends a close_notify if it can do so without waiting, then closes the
+     * channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            // Not while another thread is part way through a write
+            if (channel.isOpen() && writeLock.tryLock()) {
+                try {
+                    engine.closeOutbound();
+                    if (channel.isBlocking())
+                        channel.configureBlocking(false);
+                    wrap(EMPTY);
+                    flush();
+                }
+                finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+        catch (IOException e) {
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Gives the buffers back to the {@link BufferPool} once the channel has
+     * been closed.
+     */
+    void release() {
+        BufferPool pool = BufferPool.getDefault();
+        pool.release(netIn.array());
+        pool.release(appIn.array());
+        pool.release(netOut.array());
+        netIn = ByteBuffer.allocate(0);
+        appIn = ByteBuffer.allocate(0);
+        netOut = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * @return the plaintext of a channel made for a blocking socket
+     */
+    InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+
+                ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+                int count;
+                while ((count = TlsChannel.this.read(dst)) == 0)
+                    ;
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return appIn.remaining();
+            }
+        };
+    }
+
+    /**
+     * @return the plaintext of a channel made for a blocking socket
+     */
+    OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer src = ByteBuffer.wrap(b, off, len);
+                while (src.hasRemaining())
+                    TlsChannel.this.write(src);
+            }
+        };
+    }
+}
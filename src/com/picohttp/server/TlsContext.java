@@ -0,0 +1,182 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.picohttp.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Makes the {@link SSLEngine} for each TLS connection from the
+ * {@link Configuration}, and runs the delegated tasks of the NIO engine's
+ * handshakes on threads of its own so they don't hold up an event loop or
+ * take a worker from requests.
+ * <p>
+ * The server side session cache is bounded by
+ * {@link Configuration#getSessionCacheSize()}. Since Java 13 the JDK also
+ * gives clients stateless session tickets, so resumption works whichever
+ * acceptor or server they come back to; the
+ * {@code jdk.tls.server.enableSessionTicketExtension} system property turns
+ * that off.
+ */
+class TlsContext {
+    /** {@code SSLParameters.setApplicationProtocols}, from Java 9 and 8u252 */
+    private static final Method SET_APPLICATION_PROTOCOLS = method(SSLParameters.class, "setApplicationProtocols",
+            String[].class);
+    /** {@code SSLEngine.setHandshakeApplicationProtocolSelector} */
+    private static final Method SET_SELECTOR = method(SSLEngine.class, "setHandshakeApplicationProtocolSelector",
+            BiFunction.class);
+    /** {@code SSLEngine.getApplicationProtocol} */
+    private static final Method GET_APPLICATION_PROTOCOL = method(SSLEngine.class, "getApplicationProtocol");
+
+    private final SSLContext sslContext;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    private final String[] applicationProtocols;
+    private final ApplicationProtocolSelector selector;
+    private final ExecutorService handshakes;
+
+    /**
+     * @throws IllegalArgumentException
+     *             if a protocol or cipher suite isn't supported, or ALPN was
+     *             asked for on a JDK without it
+     */
+    TlsContext(Configuration configuration) throws IllegalArgumentException {
+        this.sslContext = configuration.getSslContext();
+        this.protocols = configuration.getTlsProtocols();
+        this.cipherSuites = configuration.getCipherSuites();
+        this.applicationProtocols = configuration.getApplicationProtocols();
+        this.selector = configuration.getApplicationProtocolSelector();
+
+        if ((applicationProtocols != null && SET_APPLICATION_PROTOCOLS == null)
+                || (selector != null && SET_SELECTOR == null))
+            throw new IllegalArgumentException("ALPN needs Java 9 or later");
+
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(configuration.getSessionCacheSize());
+        sessions.setSessionTimeout(configuration.getSessionTimeout());
+
+        // Fails now rather than with the first client
+        createEngine();
+
+        final AtomicInteger count = new AtomicInteger();
+        this.handshakes = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "PicoHttp-tls-" + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            // Looked up reflectively so the server still builds and runs on Java 8
+            return type.getMethod(name, parameterTypes);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    SSLEngine createEngine() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+
+        SSLParameters parameters = engine.getSSLParameters();
+        if (protocols != null)
+            parameters.setProtocols(protocols);
+        if (cipherSuites != null) {
+            parameters.setCipherSuites(cipherSuites);
+            parameters.setUseCipherSuitesOrder(true);
+        }
+        if (applicationProtocols != null)
+            invoke(SET_APPLICATION_PROTOCOLS, parameters, (Object) applicationProtocols);
+        engine.setSSLParameters(parameters);
+
+        if (selector != null) {
+            invoke(SET_SELECTOR, engine, new BiFunction<SSLEngine, List<String>, String>() {
+                @Override
+                public String apply(SSLEngine engine, List<String> offered) {
+                    return selector.select(engine, offered);
+                }
+            });
+        }
+
+        return engine;
+    }
+
+    /**
+     * @return the protocol agreed with ALPN, or null if there wasn't one
+     */
+    static String getApplicationProtocol(SSLEngine engine) {
+        if (GET_APPLICATION_PROTOCOL == null)
+            return null;
+
+        String protocol = (String) invoke(GET_APPLICATION_PROTOCOL, engine);
+        return protocol == null || protocol.isEmpty() ? null : protocol;
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Runs a connection's delegated handshake tasks and then
+     * {@code resume}, which should hand the connection back to its event
+     * loop.
+     */
+    void runTasks(final TlsChannel channel, final Runnable resume) {
+        handshakes.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.runTasks();
+                }
+                finally {
+                    resume.run();
+                }
+            }
+        });
+    }
+
+    void shutdown() {
+        handshakes.shutdown();
+    }
+}
@@ -0,0 +1,40 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts a new virtual thread for every task so blocking handlers never wait
+ * for a free worker. Virtual threads need Java 21 or newer.
+ */
+public class VirtualThreadDispatcher extends ExecutorDispatcher {
+    public VirtualThreadDispatcher() throws UnsupportedOperationException {
+        super(newExecutor(), true);
+    }
+
+    private static Executor newExecutor() {
+        try {
+            // Looked up reflectively so the server still builds and runs on older JVMs
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or newer", e);
+        }
+    }
+}
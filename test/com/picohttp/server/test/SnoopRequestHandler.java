@@ -15,8 +15,11 @@
 
 package com.picohttp.server.test;
 
+import java.io.IOException;
 import java.util.Map;
 
+import com.picohttp.server.MultipartParser;
+import com.picohttp.server.Part;
 import com.picohttp.server.Request;
 import com.picohttp.server.RequestHandler;
 import com.picohttp.server.Response;
@@ -56,6 +59,25 @@ public class SnoopRequestHandler implements RequestHandler {
                         .append(parameter.getValue()).append("</div>");
         }
 
+        if (MultipartParser.getBoundary(request.getHeader("Content-Type")) != null) {
+            sb.append("<h2>Parts</h2>");
+
+            MultipartParser parser = null;
+            try {
+                parser = new MultipartParser(request);
+                for (Part part; (part = parser.next()) != null; )
+                    sb.append("<div>").append(escapeHtml(part.toString()))
+                            .append(part.isInMemory() ? "" : " in " + part.getFile()).append("</div>");
+            }
+            catch (IOException e) {
+                sb.append("<div>").append(escapeHtml(e.toString())).append("</div>");
+            }
+            finally {
+                if (parser != null)
+                    parser.close();
+            }
+        }
+
         sb.append("</body></html>");
 
         response.setBody(sb.toString());
@@ -15,10 +15,47 @@
 
 package com.picohttp.server.test;
 
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+
+import com.picohttp.server.Configuration;
+import com.picohttp.server.EngineType;
 import com.picohttp.server.PicoHttp;
+import com.picohttp.server.SimpleRequest;
+import com.picohttp.server.VirtualThreadDispatcher;
 
 public class Test {
-    public static void main(String[] args) {
-        new PicoHttp(new SnoopRequestHandler(), 6580);
+    /**
+     * @param args
+     *            optionally the engine to use, "blocking" (the default) or
+     *            "nio", followed by "virtual" to serve with virtual threads,
+     *            "h2" to serve HTTP/2 too and "tls" to serve HTTPS with the
+     *            key store named by the {@code javax.net.ssl.keyStore} and
+     *            {@code javax.net.ssl.keyStorePassword} system properties
+     */
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        Configuration configuration = new Configuration();
+        if (args.length > 0)
+            configuration.setEngineType(EngineType.valueOf(args[0].toUpperCase()));
+        boolean tls = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("virtual"))
+                configuration.setDispatcher(new VirtualThreadDispatcher());
+            else if (args[i].equals("h2"))
+                configuration.setHttp2Enabled(true);
+            else if (args[i].equals("tls"))
+                tls = true;
+        }
+
+        if (tls) {
+            configuration.setSslContext(SSLContext.getDefault());
+            if (configuration.isHttp2Enabled())
+                configuration.setApplicationProtocols("h2", "http/1.1");
+            else
+                configuration.setApplicationProtocols("http/1.1");
+        }
+
+        new PicoHttp(SimpleRequest.class, new SnoopRequestHandler(), null, 6580, configuration);
     }
 }
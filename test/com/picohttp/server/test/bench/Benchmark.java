@@ -0,0 +1,459 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A small microbenchmark harness in the spirit of JMH's average time mode:
+ * each operation is warmed up, then timed over several fixed length
+ * iterations, and its results are kept where the JIT can't discard them.
+ * <p>
+ * Like JMH's GC profiler it also reports the bytes allocated per operation
+ * and the collections during the measured iterations. The results can be
+ * written as JSON laid out like JMH's, so runs of different releases can be
+ * compared.
+ * <p>
+ * Mains using it take JMH style options:
+ * 
+ * <pre>
+ * -wi &lt;count&gt;    warmup iterations
+ * -i &lt;count&gt;     measured iterations
+ * -r &lt;millis&gt;    length of each iteration
+ * -rff &lt;file&gt;    write the results to a JSON file
+ * &lt;regex&gt;        only run benchmarks whose names contain a match
+ * </pre>
+ */
+public class Benchmark {
+    /**
+     * The code being measured. Return whatever it computes so the work can't
+     * be optimized away.
+     */
+    public interface Operation {
+        public Object run() throws Exception;
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 500;
+    private Pattern filter;
+    private String resultFile;
+    private final List<Result> results = new ArrayList<Result>();
+
+    private Object sink;
+    private volatile Object escape;
+    /** The number of operations run by the last iteration. */
+    private long operations;
+
+    public Benchmark() {
+    }
+
+    /**
+     * @param args
+     *            the options described above
+     */
+    public Benchmark(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-wi"))
+                warmupIterations = Integer.parseInt(args[++i]);
+            else if (arg.equals("-i"))
+                iterations = Integer.parseInt(args[++i]);
+            else if (arg.equals("-r"))
+                iterationMillis = Long.parseLong(args[++i]);
+            else if (arg.equals("-rff"))
+                resultFile = args[++i];
+            else if (arg.startsWith("-"))
+                throw new IllegalArgumentException("Unknown option " + arg);
+            else
+                filter = Pattern.compile(arg);
+        }
+    }
+
+    /**
+     * @return false if the benchmark was filtered out on the command line
+     */
+    public boolean includes(String name) {
+        return filter == null || filter.matcher(name).find();
+    }
+
+    /**
+     * @return the result or null if the benchmark was filtered out
+     */
+    public Result run(String name, Operation operation) throws Exception {
+        if (!includes(name))
+            return null;
+
+        for (int i = 0; i < warmupIterations; i++)
+            iteration(operation);
+
+        double[] nanosPerOp = new double[iterations];
+        long operations = 0;
+        long allocated = allocatedBytes();
+        GcSnapshot gc = new GcSnapshot();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            nanosPerOp[i] = iteration(operation);
+            operations += this.operations;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Result result = new Result(name, "avgt", "ns/op", nanosPerOp);
+        if (allocated >= 0) {
+            allocated = allocatedBytes() - allocated;
+            result.addSecondary("gc.alloc.rate.norm", "B/op", (double) allocated / operations);
+            result.addSecondary("gc.alloc.rate", "MB/sec", allocated / 1048576.0 / (elapsed / 1e9));
+        }
+        gc.addTo(result);
+
+        return add(result);
+    }
+
+    /**
+     * @return the average time per operation in nanoseconds
+     */
+    private double iteration(Operation operation) throws Exception {
+        long deadline = System.nanoTime() + iterationMillis * 1000000L;
+        long operations = 0;
+        long elapsed = 0;
+        int batch = 1;
+
+        while (true) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++)
+                sink = operation.run();
+            long end = System.nanoTime();
+
+            operations += batch;
+            elapsed += end - start;
+            if (end >= deadline)
+                break;
+            if (end - start < 1000000)
+                batch *= 2;
+        }
+
+        escape = sink;
+        this.operations = operations;
+        return (double) elapsed / operations;
+    }
+
+    /**
+     * Records a result measured some other way, such as the throughput of a
+     * server.
+     */
+    public Result add(Result result) {
+        results.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Writes the results to the file given with {@code -rff}, if there was
+     * one.
+     */
+    public void finish() throws IOException {
+        if (resultFile == null)
+            return;
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(resultFile), "UTF-8");
+        try {
+            writeJson(out);
+        }
+        finally {
+            out.close();
+        }
+        System.out.println("Results written to " + resultFile);
+    }
+
+    /**
+     * Writes the results as a JSON array with an entry per benchmark, using
+     * JMH's field names.
+     */
+    public void writeJson(Writer out) throws IOException {
+        String date = String.format(Locale.ENGLISH, "%tFT%<tT%<tz", new Date());
+        out.write("[\n");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            out.write("    {\n");
+            field(out, 2, "benchmark", result.name, true);
+            field(out, 2, "mode", result.mode, true);
+            field(out, 2, "threads", result.threads, true);
+            field(out, 2, "warmupIterations", warmupIterations, true);
+            field(out, 2, "measurementIterations", result.rawData.length, true);
+            field(out, 2, "measurementTime", iterationMillis + " ms", true);
+            field(out, 2, "jdkVersion", System.getProperty("java.version"), true);
+            field(out, 2, "vmName", System.getProperty("java.vm.name"), true);
+            field(out, 2, "vmVersion", System.getProperty("java.vm.version"), true);
+            field(out, 2, "date", date, true);
+            out.write("        \"primaryMetric\" : ");
+            writeMetric(out, result.getScore(), result.getScoreError(), result.unit, result.rawData);
+            out.write(",\n        \"secondaryMetrics\" : {");
+            int s = 0;
+            for (Map.Entry<String, Secondary> entry : result.secondary.entrySet()) {
+                out.write(s++ == 0 ? "\n" : ",\n");
+                out.write("            ");
+                string(out, entry.getKey());
+                out.write(" : ");
+                Secondary secondary = entry.getValue();
+                writeMetric(out, secondary.value, Double.NaN, secondary.unit, new double[] { secondary.value });
+            }
+            out.write(s > 0 ? "\n        }\n" : "}\n");
+            out.write(r < results.size() - 1 ? "    },\n" : "    }\n");
+        }
+        out.write("]\n");
+    }
+
+    private static void writeMetric(Writer out, double score, double error, String unit, double[] rawData)
+            throws IOException {
+        out.write("{ \"score\" : ");
+        number(out, score);
+        out.write(", \"scoreError\" : ");
+        number(out, error);
+        out.write(", \"scoreUnit\" : ");
+        string(out, unit);
+        out.write(", \"rawData\" : [ [ ");
+        for (int i = 0; i < rawData.length; i++) {
+            if (i > 0)
+                out.write(", ");
+            number(out, rawData[i]);
+        }
+        out.write(" ] ] }");
+    }
+
+    private static void field(Writer out, int depth, String name, Object value, boolean more) throws IOException {
+        for (int i = 0; i < depth; i++)
+            out.write("    ");
+        string(out, name);
+        out.write(" : ");
+        if (value instanceof Number)
+            number(out, ((Number) value).doubleValue());
+        else
+            string(out, String.valueOf(value));
+        out.write(more ? ",\n" : "\n");
+    }
+
+    private static void number(Writer out, double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            out.write("\"NaN\"");
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.write(Long.toString((long) value));
+        else
+            out.write(Double.toString(value));
+    }
+
+    private static void string(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                out.write('\\');
+            if (c < ' ')
+                out.write(String.format("\\u%04x", (int) c));
+            else
+                out.write(c);
+        }
+        out.write('"');
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far or -1 if the
+     *         JVM can't tell
+     */
+    static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bytes allocated so far by every live thread or -1 if the
+     *         JVM can't tell. Threads that have ended aren't counted.
+     */
+    static long allocatedBytesAllThreads() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                long total = 0;
+                for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+                    if (bytes > 0)
+                        total += bytes;
+                return total;
+            }
+        }
+        return -1;
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public void setWarmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+    }
+
+    public int getWarmupIterations() {
+        return warmupIterations;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void setIterationMillis(long iterationMillis) {
+        this.iterationMillis = iterationMillis;
+    }
+
+    public long getIterationMillis() {
+        return iterationMillis;
+    }
+
+    /**
+     * The collections made by every collector since it was taken.
+     */
+    static class GcSnapshot {
+        private long count;
+        private long millis;
+
+        GcSnapshot() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count -= Math.max(0, gc.getCollectionCount());
+                millis -= Math.max(0, gc.getCollectionTime());
+            }
+        }
+
+        void addTo(Result result) {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            result.addSecondary("gc.count", "counts", count);
+            result.addSecondary("gc.time", "ms", millis);
+        }
+    }
+
+    private static class Secondary {
+        final String unit;
+        final double value;
+
+        Secondary(String unit, double value) {
+            this.unit = unit;
+            this.value = value;
+        }
+    }
+
+    public static class Result {
+        private final String name;
+        private final String mode;
+        private final String unit;
+        private final double[] rawData;
+        private final Map<String, Secondary> secondary = new LinkedHashMap<String, Secondary>();
+        private int threads = 1;
+
+        /**
+         * @param mode
+         *            "avgt" for the average time of an operation or "thrpt"
+         *            for operations per unit of time
+         * @param rawData
+         *            the score of each measured iteration
+         */
+        public Result(String name, String mode, String unit, double[] rawData) {
+            this.name = name;
+            this.mode = mode;
+            this.unit = unit;
+            this.rawData = rawData;
+        }
+
+        public Result addSecondary(String name, String unit, double value) {
+            secondary.put(name, new Secondary(unit, value));
+            return this;
+        }
+
+        public Result setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the mean of the iterations' scores
+         */
+        public double getScore() {
+            double sum = 0;
+            for (double n : rawData)
+                sum += n;
+            return sum / rawData.length;
+        }
+
+        /**
+         * @return the standard deviation of the iterations' scores
+         */
+        public double getScoreError() {
+            double mean = getScore(), sum = 0;
+            for (double n : rawData)
+                sum += (n - mean) * (n - mean);
+            return rawData.length > 1 ? Math.sqrt(sum / (rawData.length - 1)) : 0;
+        }
+
+        /**
+         * @return the value of a secondary metric or NaN if there isn't one
+         */
+        public double getSecondary(String name) {
+            Secondary value = secondary.get(name);
+            return value != null ? value.value : Double.NaN;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(Locale.ENGLISH, "%-40s %12.1f +/- %8.1f %s", name,
+                    getScore(), getScoreError(), unit));
+            if (mode.equals("avgt"))
+                sb.append(String.format(Locale.ENGLISH, " %14.0f ops/s", 1e9 / getScore()));
+            for (Map.Entry<String, Secondary> entry : secondary.entrySet()) {
+                if (entry.getKey().startsWith("gc.") && !entry.getKey().equals("gc.alloc.rate.norm"))
+                    continue;
+                sb.append(String.format(Locale.ENGLISH, "  %s %.1f %s", entry.getKey(), entry.getValue().value,
+                        entry.getValue().unit));
+            }
+            return sb.toString();
+        }
+    }
+}
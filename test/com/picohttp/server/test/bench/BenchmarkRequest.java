@@ -0,0 +1,137 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.picohttp.server.Converters;
+import com.picohttp.server.Request;
+
+/**
+ * A request without a connection for benchmarking handlers.
+ */
+public class BenchmarkRequest implements Request {
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private Map<String, String> pathParameters = Collections.emptyMap();
+
+    public BenchmarkRequest(String method, String path) {
+        this.method = method;
+        this.path = path;
+    }
+
+    public BenchmarkRequest setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    @Override
+    public Socket getSocket() {
+        return null;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getUri() {
+        return path;
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getQueryString() {
+        return null;
+    }
+
+    @Override
+    public String getHostname() {
+        return "localhost";
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public <T> T getHeader(String name, Class<T> target) {
+        return Converters.convert(getHeader(name), target);
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public InputStream getBodyStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public String getBody() {
+        return "";
+    }
+
+    @Override
+    public String getParameter(String name) {
+        return null;
+    }
+
+    @Override
+    public <T> T getParameter(String name, Class<T> target) {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getPathParameter(String name) {
+        return pathParameters.get(name);
+    }
+
+    @Override
+    public <T> T getPathParameter(String name, Class<T> target) {
+        return Converters.convert(getPathParameter(name), target);
+    }
+
+    @Override
+    public Map<String, String> getPathParameters() {
+        return pathParameters;
+    }
+}
@@ -0,0 +1,44 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.bench;
+
+/**
+ * Runs every benchmark, for checking a release before it goes out. For
+ * example
+ * 
+ * <pre>
+ * java com.picohttp.server.test.bench.BenchmarkSuite -rff results-1.4.json
+ * </pre>
+ * 
+ * writes results that can be compared with those of earlier releases.
+ * 
+ * @see Benchmark
+ */
+public class BenchmarkSuite {
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark(args);
+        ParserBenchmark.run(benchmark);
+        ResponseBenchmark.run(benchmark);
+        ConversionBenchmark.run(benchmark);
+        RouterBenchmark.run(benchmark);
+        LoopbackBenchmark.run(benchmark);
+        benchmark.finish();
+
+        // The servers' threads would otherwise keep the JVM running
+        System.exit(0);
+    }
+}
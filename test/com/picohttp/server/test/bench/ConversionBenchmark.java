@@ -0,0 +1,143 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.bench;
+
+import java.lang.reflect.Constructor;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.picohttp.server.Converters;
+import com.picohttp.server.Request;
+import com.picohttp.server.SimpleRequest;
+
+/**
+ * Compares the converter registry with the reflective conversion requests
+ * used to do for every typed header and parameter.
+ */
+public class ConversionBenchmark {
+    private static final DateFormat[] HTTP_HEADER_DATE_FORMATS = {
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z"),
+            new SimpleDateFormat("EEEE, dd-MMM-yy HH:mm:ss z"),
+            new SimpleDateFormat("EEE MMM HH:mm:ss yyyy"),
+    };
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark(args);
+        run(benchmark);
+        benchmark.finish();
+    }
+
+    public static void run(Benchmark benchmark) throws Exception {
+
+        benchmark.run("reflective Integer", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return reflective("8192", Integer.class);
+            }
+        });
+        benchmark.run("registry Integer", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return Converters.convert("8192", Integer.class);
+            }
+        });
+
+        benchmark.run("reflective Long", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return reflective("1048576", Long.class);
+            }
+        });
+        benchmark.run("registry Long", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return Converters.convert("1048576", Long.class);
+            }
+        });
+
+        benchmark.run("reflective Date", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return reflective("Sun, 06 Nov 1994 08:49:37 GMT", Date.class);
+            }
+        });
+        benchmark.run("registry Date", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return Converters.convert("Sun, 06 Nov 1994 08:49:37 GMT", Date.class);
+            }
+        });
+        benchmark.run("registry Instant", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return Converters.convert("Sun, 06 Nov 1994 08:49:37 GMT", Instant.class);
+            }
+        });
+
+        benchmark.run("registry enum", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return Converters.convert("seconds", TimeUnit.class);
+            }
+        });
+
+        // Through a parsed request, as handlers do
+        final Request request = new ParserBenchmark.Parser(SimpleRequest.class, ParserBenchmark.BROWSER).next();
+        benchmark.run("cooerce header Date", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return request.getHeader("If-Modified-Since", Date.class);
+            }
+        });
+        benchmark.run("cooerce parameter Integer", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return request.getParameter("page", Integer.class);
+            }
+        });
+    }
+
+    /**
+     * The conversion as it was: shared date formats tried in turn and a
+     * constructor looked up for every value.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T reflective(String value, Class<T> target) {
+        if (target == Date.class) {
+            for (DateFormat format : HTTP_HEADER_DATE_FORMATS) {
+                try {
+                    return (T) format.parse(value);
+                }
+                catch (ParseException e) {
+                }
+            }
+            return null;
+        }
+
+        try {
+            Constructor<T> constructor = target.getConstructor(String.class);
+            return constructor.newInstance(value);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
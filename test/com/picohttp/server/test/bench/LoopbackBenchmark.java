@@ -0,0 +1,288 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.picohttp.server.AsyncRequestHandler;
+import com.picohttp.server.Configuration;
+import com.picohttp.server.EngineType;
+import com.picohttp.server.FastRequest;
+import com.picohttp.server.Histogram;
+import com.picohttp.server.PicoHttp;
+import com.picohttp.server.Request;
+import com.picohttp.server.RequestHandler;
+import com.picohttp.server.Response;
+import com.picohttp.server.SimpleResponse;
+import com.picohttp.server.VirtualThreadDispatcher;
+
+/**
+ * Measures requests per second and latency over loopback for each engine and
+ * way of dispatching requests, with a fixed number of keep-alive connections
+ * each sending a request as soon as the previous response has arrived.
+ * <p>
+ * Allocation is that of every thread in the JVM, clients included, divided by
+ * the number of requests.
+ */
+public class LoopbackBenchmark {
+    private static final int CONNECTIONS = 16;
+    private static final int PORT = 6590;
+    private static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final RequestHandler HELLO = new RequestHandler() {
+        @Override
+        public Response execute(Request request) {
+            SimpleResponse response = new SimpleResponse();
+            response.setHeader("Content-Type", "text/plain");
+            response.setBody("Hello, World!");
+            return response;
+        }
+    };
+
+    private static final AsyncRequestHandler ASYNC_HELLO = new AsyncRequestHandler() {
+        @Override
+        public CompletionStage<Response> execute(Request request) {
+            return CompletableFuture.completedFuture(HELLO.execute(request));
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark(args);
+        run(benchmark);
+        benchmark.finish();
+    }
+
+    public static void run(Benchmark benchmark) throws Exception {
+        int port = PORT;
+        for (EngineType engine : EngineType.values()) {
+            for (String mode : new String[] { "pool", "virtual", "async" }) {
+                String name = "loopback " + engine.name().toLowerCase() + " " + mode;
+                if (!benchmark.includes(name))
+                    continue;
+
+                Configuration configuration = new Configuration();
+                configuration.setEngineType(engine);
+                configuration.setMaxThreads(CONNECTIONS + 4);
+                if (mode.equals("virtual")) {
+                    try {
+                        configuration.setDispatcher(new VirtualThreadDispatcher());
+                    }
+                    catch (UnsupportedOperationException e) {
+                        System.out.println(name + " skipped, virtual threads aren't available");
+                        continue;
+                    }
+                }
+
+                PicoHttp server = mode.equals("async")
+                        ? new PicoHttp(FastRequest.class, ASYNC_HELLO, null, port, configuration)
+                        : new PicoHttp(FastRequest.class, HELLO, null, port, configuration);
+                try {
+                    benchmark.add(measure(benchmark, name, port));
+                }
+                finally {
+                    server.stop();
+                }
+                port++;
+            }
+        }
+    }
+
+    private static Benchmark.Result measure(Benchmark benchmark, String name, int port) throws Exception {
+        Client[] clients = new Client[CONNECTIONS];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Client(port);
+            clients[i].start();
+        }
+
+        try {
+            for (int i = 0; i < benchmark.getWarmupIterations(); i++)
+                iteration(benchmark, clients);
+
+            Client.LATENCY.reset();
+            Client.measuring = true;
+            long allocated = Benchmark.allocatedBytesAllThreads();
+            Benchmark.GcSnapshot gc = new Benchmark.GcSnapshot();
+            double[] rates = new double[benchmark.getIterations()];
+            long requests = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < rates.length; i++) {
+                long count = iteration(benchmark, clients);
+                requests += count;
+                rates[i] = count / (benchmark.getIterationMillis() / 1000.0);
+            }
+            long elapsed = System.nanoTime() - start;
+            Client.measuring = false;
+
+            Benchmark.Result result = new Benchmark.Result(name, "thrpt", "ops/s", rates).setThreads(CONNECTIONS);
+            result.addSecondary("latency.p50", "us", Client.LATENCY.getValueAtPercentile(50) / 1000.0);
+            result.addSecondary("latency.p90", "us", Client.LATENCY.getValueAtPercentile(90) / 1000.0);
+            result.addSecondary("latency.p99", "us", Client.LATENCY.getValueAtPercentile(99) / 1000.0);
+            result.addSecondary("latency.p99.9", "us", Client.LATENCY.getValueAtPercentile(99.9) / 1000.0);
+            result.addSecondary("latency.max", "us", Client.LATENCY.getMax() / 1000.0);
+            if (allocated >= 0) {
+                allocated = Benchmark.allocatedBytesAllThreads() - allocated;
+                result.addSecondary("gc.alloc.rate.norm", "B/op", (double) allocated / requests);
+                result.addSecondary("gc.alloc.rate", "MB/sec", allocated / 1048576.0 / (elapsed / 1e9));
+            }
+            gc.addTo(result);
+
+            long errors = 0;
+            for (Client client : clients)
+                errors += client.errors;
+            if (errors > 0)
+                result.addSecondary("errors", "counts", errors);
+            return result;
+        }
+        finally {
+            for (Client client : clients)
+                client.finish();
+        }
+    }
+
+    /**
+     * @return the number of requests completed during the iteration
+     */
+    private static long iteration(Benchmark benchmark, Client[] clients) throws InterruptedException {
+        long before = 0;
+        for (Client client : clients)
+            before += client.completed.sum();
+
+        Thread.sleep(benchmark.getIterationMillis());
+
+        long after = 0;
+        for (Client client : clients)
+            after += client.completed.sum();
+        return after - before;
+    }
+
+    /**
+     * A keep-alive connection sending one request at a time.
+     */
+    private static class Client extends Thread {
+        static final Histogram LATENCY = new Histogram("latency", null);
+        static volatile boolean measuring;
+
+        private final int port;
+        private final LongAdder completed = new LongAdder();
+        private volatile boolean running = true;
+        private volatile long errors;
+        private Socket socket;
+
+        Client(int port) {
+            super("LoopbackBenchmark-client");
+            this.port = port;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+
+                    boolean keepAlive = true;
+                    while (running && keepAlive) {
+                        long start = System.nanoTime();
+                        out.write(REQUEST);
+                        out.flush();
+                        keepAlive = readResponse(in);
+                        if (measuring)
+                            LATENCY.record(System.nanoTime() - start);
+                        completed.increment();
+                    }
+                }
+                catch (IOException e) {
+                    if (running)
+                        errors++;
+                }
+                finally {
+                    close();
+                }
+            }
+        }
+
+        void finish() throws InterruptedException {
+            running = false;
+            close();
+            join();
+        }
+
+        private void close() {
+            try {
+                if (socket != null)
+                    socket.close();
+            }
+            catch (IOException e) {
+            }
+        }
+
+        /**
+         * Reads a response delimited by its Content-Length.
+         * 
+         * @return false if the server is closing the connection
+         */
+        private static boolean readResponse(InputStream in) throws IOException {
+            long contentLength = 0;
+            boolean keepAlive = true;
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                int b = in.read();
+                if (b == -1)
+                    throw new EOFException();
+                if (b != '\n') {
+                    if (b != '\r')
+                        line.append((char) b);
+                    continue;
+                }
+
+                if (line.length() == 0)
+                    break;
+                if (line.length() > 15 && line.substring(0, 15).equalsIgnoreCase("Content-Length:"))
+                    contentLength = Long.parseLong(line.substring(15).trim());
+                else if (line.toString().equalsIgnoreCase("Connection: close"))
+                    keepAlive = false;
+                line.setLength(0);
+            }
+
+            while (contentLength > 0) {
+                long skipped = in.skip(contentLength);
+                if (skipped <= 0) {
+                    if (in.read() == -1)
+                        throw new EOFException();
+                    skipped = 1;
+                }
+                contentLength -= skipped;
+            }
+
+            return keepAlive;
+        }
+    }
+}
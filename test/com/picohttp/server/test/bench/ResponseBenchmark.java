@@ -0,0 +1,108 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.picohttp.server.AbstractResponse;
+import com.picohttp.server.Request;
+import com.picohttp.server.SimpleResponse;
+import com.picohttp.server.StreamingResponse;
+
+/**
+ * Measures building and serializing responses of typical sizes, from the
+ * handler creating the response to its bytes reaching the output stream.
+ */
+public class ResponseBenchmark {
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark(args);
+        run(benchmark);
+        benchmark.finish();
+    }
+
+    public static void run(Benchmark benchmark) throws Exception {
+        final ParserBenchmark.NullOutputStream out = new ParserBenchmark.NullOutputStream();
+        final Request get = new BenchmarkRequest("GET", "/").setHeader("Host", "localhost");
+        final Request head = new BenchmarkRequest("HEAD", "/").setHeader("Host", "localhost");
+
+        final byte[] json = new byte[2048];
+        Arrays.fill(json, (byte) 'x');
+        final byte[] large = new byte[64 * 1024];
+
+        benchmark.run("write SimpleResponse text", new Benchmark.Operation() {
+            @Override
+            public Object run() throws Exception {
+                SimpleResponse response = new SimpleResponse();
+                response.setHeader("Content-Type", "text/plain; charset=utf-8");
+                response.setBody("Hello, World!");
+                return write(response, get, out);
+            }
+        });
+        benchmark.run("write SimpleResponse 2K json", new Benchmark.Operation() {
+            @Override
+            public Object run() throws Exception {
+                SimpleResponse response = new SimpleResponse();
+                response.setHeader("Content-Type", "application/json");
+                response.setHeader("Cache-Control", "no-cache");
+                response.setHeader("ETag", "\"5d8c72a5edda8d6a\"");
+                response.setBody(json);
+                return write(response, get, out);
+            }
+        });
+        benchmark.run("write SimpleResponse 64K", new Benchmark.Operation() {
+            @Override
+            public Object run() throws Exception {
+                SimpleResponse response = new SimpleResponse();
+                response.setHeader("Content-Type", "application/octet-stream");
+                response.setBody(large);
+                return write(response, get, out);
+            }
+        });
+        benchmark.run("write SimpleResponse HEAD", new Benchmark.Operation() {
+            @Override
+            public Object run() throws Exception {
+                SimpleResponse response = new SimpleResponse();
+                response.setHeader("Content-Type", "application/octet-stream");
+                response.setBody(large);
+                return write(response, head, out);
+            }
+        });
+        benchmark.run("write StreamingResponse chunked 16K", new Benchmark.Operation() {
+            @Override
+            public Object run() throws Exception {
+                StreamingResponse response = new StreamingResponse(new StreamingResponse.BodyWriter() {
+                    @Override
+                    public void writeBody(OutputStream body) throws IOException {
+                        for (int i = 0; i < 8; i++)
+                            body.write(json);
+                    }
+                });
+                response.setHeader("Content-Type", "application/json");
+                return write(response, get, out);
+            }
+        });
+    }
+
+    private static long write(AbstractResponse response, Request request, ParserBenchmark.NullOutputStream out)
+            throws IOException {
+        response.prepare(request, true);
+        response.write(out);
+        return out.count;
+    }
+}
@@ -0,0 +1,76 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.bench;
+
+import com.picohttp.server.Request;
+import com.picohttp.server.RequestHandler;
+import com.picohttp.server.Response;
+import com.picohttp.server.Router;
+import com.picohttp.server.SimpleResponse;
+
+/**
+ * Measures route lookup as the number of routes grows, against the chain of
+ * startsWith checks applications would otherwise write.
+ */
+public class RouterBenchmark {
+    private static final SimpleResponse OK = new SimpleResponse();
+
+    private static final RequestHandler HANDLER = new RequestHandler() {
+        @Override
+        public Response execute(Request request) {
+            return OK;
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark(args);
+        run(benchmark);
+        benchmark.finish();
+    }
+
+    public static void run(Benchmark benchmark) throws Exception {
+
+        for (final int routes : new int[] { 10, 300, 3000 }) {
+            final Router router = new Router();
+            final String[] prefixes = new String[routes];
+            for (int i = 0; i < routes; i++) {
+                router.get("/api/v1/resource" + i + "/{id}/items", HANDLER);
+                prefixes[i] = "/api/v1/resource" + i + "/";
+            }
+
+            // The last route added, the worst case for a chain of checks
+            final Request request = new BenchmarkRequest("GET", "/api/v1/resource" + (routes - 1) + "/1234/items");
+
+            benchmark.run("router " + routes + " routes", new Benchmark.Operation() {
+                @Override
+                public Object run() {
+                    return router.execute(request);
+                }
+            });
+            benchmark.run("startsWith chain " + routes + " routes", new Benchmark.Operation() {
+                @Override
+                public Object run() {
+                    String path = request.getPath();
+                    for (String prefix : prefixes)
+                        if (path.startsWith(prefix))
+                            return HANDLER.execute(request);
+                    return null;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.load;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import com.picohttp.server.Configuration;
+import com.picohttp.server.EngineType;
+import com.picohttp.server.PicoHttp;
+import com.picohttp.server.SimpleRequest;
+import com.picohttp.server.test.SnoopRequestHandler;
+
+/**
+ * Drives a running server with the requests of a {@link Scenario} and reports
+ * throughput, latency percentiles and errors.
+ * <p>
+ * With a rate it's an open loop: requests are due at fixed intervals whether
+ * or not earlier ones have been answered, and each one's latency is measured
+ * from when it was due rather than when a connection was free to send it, so
+ * a server that stalls is charged for every request it held up. Without a
+ * rate each connection sends its next request as soon as it has the last
+ * response, a closed loop measuring the most the server can do.
+ * <p>
+ * An {@code https} target is sent requests over TLS, trusting whatever
+ * certificate it has. Connections reopened resume the TLS session where the
+ * server allows it, like a browser's would.
+ * 
+ * <pre>
+ * java com.picohttp.server.test.load.LoadGenerator [-serve blocking|nio] [scenario file] [directive=value]...
+ * </pre>
+ * 
+ * Directives given as arguments, like {@code rate=5000} or
+ * {@code "request=1 GET /"}, are applied after the file. {@code -serve}
+ * starts a server with the {@link SnoopRequestHandler} at the target's port
+ * first, serving TLS with the key store named by the
+ * {@code javax.net.ssl.keyStore} system properties if the target is
+ * {@code https}. It exits with 1 if any request failed.
+ */
+public class LoadGenerator {
+    private final Scenario scenario;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final SSLSocketFactory tls;
+    private PrintStream progress;
+
+    public LoadGenerator(Scenario scenario) {
+        if (scenario.getRequests().isEmpty())
+            throw new IllegalArgumentException("The scenario has no requests");
+        this.scenario = scenario;
+        this.tls = scenario.isTls() ? trustingEverything() : null;
+    }
+
+    /**
+     * @return sockets that accept any certificate, for servers under test
+     *         with self-signed ones
+     */
+    private static SSLSocketFactory trustingEverything() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[] { new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            } }, null);
+            return context.getSocketFactory();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param progress
+     *            where to print the request rate every second, or null
+     */
+    public void setProgress(PrintStream progress) {
+        this.progress = progress;
+    }
+
+    public Report run() throws InterruptedException {
+        Report report = new Report(scenario);
+
+        long start = System.nanoTime();
+        long measureFrom = start + scenario.getWarmup() * 1000000000L;
+        long end = measureFrom + scenario.getDuration() * 1000000000L;
+        AtomicLong slots = new AtomicLong();
+
+        Worker[] workers = new Worker[scenario.getConnections()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, report, slots, start, measureFrom, end);
+            workers[i].start();
+        }
+
+        long lastCompleted = 0, lastFailed = 0;
+        for (int second = 1; System.nanoTime() < end; second++) {
+            long wake = start + second * 1000000000L;
+            while (System.nanoTime() < wake)
+                Thread.sleep(Math.max(1, (wake - System.nanoTime()) / 1000000));
+
+            if (progress != null) {
+                long completed = this.completed.sum(), failed = this.failed.sum();
+                progress.printf(Locale.ENGLISH, "%4ds %s %8d req/s %6d errors%n", second,
+                        wake <= measureFrom ? "warmup " : "       ", completed - lastCompleted, failed - lastFailed);
+                lastCompleted = completed;
+                lastFailed = failed;
+            }
+        }
+
+        for (Worker worker : workers)
+            worker.join();
+
+        report.setNanos(end - measureFrom);
+        return report;
+    }
+
+    /**
+     * One connection, reopened whenever the server closes it.
+     */
+    private class Worker extends Thread {
+        private final Report report;
+        private final AtomicLong slots;
+        private final long start, measureFrom, end;
+        private final long interval;
+        private final Random random;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        Worker(int id, Report report, AtomicLong slots, long start, long measureFrom, long end) {
+            super("LoadGenerator-" + id);
+            setDaemon(true);
+            this.report = report;
+            this.slots = slots;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.interval = scenario.getRate() > 0 ? (long) (1e9 / scenario.getRate()) : 0;
+            this.random = new Random(id);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long due;
+                if (interval > 0) {
+                    // The next request due, whichever connection gets to it
+                    due = start + slots.getAndIncrement() * interval;
+                    if (due >= end)
+                        break;
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(wait);
+                }
+                else {
+                    due = System.nanoTime();
+                    if (due >= end)
+                        break;
+                }
+
+                Scenario.RequestSpec request = scenario.pick(random);
+                boolean measured = due >= measureFrom;
+                try {
+                    send(request, due, measured);
+                    completed.increment();
+                }
+                catch (IOException e) {
+                    failed.increment();
+                    if (measured)
+                        report.error(kind(e));
+                    close();
+
+                    // Don't spin while the server is refusing connections
+                    if (e instanceof ConnectException && interval == 0)
+                        LockSupport.parkNanos(10000000);
+                }
+            }
+
+            close();
+        }
+
+        private void send(Scenario.RequestSpec request, long due, boolean measured) throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(scenario.getHost(), scenario.getPort()), scenario.getTimeout());
+                socket.setSoTimeout(scenario.getTimeout());
+                if (tls != null) {
+                    socket = tls.createSocket(socket, scenario.getHost(), scenario.getPort(), true);
+                    ((SSLSocket) socket).startHandshake();
+                }
+                in = new BufferedInputStream(socket.getInputStream(), 16384);
+                out = socket.getOutputStream();
+                if (measured)
+                    report.connected();
+            }
+
+            byte[] bytes = request.getBytes(scenario);
+            out.write(bytes);
+            out.flush();
+
+            Response response = readResponse(in, request.getMethod().equals("HEAD"));
+            if (measured)
+                report.response(response.statusCode, System.nanoTime() - due, bytes.length, response.bytes);
+
+            if (!response.keepAlive || !scenario.isKeepAlive())
+                close();
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                }
+                socket = null;
+            }
+        }
+    }
+
+    private static String kind(IOException e) {
+        if (e instanceof SocketTimeoutException)
+            return "timeout";
+        if (e instanceof ConnectException)
+            return "connect";
+        if (e instanceof EOFException)
+            return "closed";
+        return e.getClass().getSimpleName();
+    }
+
+    private static class Response {
+        int statusCode;
+        boolean keepAlive = true;
+        long bytes;
+    }
+
+    /**
+     * Reads a response, finding the end of its body by Content-Length, the
+     * last chunk or the connection closing.
+     */
+    static Response readResponse(InputStream in, boolean head) throws IOException {
+        Response response = new Response();
+        StringBuilder line = new StringBuilder();
+
+        readLine(in, line, response);
+        String statusLine = line.toString();
+        if (!statusLine.startsWith("HTTP/") || statusLine.length() < 12)
+            throw new IOException("Malformed status line: " + statusLine);
+        response.statusCode = Integer.parseInt(statusLine.substring(9, 12));
+        response.keepAlive = statusLine.startsWith("HTTP/1.1");
+
+        long contentLength = -1;
+        boolean chunked = false;
+        while (readLine(in, line, response) > 0) {
+            int colon = line.indexOf(":");
+            if (colon < 0)
+                continue;
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length"))
+                contentLength = Long.parseLong(value);
+            else if (name.equalsIgnoreCase("Transfer-Encoding"))
+                chunked = value.toLowerCase().contains("chunked");
+            else if (name.equalsIgnoreCase("Connection"))
+                response.keepAlive = value.equalsIgnoreCase("keep-alive")
+                        || (response.keepAlive && !value.equalsIgnoreCase("close"));
+        }
+
+        int status = response.statusCode;
+        if (head || status < 200 || status == 204 || status == 304)
+            return response;
+
+        if (chunked) {
+            while (true) {
+                readLine(in, line, response);
+                int semicolon = line.indexOf(";");
+                long size = Long.parseLong((semicolon >= 0 ? line.substring(0, semicolon) : line.toString()).trim(), 16);
+                if (size == 0)
+                    break;
+                skip(in, size, response);
+                readLine(in, line, response);
+            }
+            // Trailers
+            while (readLine(in, line, response) > 0)
+                ;
+        }
+        else if (contentLength >= 0)
+            skip(in, contentLength, response);
+        else {
+            // The body ends with the connection
+            while (in.read() != -1)
+                response.bytes++;
+            response.keepAlive = false;
+        }
+
+        return response;
+    }
+
+    /**
+     * @return the length of the line, without its terminator
+     */
+    private static int readLine(InputStream in, StringBuilder line, Response response) throws IOException {
+        line.setLength(0);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                throw new EOFException("Connection closed before the response ended");
+            if (b != '\r')
+                line.append((char) b);
+        }
+        response.bytes += line.length() + 2;
+        return line.length();
+    }
+
+    private static void skip(InputStream in, long count, Response response) throws IOException {
+        response.bytes += count;
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1)
+                    throw new EOFException("Connection closed before the response ended");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Scenario scenario = new Scenario();
+        String serve = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-serve"))
+                serve = args[++i];
+            else if (arg.indexOf('=') > 0)
+                scenario.apply(new StringReader(arg.replaceFirst("=", " ")));
+            else {
+                Reader reader = new FileReader(arg);
+                try {
+                    scenario.apply(reader);
+                }
+                finally {
+                    reader.close();
+                }
+            }
+        }
+        if (scenario.getRequests().isEmpty())
+            scenario.add(new Scenario.RequestSpec(1, "GET", "/", 0));
+
+        if (serve != null) {
+            Configuration configuration = new Configuration();
+            configuration.setEngineType(EngineType.valueOf(serve.toUpperCase()));
+            configuration.setMaxThreads(Math.max(configuration.getMaxThreads(), scenario.getConnections() + 4));
+            // With the key store named by the javax.net.ssl.keyStore system properties
+            if (scenario.isTls())
+                configuration.setSslContext(SSLContext.getDefault());
+            new PicoHttp(SimpleRequest.class, new SnoopRequestHandler(), null, scenario.getPort(), configuration);
+        }
+
+        LoadGenerator generator = new LoadGenerator(scenario);
+        generator.setProgress(System.out);
+        Report report = generator.run();
+        System.out.println();
+        report.print(System.out);
+
+        System.exit(report.getErrorCount() > 0 ? 1 : 0);
+    }
+}
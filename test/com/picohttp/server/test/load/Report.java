@@ -0,0 +1,153 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.load;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.picohttp.server.Histogram;
+
+/**
+ * What a {@link LoadGenerator} measured. Everything is recorded concurrently
+ * by the connections and only counts once the warmup is over.
+ */
+public class Report {
+    private final Scenario scenario;
+    private final Histogram latency = new Histogram("latency", null);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final AtomicLongArray statusCodes = new AtomicLongArray(600);
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+    private volatile long nanos;
+
+    Report(Scenario scenario) {
+        this.scenario = scenario;
+    }
+
+    void response(int statusCode, long latencyNanos, long sent, long received) {
+        requests.increment();
+        latency.record(latencyNanos);
+        bytesOut.add(sent);
+        bytesIn.add(received);
+        statusCodes.incrementAndGet(statusCode > 0 && statusCode < 600 ? statusCode : 0);
+    }
+
+    void error(String kind) {
+        LongAdder count = errors.get(kind);
+        if (count == null) {
+            errors.putIfAbsent(kind, new LongAdder());
+            count = errors.get(kind);
+        }
+        count.increment();
+    }
+
+    void connected() {
+        connects.increment();
+    }
+
+    void setNanos(long nanos) {
+        this.nanos = nanos;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return responses per second over the measured time
+     */
+    public double getThroughput() {
+        return nanos > 0 ? getRequests() / (nanos / 1e9) : 0;
+    }
+
+    /**
+     * @return the latencies of successful responses in nanoseconds. In an
+     *         open loop they're measured from when the request should have
+     *         been sent, so a stalled server isn't flattered by the requests
+     *         it held up.
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the number of requests that failed without a response, by
+     *         what went wrong
+     */
+    public Map<String, Long> getErrors() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> error : errors.entrySet())
+            counts.put(error.getKey(), error.getValue().sum());
+        return counts;
+    }
+
+    public long getErrorCount() {
+        long count = 0;
+        for (LongAdder error : errors.values())
+            count += error.sum();
+        return count;
+    }
+
+    /**
+     * @return the number of responses with a status code
+     */
+    public long getResponses(int statusCode) {
+        return statusCode >= 0 && statusCode < 600 ? statusCodes.get(statusCode) : 0;
+    }
+
+    public void print(PrintStream out) {
+        double seconds = nanos / 1e9;
+        String loop = scenario.getRate() > 0
+                ? String.format(Locale.ENGLISH, "open loop at %.0f req/s", scenario.getRate()) : "closed loop";
+        out.printf(Locale.ENGLISH, "Target       %s:%d%n", scenario.getHost(), scenario.getPort());
+        out.printf(Locale.ENGLISH, "Load         %s over %d %s connections%n", loop, scenario.getConnections(),
+                scenario.isKeepAlive() ? "keep-alive" : "single use");
+        out.printf(Locale.ENGLISH, "Measured     %.1f s after %d s warmup, %d connections opened%n", seconds,
+                scenario.getWarmup(), connects.sum());
+        out.printf(Locale.ENGLISH, "Requests     %d, %.1f req/s%n", getRequests(), getThroughput());
+        out.printf(Locale.ENGLISH, "Transfer     %.2f MB in, %.2f MB out%n", bytesIn.sum() / 1048576.0,
+                bytesOut.sum() / 1048576.0);
+
+        StringBuilder codes = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            long count = statusCodes.get(i);
+            if (count > 0)
+                codes.append(codes.length() > 0 ? ", " : "").append(i == 0 ? "unparsed" : i).append(": ").append(count);
+        }
+        out.printf("Status       %s%n", codes.length() > 0 ? codes : "none");
+
+        Map<String, Long> errors = getErrors();
+        out.printf("Errors       %s%n", errors.isEmpty() ? "none" : errors.toString());
+
+        out.printf(Locale.ENGLISH, "Latency ms   p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  p99.99 %.3f  max %.3f%n",
+                millis(50), millis(90), millis(99), millis(99.9), millis(99.99), latency.getMax() / 1e6);
+
+        if (scenario.getRate() > 0 && getThroughput() < scenario.getRate() * 0.95)
+            out.printf("The target rate wasn't reached, the server or the number of connections is the limit%n");
+    }
+
+    private double millis(double percentile) {
+        return latency.getValueAtPercentile(percentile) / 1e6;
+    }
+}
@@ -0,0 +1,359 @@
+/* Copyright 2012 Aaron Porter aaron@mongus.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.picohttp.server.test.load;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * What a {@link LoadGenerator} sends, where and how fast. Scenarios can be
+ * built in code or read from a script with one directive per line:
+ * 
+ * <pre>
+ * # Comments start with a hash
+ * target localhost:6580   # or https://localhost:6443/ for TLS, trusting any certificate
+ * rate 2000            # requests per second, an open loop; leave out for a closed loop
+ * connections 32       # how many requests can be in flight at once
+ * duration 30          # seconds measured
+ * warmup 5             # seconds run before measuring
+ * keepalive on         # or off to open a connection for every request
+ * timeout 5000         # milliseconds to wait for a response
+ * request 70 GET /hello
+ * request 25 POST /orders body=2k header=Content-Type:application/json
+ * request 5 PUT /upload body=1m
+ * </pre>
+ * 
+ * Each request is sent with a probability proportional to its weight, the
+ * number after {@code request}. Body sizes may end with k or m.
+ */
+public class Scenario {
+    private String host = "localhost";
+    private int port = 6580;
+    private boolean tls;
+    private double rate;
+    private int connections = 16;
+    private int duration = 10;
+    private int warmup = 2;
+    private boolean keepAlive = true;
+    private int timeout = 5000;
+    private final List<RequestSpec> requests = new ArrayList<RequestSpec>();
+    private int totalWeight;
+
+    /**
+     * A request in the scenario's mix, serialized once.
+     */
+    public static class RequestSpec {
+        private final int weight;
+        private final String method;
+        private final String path;
+        private final int bodySize;
+        private final List<String> headers;
+        private byte[] bytes;
+
+        public RequestSpec(int weight, String method, String path, int bodySize, String... headers) {
+            if (weight <= 0)
+                throw new IllegalArgumentException("The weight of " + method + " " + path + " must be positive");
+            this.weight = weight;
+            this.method = method;
+            this.path = path;
+            this.bodySize = bodySize;
+            this.headers = Arrays.asList(headers);
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getBodySize() {
+            return bodySize;
+        }
+
+        /**
+         * @return the whole request, head and body, ready to be written
+         */
+        byte[] getBytes(Scenario scenario) {
+            if (bytes == null) {
+                StringBuilder head = new StringBuilder();
+                head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+                head.append("Host: ").append(scenario.host).append(':').append(scenario.port).append("\r\n");
+                head.append("User-Agent: PicoHttp-LoadGenerator\r\n");
+                for (String header : headers)
+                    head.append(header).append("\r\n");
+                if (bodySize > 0 || method.equals("POST") || method.equals("PUT"))
+                    head.append("Content-Length: ").append(bodySize).append("\r\n");
+                if (!scenario.keepAlive)
+                    head.append("Connection: close\r\n");
+                head.append("\r\n");
+
+                byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+                byte[] bytes = Arrays.copyOf(headBytes, headBytes.length + bodySize);
+                // Printable filler so the body also works as a form or text upload
+                Random random = new Random(bodySize);
+                for (int i = headBytes.length; i < bytes.length; i++)
+                    bytes[i] = (byte) ('a' + random.nextInt(26));
+                this.bytes = bytes;
+            }
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return weight + " " + method + " " + path + (bodySize > 0 ? " body=" + bodySize : "");
+        }
+    }
+
+    public static Scenario parse(String script) throws IOException {
+        return parse(new StringReader(script));
+    }
+
+    /**
+     * Reads a script of the directives described above.
+     * 
+     * @throws IllegalArgumentException
+     *             if a line can't be understood
+     */
+    public static Scenario parse(Reader script) throws IOException {
+        Scenario scenario = new Scenario();
+        scenario.apply(script);
+        return scenario;
+    }
+
+    /**
+     * Applies more directives, replacing settings already made and adding
+     * requests to the mix.
+     */
+    public Scenario apply(Reader script) throws IOException {
+        BufferedReader reader = new BufferedReader(script);
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty())
+                continue;
+
+            try {
+                directive(line.split("\\s+"));
+            }
+            catch (RuntimeException e) {
+                throw new IllegalArgumentException("Line " + number + ": " + e.getMessage(), e);
+            }
+        }
+        return this;
+    }
+
+    private void directive(String[] words) {
+        String name = words[0].toLowerCase();
+        if (name.equals("request")) {
+            if (words.length < 4)
+                throw new IllegalArgumentException(
+                        "Expected request <weight> <method> <path> [body=<size>] [header=<name>:<value>]...");
+
+            int bodySize = 0;
+            List<String> headers = new ArrayList<String>();
+            for (int i = 4; i < words.length; i++) {
+                if (words[i].startsWith("body="))
+                    bodySize = size(words[i].substring(5));
+                else if (words[i].startsWith("header=") && words[i].indexOf(':') > 7)
+                    headers.add(words[i].substring(7).replaceFirst(":", ": "));
+                else
+                    throw new IllegalArgumentException("Unknown request option " + words[i]);
+            }
+            add(new RequestSpec(Integer.parseInt(words[1]), words[2].toUpperCase(), words[3], bodySize,
+                    headers.toArray(new String[headers.size()])));
+            return;
+        }
+
+        if (words.length != 2)
+            throw new IllegalArgumentException("Expected " + name + " <value>");
+        String value = words[1];
+
+        if (name.equals("target"))
+            setTarget(value);
+        else if (name.equals("rate"))
+            setRate(Double.parseDouble(value));
+        else if (name.equals("connections"))
+            setConnections(Integer.parseInt(value));
+        else if (name.equals("duration"))
+            setDuration(Integer.parseInt(value));
+        else if (name.equals("warmup"))
+            setWarmup(Integer.parseInt(value));
+        else if (name.equals("keepalive"))
+            setKeepAlive(value.equalsIgnoreCase("on") || value.equalsIgnoreCase("true"));
+        else if (name.equals("timeout"))
+            setTimeout(Integer.parseInt(value));
+        else
+            throw new IllegalArgumentException("Unknown directive " + name);
+    }
+
+    /**
+     * @return a size such as 512, 2k or 1m in bytes
+     */
+    static int size(String size) {
+        String lower = size.toLowerCase();
+        int multiplier = 1;
+        if (lower.endsWith("k"))
+            multiplier = 1024;
+        else if (lower.endsWith("m"))
+            multiplier = 1024 * 1024;
+        if (multiplier > 1)
+            lower = lower.substring(0, lower.length() - 1);
+        return Integer.parseInt(lower) * multiplier;
+    }
+
+    public Scenario add(RequestSpec request) {
+        requests.add(request);
+        totalWeight += request.weight;
+        return this;
+    }
+
+    /**
+     * @return one of the requests, picked by weight
+     */
+    RequestSpec pick(Random random) {
+        int n = random.nextInt(totalWeight);
+        for (RequestSpec request : requests) {
+            n -= request.weight;
+            if (n < 0)
+                return request;
+        }
+        return requests.get(requests.size() - 1);
+    }
+
+    public List<RequestSpec> getRequests() {
+        return requests;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return true if the target is sent requests over TLS
+     */
+    public boolean isTls() {
+        return tls;
+    }
+
+    /**
+     * @param target
+     *            {@code host:port}, {@code host}, {@code http://host:port/}
+     *            or {@code https://host:port/}
+     */
+    public Scenario setTarget(String target) {
+        tls = target.startsWith("https://");
+        if (target.startsWith("http://"))
+            target = target.substring(7);
+        else if (tls)
+            target = target.substring(8);
+        int slash = target.indexOf('/');
+        if (slash >= 0)
+            target = target.substring(0, slash);
+
+        int colon = target.lastIndexOf(':');
+        if (colon > 0) {
+            host = target.substring(0, colon);
+            port = Integer.parseInt(target.substring(colon + 1));
+        }
+        else {
+            host = target;
+            port = tls ? 443 : 80;
+        }
+        return this;
+    }
+
+    /**
+     * @return requests per second for an open loop or 0 for a closed loop
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate
+     *            requests per second sent whether or not earlier ones have
+     *            been answered, or 0 to send the next request on a connection
+     *            as soon as the last one was answered
+     */
+    public Scenario setRate(double rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public Scenario setConnections(int connections) {
+        this.connections = connections;
+        return this;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public Scenario setDuration(int duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    public int getWarmup() {
+        return warmup;
+    }
+
+    public Scenario setWarmup(int warmup) {
+        this.warmup = warmup;
+        return this;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public Scenario setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public Scenario setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+}